@@ -0,0 +1,654 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.qwert2603.vkmutualgroups.util.VkRequestsSender;
+import com.qwert2603.vkmutualgroups.util.VkTransport;
+import com.vk.sdk.api.VKError;
+import com.vk.sdk.api.VKParameters;
+import com.vk.sdk.api.VKRequest;
+import com.vk.sdk.api.VKResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Локальный заменитель vkapi для нагрузочных тестов без сети.
+ * Подключается через {@link VkRequestsSender#setTransport(VkTransport)}.
+ *
+ * Отвечает на friends.get, groups.get, groups.isMember и на vkapi.execute со скриптами из {@link ExecuteCodeBuilder}
+ * или пачкой запросов {@link VkRequestsSender}. Скрипты {@link ExecuteCodeBuilder} не выполняются:
+ * скрипт узнается по параметру code, а id и страницы берутся из остальных параметров запроса.
+ * В пачке разбираются аргументы каждого вызова. Остальные методы просто возвращают 1.
+ *
+ * Ответы строятся по синтетическому графу: у пользователя friendsCount друзей и groupsCount групп.
+ * Каждый друг состоит примерно в {@link #MEMBER_PERCENT}% групп пользователя и в нескольких посторонних группах,
+ * а у {@link #PRIVATE_FRIEND_PERCENT}% друзей список групп скрыт.
+ * Членство вычисляется по id друга и группы, поэтому граф не хранится.
+ *
+ * Задержка ответа, доля ошибок и допустимая частота запросов настраиваются.
+ * Ответы готовятся в отдельном потоке. Запросам, начатым в UI-потоке, слушатель вызывается в UI-потоке,
+ * остальным - в потоке сервера (запросы загрузки отправляются с setUseLooperForCallListener(false)).
+ */
+public class FakeVkServer implements VkTransport {
+
+    public static final String TAG = "FakeVkServer";
+
+    private static final int API_ERROR_TOO_MANY_REQUESTS = 6;
+    private static final int API_ERROR_INTERNAL = 10;
+    private static final int API_ERROR_PARAM = 100;
+    private static final int API_ERROR_COMPILE = 12;
+    private static final int API_ERROR_RUNTIME = 13;
+    private static final int API_ERROR_PRIVATE_PROFILE = 30;
+
+    /**
+     * Сколько вызовов API можно сделать в одном execute.
+     */
+    private static final int MAX_EXECUTE_CALLS = 25;
+
+    /**
+     * В каком проценте групп пользователя состоит друг.
+     */
+    static final int MEMBER_PERCENT = 5;
+
+    /**
+     * У какого процента друзей список групп скрыт.
+     */
+    static final int PRIVATE_FRIEND_PERCENT = 10;
+
+    /**
+     * Максимальное кол-во посторонних групп друга.
+     */
+    static final int MAX_OTHER_GROUPS = 300;
+
+    private static final int FIRST_FRIEND_ID = 100000000;
+    private static final int FIRST_GROUP_ID = 30000000;
+    private static final int FIRST_OTHER_GROUP_ID = 900000000;
+
+    private static final String PHOTO_50 = "https://vk.com/images/camera_50.png";
+
+    /**
+     * Через сколько запросов выводить статистику в logcat.
+     */
+    private static final int STATS_INTERVAL = 100;
+
+    /**
+     * Ошибка вызова метода API.
+     */
+    private static class ApiException extends Exception {
+        final int mErrorCode;
+
+        ApiException(int errorCode, String message) {
+            super(message);
+            mErrorCode = errorCode;
+        }
+    }
+
+    /**
+     * Выполняющийся запрос.
+     */
+    private static class Pending {
+        final VKRequest.VKRequestListener mListener;
+        final boolean mFromMainThread;
+
+        /**
+         * Передать только строку ответа, без json ({@link #executeRaw}).
+         */
+        final boolean mRaw;
+
+        Pending(VKRequest.VKRequestListener listener, boolean fromMainThread, boolean raw) {
+            mListener = listener;
+            mFromMainThread = fromMainThread;
+            mRaw = raw;
+        }
+    }
+
+    private final int[] mFriendIds;
+    private final int[] mGroupIds;
+
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Random mRandom = new Random();
+
+    private final HashMap<VKRequest, Pending> mPending = new HashMap<>();
+
+    private long mLatency = 100;
+    private long mLatencyJitter = 50;
+    private long mCallLatency = 5;
+    private int mErrorPercent = 0;
+    private int mCallErrorPercent = 0;
+
+    private int mMaxRequests = 3;
+    private long mWindowMillis = 1000;
+
+    /**
+     * Время поступления последних запросов для проверки частоты.
+     */
+    private final ArrayDeque<Long> mRequestTimes = new ArrayDeque<>();
+
+    private int mRequestsCount = 0;
+    private int mCallsCount = 0;
+    private int mErrorsCount = 0;
+    private int mFloodErrorsCount = 0;
+    private long mResponseChars = 0;
+
+    public FakeVkServer(int friendsCount, int groupsCount) {
+        mFriendIds = new int[friendsCount];
+        for (int i = 0; i < friendsCount; ++i) {
+            // id друзей в vk сейчас в основном 8-9-значные.
+            mFriendIds[i] = FIRST_FRIEND_ID + i * 7919;
+        }
+        mGroupIds = new int[groupsCount];
+        for (int i = 0; i < groupsCount; ++i) {
+            mGroupIds[i] = FIRST_GROUP_ID + i * 104729;
+        }
+        HandlerThread handlerThread = new HandlerThread(TAG);
+        handlerThread.start();
+        mHandler = new Handler(handlerThread.getLooper());
+    }
+
+    /**
+     * Задержка ответа: latency + случайная добавка до jitter + callLatency за каждый вызов API.
+     */
+    public synchronized void setLatency(long latency, long jitter, long callLatency) {
+        mLatency = latency;
+        mLatencyJitter = jitter;
+        mCallLatency = callLatency;
+    }
+
+    /**
+     * @param errorPercent     - процент запросов, завершающихся внутренней ошибкой сервера.
+     * @param callErrorPercent - процент вызовов API внутри execute, завершающихся внутренней ошибкой.
+     */
+    public synchronized void setErrors(int errorPercent, int callErrorPercent) {
+        mErrorPercent = errorPercent;
+        mCallErrorPercent = callErrorPercent;
+    }
+
+    /**
+     * Не более maxRequests запросов в любом окне из windowMillis мс, на остальные - ошибка "Too many requests per second".
+     */
+    public synchronized void setRateLimit(int maxRequests, long windowMillis) {
+        mMaxRequests = maxRequests;
+        mWindowMillis = windowMillis;
+        mRequestTimes.clear();
+    }
+
+    /**
+     * Остановить поток сервера. Невыполненные запросы остаются без ответа.
+     */
+    public void quit() {
+        mHandler.getLooper().quit();
+    }
+
+    public synchronized String getStats() {
+        return "requests == " + mRequestsCount +
+                " calls == " + mCallsCount +
+                " errors == " + mErrorsCount +
+                " flood errors == " + mFloodErrorsCount +
+                " response == " + mResponseChars / 1000 + " K chars";
+    }
+
+    @Override
+    public void execute(VKRequest request, VKRequest.VKRequestListener listener) {
+        execute(request, listener, false);
+    }
+
+    @Override
+    public void executeRaw(VKRequest request, VKRequest.VKRequestListener listener) {
+        execute(request, listener, true);
+    }
+
+    private void execute(VKRequest request, VKRequest.VKRequestListener listener, boolean raw) {
+        long now = SystemClock.uptimeMillis();
+        boolean fromMainThread = Looper.myLooper() == Looper.getMainLooper();
+        synchronized (this) {
+            mPending.put(request, new Pending(listener, fromMainThread, raw));
+        }
+        mHandler.postAtTime(() -> process(request, now), request, now);
+    }
+
+    @Override
+    public void cancel(VKRequest request) {
+        mHandler.removeCallbacksAndMessages(request);
+        VKError error = new VKError(VKError.VK_CANCELED);
+        error.request = request;
+        deliver(request, pending -> pending.mListener.onError(error));
+    }
+
+    /**
+     * Подготовить ответ на запрос, поступивший в момент arrivalTime, и передать его после задержки.
+     */
+    private void process(VKRequest request, long arrivalTime) {
+        int[] callsCount = {1};
+        VKResponse response = null;
+        VKError error = null;
+        try {
+            checkRequest(arrivalTime);
+            JSONObject json = respond(request, callsCount);
+            response = new VKResponse();
+            response.request = request;
+            response.json = json;
+            response.responseString = json.toString();
+        } catch (ApiException e) {
+            error = createError(request, e);
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString(), e);
+            error = new VKError(VKError.VK_JSON_FAILED);
+            error.request = request;
+        }
+
+        long delay;
+        synchronized (this) {
+            ++mRequestsCount;
+            mCallsCount += callsCount[0];
+            if (error != null) {
+                ++mErrorsCount;
+            } else {
+                mResponseChars += response.responseString.length();
+            }
+            if (mRequestsCount % STATS_INTERVAL == 0) {
+                Log.d(TAG, getStats());
+            }
+            delay = mLatency + (mLatencyJitter > 0 ? (long) (mRandom.nextDouble() * mLatencyJitter) : 0)
+                    + mCallLatency * callsCount[0];
+        }
+
+        VKResponse finalResponse = response;
+        VKError finalError = error;
+        mHandler.postAtTime(() -> deliver(request, pending -> {
+            if (finalError != null) {
+                pending.mListener.onError(finalError);
+            } else {
+                pending.mListener.onComplete(pending.mRaw ? withoutJson(finalResponse) : finalResponse);
+            }
+        }), request, arrivalTime + delay);
+    }
+
+    private static VKResponse withoutJson(VKResponse response) {
+        VKResponse result = new VKResponse();
+        result.request = response.request;
+        result.responseString = response.responseString;
+        return result;
+    }
+
+    private interface Delivery {
+        void deliver(Pending pending);
+    }
+
+    /**
+     * Передать результат слушателю запроса, если запрос еще выполняется.
+     */
+    private void deliver(VKRequest request, Delivery delivery) {
+        Pending pending;
+        synchronized (this) {
+            pending = mPending.remove(request);
+        }
+        if (pending == null) {
+            return;
+        }
+        if (pending.mFromMainThread) {
+            mMainHandler.post(() -> delivery.deliver(pending));
+        } else {
+            delivery.deliver(pending);
+        }
+    }
+
+    /**
+     * Проверить ограничение частоты и сымитировать сбой сервера.
+     */
+    private synchronized void checkRequest(long arrivalTime) throws ApiException {
+        while (!mRequestTimes.isEmpty() && mRequestTimes.peekFirst() <= arrivalTime - mWindowMillis) {
+            mRequestTimes.removeFirst();
+        }
+        if (mRequestTimes.size() >= mMaxRequests) {
+            ++mFloodErrorsCount;
+            throw new ApiException(API_ERROR_TOO_MANY_REQUESTS, "Too many requests per second");
+        }
+        mRequestTimes.addLast(arrivalTime);
+        if (isRandomError(mErrorPercent)) {
+            throw new ApiException(API_ERROR_INTERNAL, "Internal server error");
+        }
+    }
+
+    private synchronized boolean isRandomError(int percent) {
+        return percent > 0 && mRandom.nextInt(100) < percent;
+    }
+
+    private static VKError createError(VKRequest request, ApiException e) {
+        VKError apiError = new VKError(e.mErrorCode);
+        apiError.errorMessage = e.getMessage();
+        VKError error = new VKError(VKError.VK_API_ERROR);
+        error.apiError = apiError;
+        error.request = request;
+        return error;
+    }
+
+    /**
+     * Ответ на запрос в виде {"response": ...}.
+     *
+     * @param callsCount - сюда записывается кол-во вызовов API.
+     */
+    private JSONObject respond(VKRequest request, int[] callsCount) throws ApiException, JSONException {
+        JSONObject params = toJson(request.getMethodParameters());
+        if (!"execute".equals(request.methodName)) {
+            return new JSONObject().put("response", call(request.methodName, params));
+        }
+        Execute execute = new Execute();
+        JSONObject result = new JSONObject().put("response", execute.run(params));
+        if (execute.mErrors.length() > 0) {
+            result.put("execute_errors", execute.mErrors);
+        }
+        callsCount[0] = execute.mCallsCount;
+        if (execute.mCallsCount > MAX_EXECUTE_CALLS) {
+            throw new ApiException(API_ERROR_RUNTIME, "Runtime error occurred during code invocation: Too many API calls");
+        }
+        return result;
+    }
+
+    private static JSONObject toJson(VKParameters parameters) throws JSONException {
+        JSONObject result = new JSONObject();
+        if (parameters != null) {
+            for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Выполнение кода vkapi.execute.
+     */
+    private class Execute {
+        final JSONArray mErrors = new JSONArray();
+        int mCallsCount = 0;
+
+        Object run(JSONObject params) throws ApiException, JSONException {
+            String code = params.optString(ExecuteCodeBuilder.PARAM_CODE);
+            if (ExecuteCodeBuilder.IS_MEMBER_CODE.equals(code)) {
+                return runIsMember(getArray(params, ExecuteCodeBuilder.PARAM_FRIENDS, ExecuteCodeBuilder.ROW_SEPARATOR),
+                        getArray(params, ExecuteCodeBuilder.PARAM_GROUPS, ExecuteCodeBuilder.ID_SEPARATOR),
+                        getArray(params, ExecuteCodeBuilder.PARAM_ROWS, ExecuteCodeBuilder.ID_SEPARATOR));
+            }
+            if (ExecuteCodeBuilder.FRIENDS_GROUPS_CODE.equals(code)) {
+                return runFriendsGroups(getArray(params, ExecuteCodeBuilder.PARAM_FRIENDS, ExecuteCodeBuilder.ID_SEPARATOR));
+            }
+            if (ExecuteCodeBuilder.FRIENDS_PAGES_CODE.equals(code)) {
+                return runPages("friends.get", new JSONObject().put("fields", "photo_50,can_write_private_message"), params);
+            }
+            if (ExecuteCodeBuilder.GROUPS_PAGES_CODE.equals(code)) {
+                return runPages("groups.get", new JSONObject().put("extended", 1), params);
+            }
+            if (code.startsWith("return [API.")) {
+                return runBatch(code);
+            }
+            throw new ApiException(API_ERROR_COMPILE, "Unable to compile code");
+        }
+
+        private JSONArray runIsMember(String[] f, String[] g, String[] r) throws JSONException {
+            JSONArray result = new JSONArray();
+            for (int i = 0; i < g.length; ++i) {
+                String userIds = f[Integer.parseInt(r[i])].replace(ExecuteCodeBuilder.ID_SEPARATOR, ',');
+                JSONObject params = new JSONObject().put("group_id", g[i]).put("user_ids", userIds);
+                result.put(new JSONObject().put("group_id", Integer.parseInt(g[i]))
+                        .put("members", safeCall("groups.isMember", params)));
+            }
+            return result;
+        }
+
+        private JSONArray runFriendsGroups(String[] f) throws JSONException {
+            JSONArray result = new JSONArray();
+            for (String friendId : f) {
+                JSONObject params = new JSONObject().put("user_id", friendId)
+                        .put("count", FriendsGroupsPlanner.GROUPS_PER_FRIEND);
+                result.put(safeCall("groups.get", params));
+            }
+            return result;
+        }
+
+        /**
+         * Страницы списка по параметрам {@link ExecuteCodeBuilder#PARAM_OFFSET}, {@link ExecuteCodeBuilder#PARAM_COUNT}
+         * и {@link ExecuteCodeBuilder#PARAM_PAGES}.
+         */
+        private JSONArray runPages(String method, JSONObject params, JSONObject executeParams)
+                throws ApiException, JSONException {
+            int offset = getInt(executeParams, ExecuteCodeBuilder.PARAM_OFFSET);
+            int count = getInt(executeParams, ExecuteCodeBuilder.PARAM_COUNT);
+            int pages = getInt(executeParams, ExecuteCodeBuilder.PARAM_PAGES);
+            JSONArray result = new JSONArray();
+            for (int i = 0; i < pages; ++i) {
+                params.put("count", count).put("offset", offset + i * count);
+                Object page = safeCall(method, params);
+                result.put(page);
+                if (!(page instanceof JSONObject) || ((JSONObject) page).getJSONArray("items").length() < count) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Код пачки: return [API.method({...}),API.method({...})];
+         */
+        private JSONArray runBatch(String code) throws ApiException, JSONException {
+            JSONArray result = new JSONArray();
+            int pos = "return [".length();
+            while (code.startsWith("API.", pos)) {
+                int open = code.indexOf('(', pos);
+                if (open < 0) {
+                    throw new ApiException(API_ERROR_COMPILE, "Unable to compile code");
+                }
+                String method = code.substring(pos + "API.".length(), open);
+                int end = findObjectEnd(code, open + 1);
+                result.put(safeCall(method, new JSONObject(code.substring(open + 1, end))));
+                // пропускаем ')' и ','.
+                pos = end + 1;
+                if (pos < code.length() && code.charAt(pos) == ',') {
+                    ++pos;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Вызов API внутри execute: при ошибке возвращает false, а ошибка добавляется в execute_errors.
+         */
+        private Object safeCall(String method, JSONObject params) throws JSONException {
+            ++mCallsCount;
+            try {
+                if (isRandomError(mCallErrorPercent)) {
+                    throw new ApiException(API_ERROR_INTERNAL, "Internal server error");
+                }
+                return call(method, params);
+            } catch (ApiException e) {
+                mErrors.put(new JSONObject()
+                        .put("method", method)
+                        .put("error_code", e.mErrorCode)
+                        .put("error_msg", e.getMessage()));
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Параметр со строкой, разделенной separator (как split в скрипте).
+     */
+    private static String[] getArray(JSONObject params, String name, char separator) throws ApiException {
+        String value = params.optString(name, null);
+        if (value == null || value.isEmpty()) {
+            throw new ApiException(API_ERROR_PARAM, "One of the parameters specified was missing or invalid: " + name);
+        }
+        return value.split(Pattern.quote(String.valueOf(separator)), -1);
+    }
+
+    /**
+     * Числовой параметр (как parseInt в скрипте).
+     */
+    private static int getInt(JSONObject params, String name) throws ApiException {
+        try {
+            return Integer.parseInt(params.optString(name, null));
+        } catch (NumberFormatException e) {
+            throw new ApiException(API_ERROR_PARAM, "One of the parameters specified was missing or invalid: " + name);
+        }
+    }
+
+    /**
+     * Индекс символа после JSON-объекта, начинающегося в позиции start.
+     */
+    private static int findObjectEnd(String code, int start) throws ApiException {
+        int depth = 0;
+        boolean inString = false;
+        for (int i = start; i < code.length(); ++i) {
+            char c = code.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    ++i;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{') {
+                ++depth;
+            } else if (c == '}' && --depth == 0) {
+                return i + 1;
+            }
+        }
+        throw new ApiException(API_ERROR_COMPILE, "Unable to compile code");
+    }
+
+    /**
+     * Вызов метода API.
+     */
+    private Object call(String method, JSONObject params) throws ApiException, JSONException {
+        switch (method) {
+            case "friends.get":
+                return getFriends(params.optInt("offset", 0), params.optInt("count", 5000));
+            case "groups.get":
+                return getGroups(params.optInt("user_id", 0), params.optInt("extended", 0) == 1,
+                        params.optInt("offset", 0), params.optInt("count", 1000));
+            case "groups.isMember":
+                return isMember(params);
+            default:
+                return 1;
+        }
+    }
+
+    private JSONObject getFriends(int offset, int count) throws JSONException {
+        JSONArray items = new JSONArray();
+        for (int i = offset; i < Math.min(offset + count, mFriendIds.length); ++i) {
+            items.put(new JSONObject()
+                    .put("id", mFriendIds[i])
+                    .put("first_name", "Friend")
+                    .put("last_name", String.valueOf(i))
+                    .put("photo_50", PHOTO_50)
+                    .put("can_write_private_message", 1));
+        }
+        return new JSONObject().put("count", mFriendIds.length).put("items", items);
+    }
+
+    /**
+     * @param userId - id друга или 0 для групп самого пользователя.
+     */
+    private JSONObject getGroups(int userId, boolean extended, int offset, int count)
+            throws ApiException, JSONException {
+        ArrayList<Integer> groupIds = new ArrayList<>();
+        if (userId == 0) {
+            for (int groupId : mGroupIds) {
+                groupIds.add(groupId);
+            }
+        } else {
+            if (isPrivate(userId)) {
+                throw new ApiException(API_ERROR_PRIVATE_PROFILE, "This profile is private");
+            }
+            for (int groupId : mGroupIds) {
+                if (isMember(userId, groupId)) {
+                    groupIds.add(groupId);
+                }
+            }
+            int otherGroups = mix(userId, 0) % MAX_OTHER_GROUPS;
+            for (int i = 0; i < otherGroups; ++i) {
+                groupIds.add(FIRST_OTHER_GROUP_ID + mix(userId, i + 1) % 100000);
+            }
+        }
+        JSONArray items = new JSONArray();
+        for (int i = offset; i < Math.min(offset + count, groupIds.size()); ++i) {
+            int groupId = groupIds.get(i);
+            if (extended) {
+                items.put(new JSONObject()
+                        .put("id", groupId)
+                        .put("name", "Group " + groupId)
+                        .put("screen_name", "club" + groupId)
+                        .put("is_closed", 0)
+                        .put("type", "group")
+                        .put("photo_50", PHOTO_50));
+            } else {
+                items.put(groupId);
+            }
+        }
+        return new JSONObject().put("count", groupIds.size()).put("items", items);
+    }
+
+    /**
+     * groups.isMember: для user_ids - массив {"member", "user_id"}, для user_id - 0 или 1.
+     * Без user_id проверяется сам пользователь.
+     */
+    private Object isMember(JSONObject params) throws JSONException {
+        int groupId = params.optInt("group_id", 0);
+        String userIds = params.optString("user_ids", "");
+        if (userIds.isEmpty()) {
+            int userId = params.optInt("user_id", 0);
+            if (userId == 0) {
+                for (int id : mGroupIds) {
+                    if (id == groupId) {
+                        return 1;
+                    }
+                }
+                return 0;
+            }
+            return isMember(userId, groupId) ? 1 : 0;
+        }
+        JSONArray result = new JSONArray();
+        for (String userId : userIds.split(",")) {
+            int id = Integer.parseInt(userId.trim());
+            result.put(new JSONObject().put("member", isMember(id, groupId) ? 1 : 0).put("user_id", id));
+        }
+        return result;
+    }
+
+    /**
+     * Состоит ли друг в группе по синтетическому графу.
+     */
+    static boolean isMember(int friendId, int groupId) {
+        return groupId >= FIRST_GROUP_ID && groupId < FIRST_OTHER_GROUP_ID && mix(friendId, groupId) % 100 < MEMBER_PERCENT;
+    }
+
+    private static boolean isPrivate(int friendId) {
+        return mix(friendId, -1) % 100 < PRIVATE_FRIEND_PERCENT;
+    }
+
+    /**
+     * Псевдослучайное неотрицательное число, зависящее от a и b.
+     */
+    private static int mix(int a, int b) {
+        long h = a * 0x9E3779B97F4A7C15L + b;
+        h ^= h >>> 31;
+        h *= 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 29;
+        return (int) (h & Integer.MAX_VALUE);
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.qwert2603.vkmutualgroups.Listener;
+import com.qwert2603.vkmutualgroups.util.RequestMetrics;
+import com.qwert2603.vkmutualgroups.util.VkRequestsSender;
+import com.qwert2603.vkmutualgroups.util.VkTransport;
+import com.vk.sdk.api.model.VKApiCommunityFull;
+import com.vk.sdk.api.model.VKApiUserFull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Полная загрузка {@link VKDataProvider} через {@link FakeVkServer}, без сети.
+ * Выводит в logcat время загрузки, статистику сервера, {@link RequestMetrics}
+ * и время отправки запросов в UI-потоке и в потоке отправки ({@link VkRequestsSender#getDispatchStats()}).
+ * Загруженная матрица должна совпадать с синтетическим графом сервера.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FakeVkServerLoadTest {
+
+    private static final String TAG = "FakeVkServerLoadTest";
+
+    private static final int FRIENDS_COUNT = 5000;
+    private static final int GROUPS_COUNT = 300;
+
+    private static final long TIMEOUT_MINUTES = 10;
+
+    private FakeVkServer mServer;
+    private VkTransport mTransport;
+
+    @Before
+    public void setUp() {
+        mServer = new FakeVkServer(FRIENDS_COUNT, GROUPS_COUNT);
+        mTransport = VkRequestsSender.getTransport();
+        VkRequestsSender.setTransport(mServer);
+        RequestMetrics.reset();
+        VkRequestsSender.resetDispatchStats();
+    }
+
+    @After
+    public void tearDown() {
+        VkRequestsSender.setTransport(mTransport);
+        mServer.quit();
+    }
+
+    @Test
+    public void load_withoutErrors() throws InterruptedException {
+        Data data = load("no errors");
+        assertMatchesServer(data);
+    }
+
+    /**
+     * Ошибки сервера и отдельных вызовов должны повторяться без потери данных.
+     */
+    @Test
+    public void load_withErrors() throws InterruptedException {
+        mServer.setErrors(5, 2);
+        Data data = load("errors 5% / calls 2%");
+        assertMatchesServer(data);
+    }
+
+    private Data load(String name) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        Data[] result = new Data[1];
+        String[] error = new String[1];
+        VKDataProvider dataProvider = new VKDataProvider(null);
+        long start = SystemClock.uptimeMillis();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> dataProvider.load(new Listener<Data>() {
+            @Override
+            public void onCompleted(Data data) {
+                result[0] = data;
+                done.countDown();
+            }
+
+            @Override
+            public void onError(String e) {
+                error[0] = e;
+                done.countDown();
+            }
+        }));
+        boolean finished = done.await(TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        long time = SystemClock.uptimeMillis() - start;
+        if (!finished) {
+            dataProvider.cancel();
+        }
+
+        Log.d(TAG, "## LOAD " + name + " ## friends == " + FRIENDS_COUNT + " groups == " + GROUPS_COUNT
+                + " time == " + time + " ms " + mServer.getStats());
+        Log.d(TAG, "dispatch ## " + VkRequestsSender.getDispatchStats());
+        Log.d(TAG, RequestMetrics.dump());
+
+        assertTrue("load did not finish in " + TIMEOUT_MINUTES + " min", finished);
+        assertNull("load failed: " + error[0], error[0]);
+        return result[0];
+    }
+
+    private static void assertMatchesServer(Data data) {
+        assertEquals(FRIENDS_COUNT, data.mFriends.size());
+        assertEquals(GROUPS_COUNT, data.mGroups.size());
+        for (VKApiUserFull friend : data.mFriends) {
+            for (VKApiCommunityFull group : data.mGroups) {
+                assertEquals("friend " + friend.id + " group " + group.id,
+                        FakeVkServer.isMember(friend.id, group.id), data.mIsMember.isMember(friend.id, group.id));
+            }
+        }
+    }
+
+}
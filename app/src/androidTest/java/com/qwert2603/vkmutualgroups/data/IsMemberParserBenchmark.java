@@ -0,0 +1,163 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Сравнение на устройстве скорости разбора ответов groups.isMember:
+ * потокового ({@link IsMemberResponseParser#parse}) и через org.json ({@link IsMemberResponseParser#parseJSON}).
+ * Ответы берутся из папки {@link #RECORDED_RESPONSES_DIR} во внутреннем хранилище (по одному в файле).
+ * Если ее нет, генерируются ответы такого же вида.
+ * Время выводится в logcat, а оба способа должны найти одинаковое кол-во членств.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IsMemberParserBenchmark {
+
+    private static final String TAG = "IsMemberParserBenchmark";
+
+    /**
+     * Папка с записанными ответами на vkapi.execute (во внутреннем хранилище).
+     */
+    private static final String RECORDED_RESPONSES_DIR = "recorded_responses";
+
+    private static final int ITERATIONS = 20;
+
+    @Test
+    public void streamingAndDOM_findSameMembers() throws IOException, JSONException {
+        File dir = new File(InstrumentationRegistry.getTargetContext().getFilesDir(), RECORDED_RESPONSES_DIR);
+        ArrayList<String> responses = loadResponses(dir);
+        if (responses.isEmpty()) {
+            responses = generateResponses(20, 500);
+        }
+
+        long totalLength = 0;
+        for (String response : responses) {
+            totalLength += response.length();
+        }
+        Log.d(TAG, "## BENCHMARK START ## responses == " + responses.size() + " total length == " + totalLength);
+
+        CountingCallback domCallback = new CountingCallback();
+        CountingCallback streamingCallback = new CountingCallback();
+
+        // прогрев.
+        parseDOM(responses, domCallback);
+        parseStreaming(responses, streamingCallback);
+
+        long domTime = 0;
+        long streamingTime = 0;
+        for (int i = 0; i < ITERATIONS; ++i) {
+            long start = System.nanoTime();
+            parseDOM(responses, domCallback);
+            domTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            parseStreaming(responses, streamingCallback);
+            streamingTime += System.nanoTime() - start;
+        }
+
+        Log.d(TAG, "## BENCHMARK END ## members per iteration == " + streamingCallback.mMembers / (ITERATIONS + 1)
+                + " DOM == " + domTime / ITERATIONS / 1000 + " us"
+                + " streaming == " + streamingTime / ITERATIONS / 1000 + " us");
+        assertEquals(domCallback.mMembers, streamingCallback.mMembers);
+        assertEquals(domCallback.mFailedCells, streamingCallback.mFailedCells);
+    }
+
+    /**
+     * Как в vk sdk: строка ответа превращается в JSONObject, который затем разбирается.
+     */
+    private static void parseDOM(ArrayList<String> responses, CountingCallback callback) throws JSONException {
+        for (String response : responses) {
+            IsMemberResponseParser.parseJSON(new JSONObject(response), callback);
+        }
+    }
+
+    private static void parseStreaming(ArrayList<String> responses, CountingCallback callback) throws IOException {
+        for (String response : responses) {
+            IsMemberResponseParser.parse(new StringReader(response), callback);
+        }
+    }
+
+    private static ArrayList<String> loadResponses(File dir) throws IOException {
+        ArrayList<String> result = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return result;
+        }
+        for (File file : files) {
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+            try {
+                StringBuilder stringBuilder = new StringBuilder();
+                String line;
+                while ((line = bufferedReader.readLine()) != null) {
+                    stringBuilder.append(line);
+                }
+                result.add(stringBuilder.toString());
+            } finally {
+                bufferedReader.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Сгенерировать ответы из {@link IsMemberPlanner#CELLS_PER_REQUEST} ячеек по friendsPerCell друзей.
+     * Примерно 5% друзей состоят в группе.
+     */
+    private static ArrayList<String> generateResponses(int count, int friendsPerCell) {
+        Random random = new Random(42);
+        ArrayList<String> result = new ArrayList<>();
+        for (int r = 0; r < count; ++r) {
+            StringBuilder s = new StringBuilder("{\"response\":[");
+            for (int c = 0; c < IsMemberPlanner.CELLS_PER_REQUEST; ++c) {
+                s.append("{\"group_id\":").append(1000000 + random.nextInt(1000000)).append(",\"members\":[");
+                for (int f = 0; f < friendsPerCell; ++f) {
+                    s.append("{\"member\":").append(random.nextInt(20) == 0 ? 1 : 0)
+                            .append(",\"user_id\":").append(1000 + f).append('}');
+                    if (f < friendsPerCell - 1) {
+                        s.append(',');
+                    }
+                }
+                s.append("]}");
+                if (c < IsMemberPlanner.CELLS_PER_REQUEST - 1) {
+                    s.append(',');
+                }
+            }
+            s.append("]}");
+            result.add(s.toString());
+        }
+        return result;
+    }
+
+    private static class CountingCallback implements IsMemberResponseParser.Callback {
+        long mMembers = 0;
+        long mFailedCells = 0;
+
+        @Override
+        public void onMember(int cellIndex, int friendId) {
+            ++mMembers;
+        }
+
+        @Override
+        public void onCellFailed(int cellIndex) {
+            ++mFailedCells;
+        }
+    }
+
+}
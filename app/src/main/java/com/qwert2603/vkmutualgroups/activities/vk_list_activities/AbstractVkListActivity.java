@@ -32,6 +32,7 @@ import com.qwert2603.vkmutualgroups.fragments.AbstractVkListFragment;
 import com.qwert2603.vkmutualgroups.fragments.ConfirmationDialogFragment;
 import com.qwert2603.vkmutualgroups.fragments.SendMessageDialogFragment;
 import com.qwert2603.vkmutualgroups.util.VkLogOutUtil;
+import com.qwert2603.vkmutualgroups.util.VkRequestsSender;
 import com.vk.sdk.api.model.VKApiCommunityFull;
 import com.vk.sdk.api.model.VKApiUserFull;
 
@@ -63,6 +64,11 @@ public abstract class AbstractVkListActivity extends AppCompatActivity {
 
     private DataManager mDataManager;
 
+    /**
+     * Версия данных {@link DataManager}, списки из которой сейчас отображаются.
+     */
+    private int mShownDataVersion;
+
     private Bundle mArgs;
 
     private TextView mErrorTextView;
@@ -83,6 +89,11 @@ public abstract class AbstractVkListActivity extends AppCompatActivity {
             notifyDataSetChanged();
         }
 
+        @Override
+        public void onPartlyLoaded() {
+            notifyDataSetChanged();
+        }
+
         @Override
         public void onCompleted(Void v) {
             setRefreshLayoutRefreshing(false);
@@ -97,6 +108,13 @@ public abstract class AbstractVkListActivity extends AppCompatActivity {
         }
     };
 
+    /**
+     * Snackbar о том, что запросы отправляются медленнее или vk не отвечает.
+     */
+    private Snackbar mRequestsStateSnackbar;
+
+    private VkRequestsSender.StateListener mRequestsStateListener = state -> updateRequestsStateSnackbar();
+
     private TargetFragment mTargetFragment;
 
     protected abstract String getActionBarTitle();
@@ -109,6 +127,7 @@ public abstract class AbstractVkListActivity extends AppCompatActivity {
 
         mDataManager = DataManager.get(this);
         mDataManager.addDataLoadingListener(mDataLoadingListener);
+        mShownDataVersion = mDataManager.getDataVersion();
 
         mArgs = new Bundle();
 
@@ -172,6 +191,8 @@ public abstract class AbstractVkListActivity extends AppCompatActivity {
         mActionButton = (FloatingActionButton) findViewById(R.id.action_button);
 
         mCoordinatorLayout = (CoordinatorLayout) findViewById(R.id.coordinator_layout);
+
+        VkRequestsSender.addStateListener(mRequestsStateListener);
     }
 
     @Override
@@ -184,6 +205,7 @@ public abstract class AbstractVkListActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         mDataManager.removeDataLoadingListener(mDataLoadingListener);
+        VkRequestsSender.removeStateListener(mRequestsStateListener);
         super.onDestroy();
     }
 
@@ -192,6 +214,7 @@ public abstract class AbstractVkListActivity extends AppCompatActivity {
         super.onResume();
         notifyDataSetChanged();
         isResumed = true;
+        updateRequestsStateSnackbar();
     }
 
     @Override
@@ -259,12 +282,24 @@ public abstract class AbstractVkListActivity extends AppCompatActivity {
      */
     @CallSuper
     protected void notifyDataSetChanged() {
+        int dataVersion = mDataManager.getDataVersion();
+        if (dataVersion != mShownDataVersion) {
+            mShownDataVersion = dataVersion;
+            onDataVersionChanged();
+        }
         Fragment fragment = getListFragment();
         if (fragment instanceof AbstractVkListFragment) {
             ((AbstractVkListFragment) fragment).notifyDataSetChanged();
         }
     }
 
+    /**
+     * Опубликована новая версия данных {@link DataManager}.
+     * Полученные из него списки не изменяются, поэтому отображаемые списки надо получить заново.
+     */
+    protected void onDataVersionChanged() {
+    }
+
     protected void setErrorTextViewVisibility(int visibility) {
         mErrorTextView.setVisibility(visibility);
     }
@@ -317,6 +352,30 @@ public abstract class AbstractVkListActivity extends AppCompatActivity {
         snackbar.show();
     }
 
+    /**
+     * Показать или убрать Snackbar о состоянии отправки запросов.
+     */
+    private void updateRequestsStateSnackbar() {
+        if (mRequestsStateSnackbar != null) {
+            mRequestsStateSnackbar.dismiss();
+            mRequestsStateSnackbar = null;
+        }
+        if (!isResumed) {
+            return;
+        }
+        switch (VkRequestsSender.getState()) {
+            case throttled:
+                mRequestsStateSnackbar = Snackbar.make(mCoordinatorLayout, R.string.requests_throttled, Snackbar.LENGTH_INDEFINITE);
+                break;
+            case unavailable:
+                mRequestsStateSnackbar = Snackbar.make(mCoordinatorLayout, R.string.vk_not_responding, Snackbar.LENGTH_INDEFINITE);
+                break;
+        }
+        if (mRequestsStateSnackbar != null) {
+            mRequestsStateSnackbar.show();
+        }
+    }
+
     @Override
     @CallSuper
     public boolean onCreateOptionsMenu(Menu menu) {
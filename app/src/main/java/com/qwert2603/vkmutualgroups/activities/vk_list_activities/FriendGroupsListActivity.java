@@ -15,8 +15,6 @@ import com.qwert2603.vkmutualgroups.util.InternetUtils;
 import com.qwert2603.vkmutualgroups.util.VKApiCommunityArray_Fix;
 import com.vk.sdk.api.model.VKApiUserFull;
 
-import static com.qwert2603.vkmutualgroups.data.DataManager.FetchingState.loading;
-
 /**
  * Все группы друга.
  */
@@ -48,7 +46,7 @@ public class FriendGroupsListActivity extends GroupsListActivity implements Abst
     }
 
     private void fetchFriendGroups() {
-        if (mDataManager.getFetchingState() == loading) {
+        if (mDataManager.isLoading()) {
             return;
         }
         if (InternetUtils.isInternetConnected(this)) {
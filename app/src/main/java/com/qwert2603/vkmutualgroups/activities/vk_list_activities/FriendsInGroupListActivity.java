@@ -1,5 +1,6 @@
 package com.qwert2603.vkmutualgroups.activities.vk_list_activities;
 
+import android.app.Fragment;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -9,10 +10,12 @@ import com.qwert2603.vkmutualgroups.R;
 import com.qwert2603.vkmutualgroups.data.DataManager;
 import com.qwert2603.vkmutualgroups.fragments.FriendsListFragment;
 import com.vk.sdk.api.model.VKApiCommunityFull;
+import com.vk.sdk.api.model.VKApiUserFull;
 import com.vk.sdk.api.model.VKUsersArray;
 
+import java.util.List;
+
 import static com.qwert2603.vkmutualgroups.data.DataManager.FetchingState.finished;
-import static com.qwert2603.vkmutualgroups.data.DataManager.FetchingState.loading;
 
 /**
  * Друзья в группе.
@@ -41,7 +44,11 @@ public class FriendsInGroupListActivity extends AbstractVkListActivity {
         setRefreshLayoutEnable(false);
         setActionButtonVisibility(View.INVISIBLE);
 
-        VKUsersArray friends;
+        setListFragment(FriendsListFragment.newInstance(getFriends(), getString(R.string.no_friends_in_group)));
+    }
+
+    private List<VKApiUserFull> getFriends() {
+        List<VKApiUserFull> friends;
         if (mGroup.id != 0) {
             friends = mDataManager.getFriendsInGroup(mGroup.id);
         } else {
@@ -51,7 +58,7 @@ public class FriendsInGroupListActivity extends AbstractVkListActivity {
         if (friends == null) {
             friends = new VKUsersArray();
         }
-        setListFragment(FriendsListFragment.newInstance(friends, getString(R.string.no_friends_in_group)));
+        return friends;
     }
 
     @Override
@@ -94,20 +101,28 @@ public class FriendsInGroupListActivity extends AbstractVkListActivity {
                 if (fetchingState == finished) {
                     leaveGroup(mGroup);
                 } else {
-                    showSnackbar(fetchingState == loading ? R.string.loading_is_on : R.string.data_was_not_loaded_else);
+                    showSnackbar(mDataManager.isLoading() ? R.string.loading_is_on : R.string.data_was_not_loaded_else);
                 }
                 return true;
             case R.id.menu_join_group:
                 if (fetchingState == finished) {
                     joinGroup(mGroup);
                 } else {
-                    showSnackbar(fetchingState == loading ? R.string.loading_is_on : R.string.data_was_not_loaded_else);
+                    showSnackbar(mDataManager.isLoading() ? R.string.loading_is_on : R.string.data_was_not_loaded_else);
                 }
                 return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    @Override
+    protected void onDataVersionChanged() {
+        Fragment fragment = getListFragment();
+        if (fragment instanceof FriendsListFragment) {
+            ((FriendsListFragment) fragment).setFriends(getFriends());
+        }
+    }
+
     @Override
     protected void notifyDataSetChanged() {
         super.notifyDataSetChanged();
@@ -10,7 +10,6 @@ import com.qwert2603.vkmutualgroups.data.DataManager;
 import com.vk.sdk.api.model.VKApiUserFull;
 
 import static com.qwert2603.vkmutualgroups.data.DataManager.FetchingState.finished;
-import static com.qwert2603.vkmutualgroups.data.DataManager.FetchingState.loading;
 
 /**
  * Activity для отображения списка групп.
@@ -78,7 +77,7 @@ public abstract class GroupsListActivity extends AbstractVkListActivity {
                     intent.putExtra(EXTRA_FRIEND, mFriend);
                     startActivity(intent);
                 } else {
-                    showSnackbar(fetchingState == loading ? R.string.loading_is_on : R.string.data_was_not_loaded_else);
+                    showSnackbar(mDataManager.isLoading() ? R.string.loading_is_on : R.string.data_was_not_loaded_else);
                 }
                 return true;
             case R.id.menu_open_in_browser:
@@ -88,14 +87,14 @@ public abstract class GroupsListActivity extends AbstractVkListActivity {
                 if (fetchingState == finished) {
                     deleteFriend(mFriend);
                 } else {
-                    showSnackbar(fetchingState == loading ? R.string.loading_is_on : R.string.data_was_not_loaded_else);
+                    showSnackbar(mDataManager.isLoading() ? R.string.loading_is_on : R.string.data_was_not_loaded_else);
                 }
                 return true;
             case R.id.menu_add_friend:
                 if (fetchingState == finished) {
                     addFriend(mFriend);
                 } else {
-                    showSnackbar(fetchingState == loading ? R.string.loading_is_on : R.string.data_was_not_loaded_else);
+                    showSnackbar(mDataManager.isLoading() ? R.string.loading_is_on : R.string.data_was_not_loaded_else);
                 }
                 return true;
         }
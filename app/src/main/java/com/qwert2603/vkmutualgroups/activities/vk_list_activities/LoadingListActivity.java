@@ -3,6 +3,7 @@ package com.qwert2603.vkmutualgroups.activities.vk_list_activities;
 import android.app.Fragment;
 import android.content.Intent;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.support.design.widget.Snackbar;
 import android.util.Log;
 import android.view.Menu;
@@ -18,16 +19,18 @@ import com.qwert2603.vkmutualgroups.errors_show.ErrorsShowDialog;
 import com.qwert2603.vkmutualgroups.fragments.AbstractVkListFragment;
 import com.qwert2603.vkmutualgroups.fragments.FriendsListFragment;
 import com.qwert2603.vkmutualgroups.fragments.GroupsListFragment;
+import com.qwert2603.vkmutualgroups.fragments.SettingsFragment;
 import com.qwert2603.vkmutualgroups.util.InternetUtils;
-import com.qwert2603.vkmutualgroups.util.VKApiCommunityArray_Fix;
 import com.vk.sdk.api.model.VKApiCommunityFull;
 import com.vk.sdk.api.model.VKApiUserFull;
-import com.vk.sdk.api.model.VKUsersArray;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.qwert2603.vkmutualgroups.data.DataManager.FetchingState.finished;
-import static com.qwert2603.vkmutualgroups.data.DataManager.FetchingState.loading;
+import static com.qwert2603.vkmutualgroups.data.DataManager.FetchingState.incomplete;
+import static com.qwert2603.vkmutualgroups.data.DataManager.FetchingState.partlyLoaded;
 
 /**
  * Activity, загружающая данные и отображающая список друзей или групп.
@@ -45,6 +48,12 @@ public class LoadingListActivity extends AbstractVkListActivity implements Abstr
     private String mQuery = "";
     private boolean mSearchResultEmpty = true;
 
+    /**
+     * Показывает ли фрагмент списки, оставшиеся от предыдущей загрузки.
+     * Если нет, то при частичной загрузке фрагмент не пересоздается, а только обновляется.
+     */
+    private boolean mListFragmentOutdated = true;
+
     public enum FragmentType implements Serializable {
         myFriends,
         myGroups
@@ -58,15 +67,21 @@ public class LoadingListActivity extends AbstractVkListActivity implements Abstr
     private DataManager.DataLoadingListener mDataLoadingListener = new DataManager.DataLoadingListener() {
         @Override
         public void onLoadingStarted() {
+            mListFragmentOutdated = true;
             setActionButtonIcon(android.R.drawable.ic_menu_sort_alphabetically);
             setRefreshLayoutRefreshing(true);
             setErrorTextViewVisibility(View.INVISIBLE);
             notifyDataSetChanged();
         }
 
+        @Override
+        public void onPartlyLoaded() {
+            updateListFragment();
+        }
+
         @Override
         public void onCompleted(Void v) {
-            refreshFriendsListFragment();
+            updateListFragment();
             setRefreshLayoutRefreshing(false);
             showSnackbar(R.string.loading_completed);
         }
@@ -120,7 +135,8 @@ public class LoadingListActivity extends AbstractVkListActivity implements Abstr
 
         setActionButtonVisibility(View.INVISIBLE);
         setActionButtonOnClickListener((v) -> {
-            if (mDataManager.getFetchingState() == finished) {
+            DataManager.FetchingState fetchingState = mDataManager.getFetchingState();
+            if (fetchingState == finished || fetchingState == partlyLoaded || fetchingState == incomplete) {
                 switch (mCurrentFragmentType) {
                     case myFriends:
                         switch (mDataManager.getFriendsSortState()) {
@@ -175,7 +191,9 @@ public class LoadingListActivity extends AbstractVkListActivity implements Abstr
             case loading:
                 // nth
                 break;
+            case partlyLoaded:
             case finished:
+            case incomplete:
                 refreshFriendsListFragment();
                 break;
         }
@@ -221,42 +239,115 @@ public class LoadingListActivity extends AbstractVkListActivity implements Abstr
     }
 
     private void refreshData() {
-        if (mDataManager.getFetchingState() == loading) {
+        if (mDataManager.isLoading()) {
             return;
         }
         if (InternetUtils.isInternetConnected(this)) {
-            mDataManager.load(true);
+            boolean delta = PreferenceManager.getDefaultSharedPreferences(this)
+                    .getBoolean(SettingsFragment.PREF_IS_DELTA_REFRESH, false);
+            mDataManager.load(true, delta);
         } else {
             showSnackbar(R.string.no_internet_connection, Snackbar.LENGTH_SHORT, R.string.refresh, (v) -> refreshData());
             setRefreshLayoutRefreshing(false);
         }
     }
 
+    /**
+     * Обновить отображаемый список.
+     * Если фрагмент показывает списки текущей загрузки, достаточно передать в него списки новой версии данных
+     * (так сохраняется позиция прокрутки), см. {@link #onDataVersionChanged()}.
+     */
+    private void updateListFragment() {
+        if (mListFragmentOutdated || mDataManager.getUsersFriends() == null) {
+            refreshFriendsListFragment();
+        } else {
+            notifyDataSetChanged();
+        }
+    }
+
+    @Override
+    protected void onDataVersionChanged() {
+        if (mListFragmentOutdated) {
+            // фрагмент будет пересоздан, когда будут загружены новые данные.
+            return;
+        }
+        Fragment fragment = getListFragment();
+        switch (mCurrentFragmentType) {
+            case myFriends:
+                List<VKApiUserFull> friends = mDataManager.getUsersFriends();
+                if (friends != null && fragment instanceof FriendsListFragment) {
+                    List<VKApiUserFull> showingFriends = getShowingFriends(friends);
+                    mSearchResultEmpty = showingFriends.isEmpty();
+                    ((FriendsListFragment) fragment).setFriends(showingFriends);
+                    return;
+                }
+                break;
+            case myGroups:
+                List<VKApiCommunityFull> groups = mDataManager.getUsersGroups();
+                if (groups != null && fragment instanceof GroupsListFragment) {
+                    List<VKApiCommunityFull> showingGroups = getShowingGroups(groups);
+                    mSearchResultEmpty = showingGroups.isEmpty();
+                    ((GroupsListFragment) fragment).setGroups(showingGroups);
+                    return;
+                }
+                break;
+        }
+        refreshFriendsListFragment();
+    }
+
+    private boolean isSearching() {
+        return mQuery != null && !mQuery.equals("");
+    }
+
+    /**
+     * Друзья, подходящие под поисковый запрос.
+     */
+    private List<VKApiUserFull> getShowingFriends(List<VKApiUserFull> friends) {
+        if (!isSearching()) {
+            return friends;
+        }
+        List<VKApiUserFull> showingFriends = new ArrayList<>();
+
+        // поиск не зависит от регистра.
+        mQuery = mQuery.toLowerCase();
+        for (VKApiUserFull friend : friends) {
+            if (friend.first_name.toLowerCase().startsWith(mQuery) || friend.last_name.toLowerCase().startsWith(mQuery)) {
+                showingFriends.add(friend);
+            }
+        }
+        return showingFriends;
+    }
+
+    /**
+     * Группы, подходящие под поисковый запрос.
+     */
+    private List<VKApiCommunityFull> getShowingGroups(List<VKApiCommunityFull> groups) {
+        if (!isSearching()) {
+            return groups;
+        }
+        List<VKApiCommunityFull> showingGroups = new ArrayList<>();
+
+        // поиск не зависит от регистра.
+        mQuery = mQuery.toLowerCase();
+        for (VKApiCommunityFull group : groups) {
+            if (group.name.toLowerCase().contains(mQuery)) {
+                showingGroups.add(group);
+            }
+        }
+        return showingGroups;
+    }
+
     private void refreshFriendsListFragment() {
+        mListFragmentOutdated = false;
         setRefreshLayoutEnable(true);
 
         switch (mCurrentFragmentType) {
             case myFriends:
-                VKUsersArray friends = mDataManager.getUsersFriends();
+                List<VKApiUserFull> friends = mDataManager.getUsersFriends();
                 if (friends != null) {
                     setActionButtonVisibility(View.VISIBLE);
-                    VKUsersArray showingFriends;
-                    String emptyText;
-                    if (mQuery == null || mQuery.equals("")) {
-                        showingFriends = friends;
-                        emptyText = getString(R.string.no_friends);
-                    } else {
-                        showingFriends = new VKUsersArray();
-                        emptyText = getString(R.string.nothing_found);
-
-                        // поиск не зависит от регистра.
-                        mQuery = mQuery.toLowerCase();
-                        for (VKApiUserFull friend : friends) {
-                            if (friend.first_name.toLowerCase().startsWith(mQuery) || friend.last_name.toLowerCase().startsWith(mQuery)) {
-                                showingFriends.add(friend);
-                            }
-                        }
-                    }
+                    List<VKApiUserFull> showingFriends = getShowingFriends(friends);
+                    String emptyText = getString(isSearching() ? R.string.nothing_found : R.string.no_friends);
                     mSearchResultEmpty = showingFriends.isEmpty();
                     setListFragment(FriendsListFragment.newInstance(showingFriends, emptyText));
                 } else {
@@ -265,26 +356,11 @@ public class LoadingListActivity extends AbstractVkListActivity implements Abstr
                 }
                 break;
             case myGroups:
-                VKApiCommunityArray_Fix groups = mDataManager.getUsersGroups();
+                List<VKApiCommunityFull> groups = mDataManager.getUsersGroups();
                 if (groups != null) {
                     setActionButtonVisibility(View.VISIBLE);
-                    VKApiCommunityArray_Fix showingGroups;
-                    String emptyText;
-                    if (mQuery == null || mQuery.equals("")) {
-                        emptyText = getString(R.string.no_groups);
-                        showingGroups = groups;
-                    } else {
-                        showingGroups = new VKApiCommunityArray_Fix();
-                        emptyText = getString(R.string.nothing_found);
-
-                        // поиск не зависит от регистра.
-                        mQuery = mQuery.toLowerCase();
-                        for (VKApiCommunityFull group : groups) {
-                            if (group.name.toLowerCase().contains(mQuery)) {
-                                showingGroups.add(group);
-                            }
-                        }
-                    }
+                    List<VKApiCommunityFull> showingGroups = getShowingGroups(groups);
+                    String emptyText = getString(isSearching() ? R.string.nothing_found : R.string.no_groups);
                     mSearchResultEmpty = showingGroups.isEmpty();
                     setListFragment(GroupsListFragment.newInstance(showingGroups, emptyText));
                 } else {
@@ -344,7 +420,7 @@ public class LoadingListActivity extends AbstractVkListActivity implements Abstr
 
     @Override
     public void onListViewScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
-        boolean isLoading = mDataManager.getFetchingState() == DataManager.FetchingState.loading;
+        boolean isLoading = mDataManager.isLoading();
         boolean b = isLoading || mSearchResultEmpty
                 || (firstVisibleItem == 0) && (view.getChildAt(0) != null) && (view.getChildAt(0).getTop() == 0);
         setRefreshLayoutEnable(b);
@@ -1,5 +1,6 @@
 package com.qwert2603.vkmutualgroups.activities.vk_list_activities;
 
+import android.app.Fragment;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -8,8 +9,11 @@ import com.qwert2603.vkmutualgroups.R;
 import com.qwert2603.vkmutualgroups.data.DataManager;
 import com.qwert2603.vkmutualgroups.fragments.GroupsListFragment;
 import com.qwert2603.vkmutualgroups.util.VKApiCommunityArray_Fix;
+import com.vk.sdk.api.model.VKApiCommunityFull;
 import com.vk.sdk.api.model.VKApiUserFull;
 
+import java.util.List;
+
 /**
  * Группы, общие с другом.
  */
@@ -25,6 +29,11 @@ public class MutualGroupsListActivity extends GroupsListActivity {
             updateActionButtonVisibility();
         }
 
+        @Override
+        public void onPartlyLoaded() {
+            updateActionButtonVisibility();
+        }
+
         @Override
         public void onCompleted(Void v) {
             updateActionButtonVisibility();
@@ -52,7 +61,11 @@ public class MutualGroupsListActivity extends GroupsListActivity {
         setActionButtonIcon(R.drawable.message);
         setActionButtonOnClickListener((v) -> sendMessage(mFriend.id));
 
-        VKApiCommunityArray_Fix groups;
+        setListFragment(GroupsListFragment.newInstance(getGroups(), getString(R.string.no_mutual_groups)));
+    }
+
+    private List<VKApiCommunityFull> getGroups() {
+        List<VKApiCommunityFull> groups;
         if (mFriend.id != 0) {
             groups = mDataManager.getGroupsMutualWithFriend(mFriend.id);
         } else {
@@ -62,7 +75,7 @@ public class MutualGroupsListActivity extends GroupsListActivity {
         if (groups == null) {
             groups = new VKApiCommunityArray_Fix();
         }
-        setListFragment(GroupsListFragment.newInstance(groups, getString(R.string.no_mutual_groups)));
+        return groups;
     }
 
     @Override
@@ -77,6 +90,14 @@ public class MutualGroupsListActivity extends GroupsListActivity {
         updateActionButtonVisibility();
     }
 
+    @Override
+    protected void onDataVersionChanged() {
+        Fragment fragment = getListFragment();
+        if (fragment instanceof GroupsListFragment) {
+            ((GroupsListFragment) fragment).setGroups(getGroups());
+        }
+    }
+
     @Override
     protected void notifyDataSetChanged() {
         super.notifyDataSetChanged();
@@ -12,16 +12,23 @@ import com.qwert2603.vkmutualgroups.data.DataManager;
 import com.qwert2603.vkmutualgroups.photo.PhotoManager;
 import com.vk.sdk.api.model.Identifiable;
 import com.vk.sdk.api.model.VKApiModel;
-import com.vk.sdk.api.model.VKList;
+
+import java.util.List;
 
 import static com.qwert2603.vkmutualgroups.data.DataManager.FetchingState.finished;
+import java.util.List;
+
+import static com.qwert2603.vkmutualgroups.data.DataManager.FetchingState.incomplete;
+import java.util.List;
+
+import static com.qwert2603.vkmutualgroups.data.DataManager.FetchingState.partlyLoaded;
 
 public abstract class AbstractAdapter<T extends VKApiModel & Identifiable> extends ArrayAdapter<T> {
     private DataManager mDataManager;
     private PhotoManager mPhotoManager;
     private Activity mActivity;
 
-    public AbstractAdapter(Activity activity, VKList<T> list) {
+    public AbstractAdapter(Activity activity, List<T> list) {
         super(activity, 0, list);
         mActivity = activity;
         mDataManager = DataManager.get(mActivity);
@@ -57,7 +64,8 @@ public abstract class AbstractAdapter<T extends VKApiModel & Identifiable> exten
 
         viewHolder.mTitleTextView.setText(getTitle(item));
 
-        if (mDataManager.getFetchingState() == finished) {
+        DataManager.FetchingState fetchingState = mDataManager.getFetchingState();
+        if (fetchingState == finished || fetchingState == partlyLoaded || fetchingState == incomplete) {
             viewHolder.mMutualsTextView.setText(getMutualsText(item));
         } else {
             viewHolder.mMutualsTextView.setText("");
@@ -5,16 +5,16 @@ import android.app.Activity;
 import com.qwert2603.vkmutualgroups.R;
 import com.qwert2603.vkmutualgroups.data.DataManager;
 import com.qwert2603.vkmutualgroups.photo.PhotoManager;
-import com.qwert2603.vkmutualgroups.util.VKApiCommunityArray_Fix;
 import com.vk.sdk.api.model.VKApiUserFull;
-import com.vk.sdk.api.model.VKUsersArray;
+
+import java.util.List;
 
 public class FriendAdapter extends AbstractAdapter<VKApiUserFull> {
     private DataManager mDataManager;
     private PhotoManager mPhotoManager;
     private Activity mActivity;
 
-    public FriendAdapter(Activity activity, VKUsersArray users) {
+    public FriendAdapter(Activity activity, List<VKApiUserFull> users) {
         super(activity, users);
         mActivity = activity;
         mDataManager = DataManager.get(mActivity);
@@ -28,9 +28,9 @@ public class FriendAdapter extends AbstractAdapter<VKApiUserFull> {
 
     @Override
     protected String getMutualsText(VKApiUserFull item) {
-        VKApiCommunityArray_Fix groups = mDataManager.getGroupsMutualWithFriend(item.id);
-        if (groups != null) {
-            return mActivity.getString(R.string.mutual, groups.size());
+        int groupsCount = mDataManager.getGroupsMutualWithFriendCount(item.id);
+        if (groupsCount >= 0) {
+            return mActivity.getString(R.string.mutual, groupsCount);
         } else {
             return "";
         }
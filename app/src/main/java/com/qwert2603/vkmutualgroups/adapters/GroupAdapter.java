@@ -5,16 +5,16 @@ import android.app.Activity;
 import com.qwert2603.vkmutualgroups.R;
 import com.qwert2603.vkmutualgroups.data.DataManager;
 import com.qwert2603.vkmutualgroups.photo.PhotoManager;
-import com.qwert2603.vkmutualgroups.util.VKApiCommunityArray_Fix;
 import com.vk.sdk.api.model.VKApiCommunityFull;
-import com.vk.sdk.api.model.VKUsersArray;
+
+import java.util.List;
 
 public class GroupAdapter extends AbstractAdapter<VKApiCommunityFull> {
     private DataManager mDataManager;
     private PhotoManager mPhotoManager;
     private Activity mActivity;
 
-    public GroupAdapter(Activity activity, VKApiCommunityArray_Fix groups) {
+    public GroupAdapter(Activity activity, List<VKApiCommunityFull> groups) {
         super(activity, groups);
         mActivity = activity;
         mDataManager = DataManager.get(mActivity);
@@ -28,9 +28,9 @@ public class GroupAdapter extends AbstractAdapter<VKApiCommunityFull> {
 
     @Override
     protected String getMutualsText(VKApiCommunityFull item) {
-        VKUsersArray friends = mDataManager.getFriendsInGroup(item.id);
-        if (friends != null) {
-            return mActivity.getString(R.string.friends, friends.size());
+        int friendsCount = mDataManager.getFriendsInGroupCount(item.id);
+        if (friendsCount >= 0) {
+            return mActivity.getString(R.string.friends, friendsCount);
         } else {
             return "";
         }
@@ -0,0 +1,134 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import android.os.SystemClock;
+
+import com.qwert2603.vkmutualgroups.util.VkRequestsSender;
+import com.vk.sdk.api.VKError;
+
+import java.util.Random;
+
+/**
+ * Политика повтора запросов, завершившихся ошибкой.
+ * Задержка растет экспоненциально и случайно уменьшается (jitter),
+ * чтобы повторные запросы разных частей не отправлялись одновременно.
+ * Ошибка "слишком много запросов в секунду" повторяется отдельно: с постоянной задержкой и большим лимитом,
+ * так как она говорит только о том, что запрос надо отправить чуть позже.
+ * Запрос, отклоненный из-за недоступности vkapi, повторяется после окончания размыкания предохранителя
+ * и не расходует лимит повторов: он не выполнялся, а загрузка должна пережить короткую недоступность.
+ * Но если vkapi недоступен дольше {@link VkRequestsSender#MAX_UNAVAILABLE_TIME}, запрос завершается ошибкой,
+ * чтобы загрузка без сети не ждала бесконечно.
+ */
+class ChunkRetryPolicy {
+
+    /**
+     * Сколько раз можно повторить запрос после обычной ошибки.
+     */
+    static final int MAX_RETRIES = 4;
+
+    /**
+     * Сколько раз можно повторить запрос после ошибки "слишком много запросов в секунду".
+     */
+    static final int MAX_TOO_MANY_REQUESTS_RETRIES = 10;
+
+    /**
+     * Задержка перед первым повтором после обычной ошибки (мс).
+     */
+    static final long BASE_DELAY = 500;
+
+    /**
+     * Максимальная задержка перед повтором (мс).
+     */
+    static final long MAX_DELAY = 30 * 1000;
+
+    /**
+     * Задержка перед повтором после ошибки "слишком много запросов в секунду" (мс).
+     * Чуть больше секунды, чтобы окно ограничения в 3 запроса в секунду сдвинулось.
+     */
+    static final long TOO_MANY_REQUESTS_DELAY = 1100;
+
+    /**
+     * Наибольшая случайная добавка к задержке повтора запроса, отклоненного из-за недоступности vkapi (мс).
+     * Повторы все равно ждут результата пробного запроса, так что она лишь немного разносит их.
+     */
+    static final long UNAVAILABLE_JITTER = 500;
+
+    private static final Random sRandom = new Random();
+
+    /**
+     * Сколько раз запрос уже был повторен после обычных ошибок.
+     */
+    private int mRetries = 0;
+
+    /**
+     * Сколько раз запрос уже был повторен после ошибки "слишком много запросов в секунду".
+     */
+    private int mTooManyRequestsRetries = 0;
+
+    /**
+     * Когда ({@link SystemClock#uptimeMillis()}) запрос впервые был отклонен из-за недоступности vkapi
+     * или -1, если такого не было.
+     */
+    private long mUnavailableSince = -1;
+
+    /**
+     * Ошибка flood control (слишком много запросов в секунду, однотипных или за сутки).
+     */
+    static boolean isTooManyRequests(VKError error) {
+        return VkRequestsSender.isFloodError(error);
+    }
+
+    /**
+     * Запрос не отправлен, так как vkapi недоступен (предохранитель разомкнут).
+     */
+    static boolean isUnavailable(VKError error) {
+        return VkRequestsSender.isUnavailableError(error);
+    }
+
+    /**
+     * Учесть ошибку и определить, через сколько мс надо повторить запрос.
+     *
+     * @return задержка перед повтором или -1, если лимит повторов исчерпан.
+     */
+    synchronized long onError(VKError error) {
+        if (isUnavailable(error)) {
+            long now = SystemClock.uptimeMillis();
+            if (mUnavailableSince < 0) {
+                mUnavailableSince = now;
+            }
+            long unavailableUntil = VkRequestsSender.getUnavailableUntil();
+            if (unavailableUntil - mUnavailableSince > VkRequestsSender.MAX_UNAVAILABLE_TIME) {
+                return -1;
+            }
+            return Math.max(0, unavailableUntil - now) + jitter(UNAVAILABLE_JITTER);
+        }
+        if (isTooManyRequests(error)) {
+            if (mTooManyRequestsRetries >= MAX_TOO_MANY_REQUESTS_RETRIES) {
+                return -1;
+            }
+            ++mTooManyRequestsRetries;
+            return TOO_MANY_REQUESTS_DELAY + jitter(TOO_MANY_REQUESTS_DELAY / 2);
+        }
+        return onError();
+    }
+
+    /**
+     * Учесть ошибку, не связанную с конкретным {@link VKError} (например, неудачные вызовы внутри vkapi.execute).
+     *
+     * @return задержка перед повтором или -1, если лимит повторов исчерпан.
+     */
+    synchronized long onError() {
+        if (mRetries >= MAX_RETRIES) {
+            return -1;
+        }
+        long delay = Math.min(MAX_DELAY, BASE_DELAY << mRetries);
+        ++mRetries;
+        return delay / 2 + jitter(delay / 2);
+    }
+
+    private static long jitter(long bound) {
+        synchronized (sRandom) {
+            return (long) (sRandom.nextDouble() * bound);
+        }
+    }
+
+}
@@ -1,7 +1,10 @@
 package com.qwert2603.vkmutualgroups.data;
 
 import android.content.Context;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
@@ -16,23 +19,23 @@ import com.vk.sdk.api.VKRequest;
 import com.vk.sdk.api.VKResponse;
 import com.vk.sdk.api.model.VKApiCommunityFull;
 import com.vk.sdk.api.model.VKApiUserFull;
-import com.vk.sdk.api.model.VKList;
 import com.vk.sdk.api.model.VKUsersArray;
 
 import org.json.JSONException;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Загружает и хранит список друзей в алфавитном порядке и в порядке убывания кол-ва общих групп.
  * Загружает и хранит список групп в порядке по умолчанию и в порядке убывания друзей в них.
  * Также подсчитывает кол-во общих групп.
  * Позволяет добавлять и удалять друзей, вступать в группы и выходить из групп.
+ *
+ * Данные хранятся в неизменяемых снимках ({@link DataSnapshot}). Каждая загрузка или изменение
+ * строит следующий снимок в отдельном потоке и атомарно заменяет им текущий,
+ * так что читатели видят согласованные данные без блокировок.
  */
 public class DataManager {
 
@@ -42,6 +45,9 @@ public class DataManager {
 
     private DataManager(Context context) {
         mContext = context.getApplicationContext();
+        HandlerThread snapshotThread = new HandlerThread(TAG);
+        snapshotThread.start();
+        mSnapshotHandler = new Handler(snapshotThread.getLooper());
         clear();
     }
 
@@ -55,44 +61,21 @@ public class DataManager {
     private Context mContext;
 
     /**
-     * Друзья пользователя в алфавитном порядке.
+     * Текущий снимок данных: друзья, группы и информация об общих группах.
+     * Снимок заменяется целиком, поэтому читатели из любого потока видят согласованные данные без блокировок.
      */
-    private VKUsersArray mUsersFriendsByAlphabet;
+    private final AtomicReference<DataSnapshot> mSnapshot = new AtomicReference<>();
 
     /**
-     * Друзья пользователя в порядке уменьшения кол-ва общих групп.
+     * Номер текущей загрузки. Увеличивается при очистке данных в {@link #clear()}.
      */
-    private VKUsersArray mUsersFriendsByMutual;
+    private int mGeneration = 0;
 
     /**
-     * Карта: "id друга" - "объект этого друга".
+     * Обработчик потока, в котором строятся новые снимки.
+     * Поток один, чтобы каждое изменение применялось к результату предыдущего.
      */
-    private HashMap<Integer, VKApiUserFull> mUserFriendsMap;
-
-    /**
-     * Группы пользователя в порядке по умолчанию.
-     */
-    private VKApiCommunityArray_Fix mUsersGroupsByDefault;
-
-    /**
-     * Группы пользователя в порядке уменьшения кол-ва друзей в них.
-     */
-    private VKApiCommunityArray_Fix mUsersGroupsByFriends;
-
-    /**
-     * Карта: "id группы" - "объект этой группы".
-     */
-    private HashMap<Integer, VKApiCommunityFull> mUserGroupsMap;
-
-    /**
-     * Карта: "id друга" - "общие с ним группы"
-     */
-    private Map<Integer, VKApiCommunityArray_Fix> mGroupsMutualWithFriend;
-
-    /**
-     * Карта: "id группы" - "друзья в ней"
-     */
-    private Map<Integer, VKUsersArray> mFriendsInGroup;
+    private final Handler mSnapshotHandler;
 
     /**
      * Какая сортировка друзей применена в настоящий момент.
@@ -133,56 +116,105 @@ public class DataManager {
 
     /**
      * Возможные состояния загрузки.
+     * partlyLoaded - друзья и группы загружены, информация об общих группах еще загружается
+     * и появляется в списках по частям.
+     * incomplete - загрузка по частям прервалась ошибкой: уже загруженное показывается,
+     * но кол-ва общих групп и друзей в группах могут быть меньше настоящих.
      */
     public enum FetchingState {
         notStarted,
         loading,
-        finished
+        partlyLoaded,
+        finished,
+        incomplete
     }
 
     /**
      * Друзья пользователя, отсортированные в соответствии с {@link #mFriendsSortState}.
+     * Список только для чтения: он читает снимок данных и не копирует его.
      */
     @Nullable
-    public VKUsersArray getUsersFriends() {
+    public List<VKApiUserFull> getUsersFriends() {
+        DataSnapshot snapshot = mSnapshot.get();
         switch (mFriendsSortState) {
             case notSorted:
                 return null;
             case byAlphabet:
-                return mUsersFriendsByAlphabet;
+                return snapshot.getFriendsByAlphabet();
             case byMutual:
-                return mUsersFriendsByMutual;
+                return snapshot.getFriendsByMutual();
         }
         return null;
     }
 
     /**
      * Группы пользователя, отсортированные в соответствии с {@link #mGroupsSortState}.
+     * Список только для чтения, как {@link #getUsersFriends()}.
      */
     @Nullable
-    public VKApiCommunityArray_Fix getUsersGroups() {
+    public List<VKApiCommunityFull> getUsersGroups() {
+        DataSnapshot snapshot = mSnapshot.get();
         switch (mGroupsSortState) {
             case notSorted:
                 return null;
             case byDefault:
-                return mUsersGroupsByDefault;
+                return snapshot.getGroupsByDefault();
             case byFriends:
-                return mUsersGroupsByFriends;
+                return snapshot.getGroupsByFriends();
         }
         return null;
     }
 
+    /**
+     * Версия данных. Изменяется при каждой публикации нового снимка данных.
+     * Списки, полученные из DataManager, не изменяются, поэтому, если версия изменилась, их надо получить заново.
+     */
+    public int getDataVersion() {
+        return mSnapshot.get().getVersion();
+    }
+
+    /**
+     * Сколько списков групп других пользователей хранится в {@link #mUsersGroupsCache}.
+     */
+    private static final int USERS_GROUPS_CACHE_SIZE = 32;
+
+    /**
+     * Сколько мс список групп другого пользователя берется из {@link #mUsersGroupsCache}, а не загружается заново.
+     */
+    private static final long USERS_GROUPS_CACHE_TTL = 2 * 60 * 1000;
+
+    /**
+     * Загруженные списки групп других пользователей.
+     * Карта: "id пользователя" - "его группы".
+     */
+    private final ResponseCache<Integer, VKApiCommunityArray_Fix> mUsersGroupsCache
+            = new ResponseCache<>("users groups", USERS_GROUPS_CACHE_SIZE, USERS_GROUPS_CACHE_TTL);
+
     /**
      * Загрузить список групп пользователя (друга, например) по его id.
+     * Недавно загруженный список берется из кеша, а если он уже загружается - используется тот же запрос.
+     * Переданный в listener список может быть передан и другим, изменять его нельзя.
      */
     public void fetchUsersGroups(int userId, Listener<VKApiCommunityArray_Fix> listener) {
+        mUsersGroupsCache.get(userId, this::doFetchUsersGroups, listener);
+    }
+
+    private void doFetchUsersGroups(int userId, Listener<VKApiCommunityArray_Fix> listener) {
         VKParameters parameters = VKParameters.from(VKApiConst.USER_ID, userId, VKApiConst.EXTENDED, 1, VKApiConst.FIELDS, "photo_50");
         VKRequest request = VKApi.groups().get(parameters);
         VkRequestsSender.sendRequest(request, new VKRequest.VKRequestListener() {
             @Override
-            @SuppressWarnings("unchecked")
             public void onComplete(VKResponse response) {
-                listener.onCompleted(new VKApiCommunityArray_Fix((VKList<VKApiCommunityFull>) response.parsedModel));
+                // запрос может быть отправлен в пачке, тогда parsedModel == null.
+                VKApiCommunityArray_Fix groups = new VKApiCommunityArray_Fix();
+                try {
+                    groups.parse(response.json);
+                } catch (JSONException e) {
+                    Log.e(TAG, "fetchUsersGroups ## ERROR == " + e);
+                    listener.onError(String.valueOf(e));
+                    return;
+                }
+                listener.onCompleted(groups);
             }
 
             @Override
@@ -195,18 +227,36 @@ public class DataManager {
 
     /**
      * Группы, общие с другом.
+     * Каждый раз создается новый список.
      */
     @Nullable
     public VKApiCommunityArray_Fix getGroupsMutualWithFriend(int userId) {
-        return mGroupsMutualWithFriend.get(userId);
+        return mSnapshot.get().getGroupsMutualWithFriend(userId);
     }
 
     /**
      * Список друзей в группе.
+     * Каждый раз создается новый список.
      */
     @Nullable
     public VKUsersArray getFriendsInGroup(int groupId) {
-        return mFriendsInGroup.get(groupId);
+        return mSnapshot.get().getFriendsInGroup(groupId);
+    }
+
+    /**
+     * Кол-во групп, общих с другом.
+     * Если друг неизвестен, -1.
+     */
+    public int getGroupsMutualWithFriendCount(int userId) {
+        return mSnapshot.get().getGroupsCount(userId);
+    }
+
+    /**
+     * Кол-во друзей в группе.
+     * Если группа неизвестна, -1.
+     */
+    public int getFriendsInGroupCount(int groupId) {
+        return mSnapshot.get().getFriendsCount(groupId);
     }
 
     /**
@@ -215,7 +265,7 @@ public class DataManager {
      */
     @Nullable
     public VKApiUserFull getUsersFriendById(int id) {
-        return mUserFriendsMap.get(id);
+        return mSnapshot.get().getFriend(id);
     }
 
     /**
@@ -224,14 +274,14 @@ public class DataManager {
      */
     @Nullable
     public VKApiCommunityFull getUsersGroupById(int id) {
-        return mUserGroupsMap.get(id);
+        return mSnapshot.get().getGroup(id);
     }
 
     /**
      * Отсортировать друзей в порядке уменьшения кол-ва общих групп.
      */
     public void sortFriendsByMutual() {
-        if (mUsersFriendsByMutual != null) {
+        if (!mSnapshot.get().isEmpty()) {
             mFriendsSortState = FriendsSortState.byMutual;
         }
     }
@@ -240,7 +290,7 @@ public class DataManager {
      * Отсортировать друзей в алфавитном порядке.
      */
     public void sortFriendsByAlphabet() {
-        if (mUsersFriendsByAlphabet != null) {
+        if (!mSnapshot.get().isEmpty()) {
             mFriendsSortState = FriendsSortState.byAlphabet;
         }
     }
@@ -256,7 +306,7 @@ public class DataManager {
      * Отсортировать группы в порядке по умолчанию.
      */
     public void sortGroupsByDefault() {
-        if (mUsersGroupsByDefault != null) {
+        if (!mSnapshot.get().isEmpty()) {
             mGroupsSortState = GroupsSortState.byDefault;
         }
     }
@@ -265,7 +315,7 @@ public class DataManager {
      * Отсортировать гурппы в порядке убывания друзей в них.
      */
     public void sortGroupsByFriends() {
-        if (mUsersGroupsByFriends != null) {
+        if (!mSnapshot.get().isEmpty()) {
             mGroupsSortState = GroupsSortState.byFriends;
         }
     }
@@ -284,11 +334,24 @@ public class DataManager {
         return mFetchingState;
     }
 
+    /**
+     * Идет ли загрузка (в том числе, если часть данных уже загружена).
+     */
+    public boolean isLoading() {
+        return mFetchingState == FetchingState.loading || mFetchingState == FetchingState.partlyLoaded;
+    }
+
     /**
      * Слушатель событияй начала/окончания/ошибки загрузки.
      */
     public interface DataLoadingListener extends Listener<Void> {
         void onLoadingStarted();
+
+        /**
+         * Загружена очередная часть данных ({@link FetchingState#partlyLoaded}).
+         * Опубликован новый снимок данных: списки друзей и групп надо получить заново.
+         */
+        void onPartlyLoaded();
     }
 
     private HashSet<DataLoadingListener> mDataLoadingListeners = new HashSet<>();
@@ -307,6 +370,12 @@ public class DataManager {
         }
     }
 
+    private void notifyOnPartlyLoaded() {
+        for (DataLoadingListener listener : mDataLoadingListeners) {
+            listener.onPartlyLoaded();
+        }
+    }
+
     private void notifyOnLoadingCompleted() {
         for (DataLoadingListener listener : mDataLoadingListeners) {
             listener.onCompleted(null);
@@ -327,9 +396,8 @@ public class DataManager {
         VkRequestsSender.sendRequest(request, new VKRequest.VKRequestListener() {
             @Override
             public void onComplete(VKResponse response) {
-                deleteFriendFromData(friendId);
                 clearDataOnDevice();
-                listener.onCompleted(null);
+                deleteFriendFromData(friendId, () -> listener.onCompleted(null));
             }
 
             @Override
@@ -395,9 +463,8 @@ public class DataManager {
         VkRequestsSender.sendRequest(request, new VKRequest.VKRequestListener() {
             @Override
             public void onComplete(VKResponse response) {
-                deleteGroupFromData(groupId);
                 clearDataOnDevice();
-                listener.onCompleted(null);
+                deleteGroupFromData(groupId, () -> listener.onCompleted(null));
             }
 
             @Override
@@ -475,152 +542,88 @@ public class DataManager {
 
     /**
      * Удалить все данные о друге.
+     * onDeleted вызывается в UI-потоке после публикации снимка без друга.
      */
-    private void deleteFriendFromData(int friendId) {
-        VKApiUserFull friend = mUserFriendsMap.get(friendId);
-
-        mUsersFriendsByAlphabet.remove(friend);
-        mUsersFriendsByMutual.remove(friend);
-
-        VKApiCommunityArray_Fix groups = mGroupsMutualWithFriend.get(friend.id);
-        if (groups != null) {
-            for (VKApiCommunityFull group : groups) {
-                mFriendsInGroup.get(group.id).remove(friend);
-            }
-        }
-        mGroupsMutualWithFriend.remove(friend.id);
-
-        mUserFriendsMap.remove(friendId);
-
-        doSortFriendsByMutuals();
-        doSortGroupsByMutuals();
+    private void deleteFriendFromData(int friendId, Runnable onDeleted) {
+        updateSnapshot(snapshot -> snapshot.withoutFriend(friendId), onDeleted);
     }
 
     /**
      * Удалить все данные о группе.
+     * onDeleted вызывается в UI-потоке после публикации снимка без группы.
      */
-    private void deleteGroupFromData(int groupId) {
-        VKApiCommunityFull group = mUserGroupsMap.get(groupId);
-
-        mUsersGroupsByDefault.remove(group);
-        mUsersGroupsByFriends.remove(group);
-
-        VKUsersArray friends = mFriendsInGroup.get(group.id);
-        if (friends != null) {
-            for (VKApiUserFull friend : friends) {
-                mGroupsMutualWithFriend.get(friend.id).remove(group);
-            }
-        }
-        mFriendsInGroup.remove(group.id);
-
-        mUserGroupsMap.remove(groupId);
-
-        doSortFriendsByMutuals();
-        doSortGroupsByMutuals();
+    private void deleteGroupFromData(int groupId, Runnable onDeleted) {
+        updateSnapshot(snapshot -> snapshot.withoutGroup(groupId), onDeleted);
     }
 
     /**
      * Добавить данные о друге, который только что был добавлен.
      * При этом загрузить через vkapi список общих групп с ним.
+     * Друг появится в списках после загрузки.
      */
     private void addFriendToData(VKApiUserFull friend, Listener<Void> listener) {
-        mUsersFriendsByAlphabet.add(friend);
-        doSortFriendsByAlphabet();
-        mUsersFriendsByMutual.add(friend);
-
-        mUserFriendsMap.put(friend.id, friend);
-        mGroupsMutualWithFriend.put(friend.id, new VKApiCommunityArray_Fix());
-
         VKUsersArray friends = new VKUsersArray();
         friends.add(friend);
 
         Data data = new Data();
         data.mFriends = friends;
-        data.mGroups = mUsersGroupsByDefault;
-
-        mFetchingState = FetchingState.loading;
-        notifyOnLoadingStarted();
-        new VKDataProvider(null).loadIsMember(data, new Listener<Data>() {
-            @Override
-            public void onCompleted(Data data1) {
-                if (checkAndClear()) {
-                    return;
-                }
-                new AsyncTask<Void, Void, Void>() {
-                    @Override
-                    protected Void doInBackground(Void... params) {
-                        addIsMemberFromData(data);
-                        doSortFriendsByMutuals();
-                        doSortGroupsByMutuals();
-                        return null;
-                    }
-
-                    @Override
-                    protected void onPostExecute(Void aVoid) {
-                        mFetchingState = FetchingState.finished;
-                        listener.onCompleted(null);
-                        notifyOnLoadingCompleted();
-                    }
-                }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-            }
-
-            @Override
-            public void onError(String e) {
-                mNeedClearing = true;
-                checkAndClear();
-                listener.onError(e);
-                notifyOnLoadingError(e);
-                Log.e(TAG, e);
-            }
-        });
+        data.mGroups = mSnapshot.get().copyGroups();
+        addToData(data, snapshot -> snapshot.withFriend(friend, data.mIsMember), listener);
     }
 
     /**
      * Добавить данные о группе, в которую вступил пользователь.
      * При этом загрузить через vkapi список друзей, которые уже есть в этой группе.
+     * Группа появится в списках после загрузки.
      */
     private void addGroupToData(VKApiCommunityFull group, Listener<Void> listener) {
-        mUsersGroupsByDefault.add(group);
-        mUsersGroupsByFriends.add(group);
-
-        mUserGroupsMap.put(group.id, group);
-        mFriendsInGroup.put(group.id, new VKUsersArray());
-
         VKApiCommunityArray_Fix groups = new VKApiCommunityArray_Fix();
         groups.add(group);
 
         Data data = new Data();
-        data.mFriends = mUsersFriendsByAlphabet;
+        data.mFriends = mSnapshot.get().copyFriends();
         data.mGroups = groups;
+        addToData(data, snapshot -> snapshot.withGroup(group, data.mIsMember), listener);
+    }
+
+    /**
+     * Загрузить информацию о друзьях в группах для data и добавить ее в данные через update.
+     * Если идет загрузка (в том числе по частям или с устройства), добавление не начинается:
+     * listener получает ошибку {@link #ERROR_LOADING_IN_PROGRESS}. Снимок загрузки по частям при пересортировке
+     * берет информацию из матрицы загрузчика, а добавленных друга или группы в ней нет.
+     * Если добавление отменяется через {@link #clear()}, listener получает ошибку {@link #ERROR_CANCELLED}.
+     */
+    private void addToData(Data data, SnapshotUpdate update, Listener<Void> listener) {
+        if (isLoading()) {
+            Log.e(TAG, "addToData ## " + ERROR_LOADING_IN_PROGRESS);
+            listener.onError(ERROR_LOADING_IN_PROGRESS);
+            return;
+        }
 
         mFetchingState = FetchingState.loading;
         notifyOnLoadingStarted();
-        new VKDataProvider(null).loadIsMember(data, new Listener<Data>() {
+        VKDataProvider vkDataProvider = new VKDataProvider(null);
+        mLoadingProvider = vkDataProvider;
+        mAddingListener = listener;
+        vkDataProvider.loadIsMember(data, new Listener<Data>() {
             @Override
             public void onCompleted(Data data1) {
+                mLoadingProvider = null;
                 if (checkAndClear()) {
                     return;
                 }
-                new AsyncTask<Void, Void, Void>() {
-                    @Override
-                    protected Void doInBackground(Void... params) {
-                        addIsMemberFromData(data);
-                        doSortFriendsByMutuals();
-                        doSortGroupsByMutuals();
-                        return null;
-                    }
-
-                    @Override
-                    protected void onPostExecute(Void aVoid) {
-                        mFetchingState = FetchingState.finished;
-                        listener.onCompleted(null);
-                        notifyOnLoadingCompleted();
-                    }
-                }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                updateSnapshot(update, () -> {
+                    mAddingListener = null;
+                    mFetchingState = FetchingState.finished;
+                    listener.onCompleted(null);
+                    notifyOnLoadingCompleted();
+                });
             }
 
             @Override
             public void onError(String e) {
+                mLoadingProvider = null;
+                mAddingListener = null;
                 mNeedClearing = true;
                 checkAndClear();
                 listener.onError(e);
@@ -630,36 +633,107 @@ public class DataManager {
         });
     }
 
+    /**
+     * Изменение данных: следующий снимок, построенный из текущего.
+     */
+    private interface SnapshotUpdate {
+        DataSnapshot apply(DataSnapshot snapshot);
+    }
+
+    /**
+     * Построить следующий снимок в потоке снимков и атомарно заменить им текущий.
+     * onPublished вызывается в UI-потоке после замены.
+     * Если до этого данные были очищены ({@link #clear()}), снимок отбрасывается, и onPublished не вызывается.
+     */
+    private void updateSnapshot(SnapshotUpdate update, Runnable onPublished) {
+        int generation = mGeneration;
+        mSnapshotHandler.post(() -> {
+            DataSnapshot snapshot = mSnapshot.get();
+            if (snapshot.getGeneration() != generation) {
+                return;
+            }
+            DataSnapshot next = update.apply(snapshot);
+            if (mSnapshot.compareAndSet(snapshot, next)) {
+                mHandler.post(() -> {
+                    if (mGeneration == generation) {
+                        onPublished.run();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Загружена ли информация о друзьях в группах полностью.
+     * Только такие данные можно использовать для обновления по разнице.
+     */
+    private boolean mIsMemberComplete = false;
+
     /**
      * Надо ли прервать скачивание и вызвать {@link #clear()}.
      */
     private volatile boolean mNeedClearing = false;
 
+    /**
+     * Загрузчик с vk.com, который выполняется в настоящий момент.
+     * Его можно отменить сразу. Если == null, загрузка (если идет) отменена быть не может.
+     */
+    private VKDataProvider mLoadingProvider;
+
+    /**
+     * Слушатель добавления друга или группы ({@link #addToData}), которое еще не опубликовано.
+     * Если данные очищаются раньше, он получает ошибку {@link #ERROR_CANCELLED}.
+     */
+    private Listener<Void> mAddingListener;
+
+    /**
+     * Ошибка добавления друга или группы, пока идет загрузка.
+     */
+    private static final String ERROR_LOADING_IN_PROGRESS = "loading is in progress";
+
+    /**
+     * Ошибка добавления друга или группы, отмененного очисткой данных.
+     */
+    private static final String ERROR_CANCELLED = "cancelled";
+
     /**
      * Очистить все поля.
-     * Если эта функция вызвана во время за грузки, то mNeedClearing присваивается true;
+     * Если идет загрузка с vk.com, она отменяется: оставшиеся запросы не отправляются.
+     * Если эта функция вызвана во время другой загрузки (с устройства или обработки загруженного),
+     * то mNeedClearing присваивается true;
      * и функция будет вызвана заново после завершения загрузки,
      * так как mNeedClearing будет равно true.
      */
     public void clear() {
-        if (mFetchingState == FetchingState.loading) {
+        mUsersGroupsCache.clear();
+        if (isLoading() && mLoadingProvider != null) {
+            mLoadingProvider.cancel();
+            mLoadingProvider = null;
+            mFetchingState = FetchingState.notStarted;
+        }
+        if (isLoading()) {
             mNeedClearing = true;
         } else {
-            mUsersFriendsByAlphabet = null;
-            mUsersFriendsByMutual = null;
-            mUserFriendsMap = new HashMap<>();
+            mHandler.removeCallbacks(mRankingRunnable);
+            mRankingScheduled = false;
 
-            mUsersGroupsByDefault = null;
-            mUsersGroupsByFriends = null;
-            mUserGroupsMap = new HashMap<>();
-
-            mGroupsMutualWithFriend = new HashMap<>();
-            mFriendsInGroup = new HashMap<>();
+            // снимки, которые еще строятся для прежних данных, будут отброшены.
+            ++mGeneration;
+            mSnapshot.set(DataSnapshot.empty(mGeneration));
 
             mFriendsSortState = FriendsSortState.notSorted;
             mGroupsSortState = GroupsSortState.notSorted;
             mFetchingState = FetchingState.notStarted;
+            mIsMemberComplete = false;
             mNeedClearing = false;
+
+            Listener<Void> addingListener = mAddingListener;
+            mAddingListener = null;
+            if (addingListener != null) {
+                // добавление уже не будет опубликовано.
+                addingListener.onError(ERROR_CANCELLED);
+                notifyOnLoadingError(ERROR_CANCELLED);
+            }
         }
     }
 
@@ -670,6 +744,14 @@ public class DataManager {
         DeviceDataSaver.get(mContext).clear();
     }
 
+    /**
+     * Удалить контрольную точку незавершенной загрузки.
+     * Следующая загрузка с vk.com начнется с начала.
+     */
+    public void clearLoadingCheckpoint() {
+        DeviceDataSaver.get(mContext).clearCheckpoint();
+    }
+
     /**
      * Проверить и, если надо, выполнить {@link #clear()} и {@link #clearDataOnDevice()} ()}.
      */
@@ -689,169 +771,241 @@ public class DataManager {
      * @param refresh - загрузить ли данные заново с vk.com.
      */
     public void load(boolean refresh) {
-        if (mFetchingState == FetchingState.loading) {
+        load(refresh, false);
+    }
+
+    /**
+     * Загрузить данные с устройства, если они там есть. Иначе - загрузить с vk.com.
+     * @param refresh - загрузить ли данные заново с vk.com.
+     * @param delta - обновить ли данные по разнице с текущими:
+     *              проверить только новых друзей и новые группы, а удаленных - просто убрать.
+     *              Если текущие данные загружены не полностью или все пары не проверялись дольше
+     *              {@link IsMemberCheckpoint#MAX_AGE}, они загружаются заново целиком.
+     */
+    public void load(boolean refresh, boolean delta) {
+        if (isLoading() && refresh) {
+            // загрузка заново отменяет текущую загрузку.
+            clear();
+        }
+        if (isLoading()) {
             Log.e(TAG, "Loading is already on!");
             return;
         }
+        if (delta && isFullCheckOutdated()) {
+            // членство в давно проверенных парах могло измениться.
+            delta = false;
+        }
+        Data previousData = refresh && delta ? getCurrentData() : null;
         clear();
         mFetchingState = FetchingState.loading;
         notifyOnLoadingStarted();
 
         DataProvider dataProvider;
+        boolean fullCheck;
         DeviceDataProvider deviceDataProvider = DeviceDataProvider.get(mContext);
         if (!refresh && deviceDataProvider.isDataExist()) {
             dataProvider = deviceDataProvider;
+            fullCheck = false;
         } else {
-            dataProvider = new VKDataProvider(DeviceDataSaver.get(mContext));
+            fullCheck = previousData == null;
+            VKDataProvider vkDataProvider = new VKDataProvider(DeviceDataSaver.get(mContext));
+            vkDataProvider.setPartialResultsListener(mPartialResultsListener);
+            vkDataProvider.setCheckpointStorage(DeviceDataSaver.get(mContext));
+            vkDataProvider.setPreviousData(previousData);
+            mLoadingProvider = vkDataProvider;
+            dataProvider = vkDataProvider;
         }
 
         dataProvider.load(new Listener<Data>() {
             @Override
             public void onCompleted(Data data) {
+                mLoadingProvider = null;
                 if (checkAndClear()) {
                     return;
                 }
+                if (fullCheck) {
+                    setFullCheckTimestamp(System.currentTimeMillis());
+                }
+                if (mFetchingState == FetchingState.partlyLoaded) {
+                    onPartialLoadingFinished();
+                    return;
+                }
 
-                new AsyncTask<Void, Void, Void>() {
-                    @Override
-                    protected Void doInBackground(Void... params) {
-                        mUsersFriendsByAlphabet = data.mFriends;
-                        onFriendsLoaded();
-
-                        mUsersGroupsByDefault = data.mGroups;
-                        onGroupsLoaded();
-
-                        addIsMemberFromData(data);
-                        onMutualsLoaded();
-                        return null;
-                    }
-
-                    @Override
-                    protected void onPostExecute(Void aVoid) {
-                        mFetchingState = FetchingState.finished;
-                        notifyOnLoadingCompleted();
-                    }
-                }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                updateSnapshot(snapshot -> DataSnapshot.create(snapshot.getGeneration(), data.mFriends, data.mGroups, data.mIsMember), () -> {
+                    onDataLoaded();
+                    mFetchingState = FetchingState.finished;
+                    mIsMemberComplete = true;
+                    notifyOnLoadingCompleted();
+                });
             }
 
             @Override
             public void onError(String e) {
+                mLoadingProvider = null;
+                Log.e(TAG, e);
+                if (!mNeedClearing && mFetchingState == FetchingState.partlyLoaded) {
+                    // оставляем результаты уже выполненных запросов, но не выдаем их за окончательные.
+                    finishPartialLoading(FetchingState.incomplete, () -> notifyOnLoadingError(e));
+                    return;
+                }
                 mNeedClearing = true;
                 checkAndClear();
                 notifyOnLoadingError(e);
-                Log.e(TAG, e);
             }
         });
     }
 
     /**
-     * Добавить данные о друзьях в группах.
+     * Проверялись ли все пары друзей и групп дольше {@link IsMemberCheckpoint#MAX_AGE} назад (или ни разу).
      */
-    private void addIsMemberFromData(Data data) {
-        for (Map.Entry<Integer, ArrayList<Integer>> entry : data.mIsMember.entrySet()) {
-            int friendId = entry.getKey();
-            for (Integer groupId : entry.getValue()) {
-                mFriendsInGroup.get(groupId).add(mUserFriendsMap.get(friendId));
-                mGroupsMutualWithFriend.get(friendId).add(mUserGroupsMap.get(groupId));
-            }
-        }
+    private boolean isFullCheckOutdated() {
+        long timestamp = PreferenceManager.getDefaultSharedPreferences(mContext)
+                .getLong(DeviceDataNames.PREF_FULL_CHECK_TIMESTAMP, -1);
+        long age = System.currentTimeMillis() - timestamp;
+        return timestamp < 0 || age < 0 || age > IsMemberCheckpoint.MAX_AGE;
+    }
+
+    private void setFullCheckTimestamp(long timeInMillis) {
+        PreferenceManager.getDefaultSharedPreferences(mContext)
+                .edit()
+                .putLong(DeviceDataNames.PREF_FULL_CHECK_TIMESTAMP, timeInMillis)
+                .apply();
     }
 
     /**
-     * Действия выполняемые по случаю окончания загрузки друзей.
+     * Обработчик UI-потока для отложенной пересортировки во время загрузки по частям и публикации снимков.
      */
-    private void onFriendsLoaded() {
-        doSortFriendsByAlphabet();
-        mFriendsSortState = FriendsSortState.byAlphabet;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
-        for (VKApiUserFull friend : mUsersFriendsByAlphabet) {
-            mGroupsMutualWithFriend.put(friend.id, new VKApiCommunityArray_Fix());
-            mUserFriendsMap.put(friend.id, friend);
-        }
-    }
+    /**
+     * Не чаще, чем раз в столько мс, списки пересортировываются во время загрузки по частям.
+     */
+    private static final long rankingDelay = 500;
 
     /**
-     * Действия выполняемые по случаю окончания загрузки групп.
+     * Запланирована ли пересортировка.
      */
-    private void onGroupsLoaded() {
-        mGroupsSortState = GroupsSortState.byDefault;
+    private boolean mRankingScheduled = false;
+
+    private final Runnable mRankingRunnable = () -> {
+        mRankingScheduled = false;
+        updateSnapshot(DataSnapshot::reranked, () -> {
+            if (mFetchingState == FetchingState.partlyLoaded) {
+                notifyOnPartlyLoaded();
+            }
+        });
+    };
 
-        for (VKApiCommunityFull group : mUsersGroupsByDefault) {
-            mFriendsInGroup.put(group.id, new VKUsersArray());
-            mUserGroupsMap.put(group.id, group);
+    /**
+     * Слушатель частичных результатов загрузки с vk.com.
+     * Вызывается в UI-потоке.
+     */
+    private final VKDataProvider.PartialResultsListener mPartialResultsListener = new VKDataProvider.PartialResultsListener() {
+        @Override
+        public void onFriendsAndGroupsLoaded(Data data) {
+            if (mNeedClearing) {
+                return;
+            }
+            // загрузчик дописывает результаты запросов в матрицу, а снимки получают ее копии.
+            updateSnapshot(snapshot -> DataSnapshot.createLoading(snapshot.getGeneration(), data.mFriends, data.mGroups,
+                    data.mIsMember), () -> {
+                if (mFetchingState != FetchingState.loading) {
+                    return;
+                }
+                onDataLoaded();
+                mFetchingState = FetchingState.partlyLoaded;
+                notifyOnPartlyLoaded();
+            });
         }
-    }
+
+        @Override
+        public void onIsMemberLoaded(boolean hot) {
+            if (mNeedClearing || mFetchingState != FetchingState.partlyLoaded) {
+                return;
+            }
+            if (hot) {
+                // видимые элементы обновляются сразу: снимок с новыми результатами публикуется без задержки.
+                mHandler.removeCallbacks(mRankingRunnable);
+                mRankingRunnable.run();
+                return;
+            }
+            if (!mRankingScheduled) {
+                mRankingScheduled = true;
+                mHandler.postDelayed(mRankingRunnable, rankingDelay);
+            }
+        }
+    };
 
     /**
-     * Действия выполняемые по случаю окончания загрузки инфромации об общих группах.
+     * Загружать в первую очередь информацию о переданных друзьях (видимых пользователю).
+     * Если загрузка с vk.com не идет, ничего не происходит.
      */
-    private void onMutualsLoaded() {
-        // Копировать друзей в mUsersFriendsByMutual и отсортировать их по убыванию кол-ва общих групп.
-        mUsersFriendsByMutual = new VKUsersArray();
-        for (VKApiUserFull friend : mUsersFriendsByAlphabet) {
-            mUsersFriendsByMutual.add(friend);
+    public void setHotFriends(int[] friendIds) {
+        if (mLoadingProvider != null) {
+            mLoadingProvider.setHotFriends(friendIds);
         }
-        doSortFriendsByMutuals();
+    }
 
-        // Копировать группы в mUsersGroupsByFriends и отсортировать их по убыванию кол-ва друзей.
-        mUsersGroupsByFriends = new VKApiCommunityArray_Fix();
-        for (VKApiCommunityFull group : mUsersGroupsByDefault) {
-            mUsersGroupsByFriends.add(group);
+    /**
+     * Загружать в первую очередь информацию о переданных группах (видимых пользователю).
+     * Если загрузка с vk.com не идет, ничего не происходит.
+     */
+    public void setHotGroups(int[] groupIds) {
+        if (mLoadingProvider != null) {
+            mLoadingProvider.setHotGroups(groupIds);
         }
-        doSortGroupsByMutuals();
     }
 
     /**
-     * Отсортировать mUsersFriendsByAlphabet в алфавитном порядке.
+     * Действия выполняемые по окончании загрузки по частям.
+     * Все данные уже добавлены, осталось упорядочить их так же, как при загрузке целиком.
      */
-    private void doSortFriendsByAlphabet() {
-        Collections.sort(mUsersFriendsByAlphabet, (lhs, rhs) -> {
-            int r = lhs.first_name.compareTo(rhs.first_name);
-            if (r != 0) {
-                return r;
-            }
-            return lhs.last_name.compareTo(rhs.last_name);
+    private void onPartialLoadingFinished() {
+        finishPartialLoading(FetchingState.finished, () -> {
+            mIsMemberComplete = true;
+            notifyOnLoadingCompleted();
         });
     }
 
     /**
-     * Отсортировать mUsersFriendsByMutual убыванию кол-ва общих групп.
+     * Текущие данные для обновления по разнице.
+     * Если они загружены не полностью, то null.
      */
-    private void doSortFriendsByMutuals() {
-        Collections.sort(mUsersFriendsByMutual, Collections.reverseOrder(new Comparator<VKApiUserFull>() {
-            @Override
-            public int compare(VKApiUserFull lhs, VKApiUserFull rhs) {
-                VKApiCommunityArray_Fix lg = mGroupsMutualWithFriend.get(lhs.id);
-                VKApiCommunityArray_Fix rg = mGroupsMutualWithFriend.get(rhs.id);
-                if (lg == null || rg == null) {
-                    Log.e(TAG, "ERROR!!! UNKNOWN FRIEND!!! SORT FAILED!!!");
-                    return 0;
-                }
-                int l = lg.size();
-                int r = rg.size();
-                return (l == r) ? 0 : ((l > r) ? 1 : -1);
-            }
-        }));
+    @Nullable
+    private Data getCurrentData() {
+        if (mFetchingState != FetchingState.finished || !mIsMemberComplete) {
+            return null;
+        }
+        DataSnapshot snapshot = mSnapshot.get();
+        Data data = new Data();
+        data.mFriends = snapshot.copyFriends();
+        data.mGroups = snapshot.copyGroups();
+        data.mIsMember = snapshot.copyIsMember();
+        return data;
     }
 
     /**
-     * Отсортировать mUsersGroupsByFriends по убыванию друзей в группе.
+     * Упорядочить данные, загруженные по частям, и завершить загрузку с состоянием state.
+     * Также вызывается, если загрузка прервалась ошибкой ({@link FetchingState#incomplete}):
+     * уже загруженные данные остаются.
+     * onFinished вызывается в UI-потоке после публикации упорядоченного снимка.
      */
-    private void doSortGroupsByMutuals() {
-        Collections.sort(mUsersGroupsByFriends, Collections.reverseOrder(new Comparator<VKApiCommunityFull>() {
-            @Override
-            public int compare(VKApiCommunityFull lhs, VKApiCommunityFull rhs) {
-                VKUsersArray lf = mFriendsInGroup.get(lhs.id);
-                VKUsersArray rf = mFriendsInGroup.get(rhs.id);
-                if (lf == null || rf == null) {
-                    Log.e(TAG, "ERROR!!! UNKNOWN GROUP!!! SORT FAILED!!!");
-                    return 0;
-                }
-                int l = lf.size();
-                int r = rf.size();
-                return (l == r) ? 0 : ((l > r) ? 1 : -1);
-            }
-        }));
+    private void finishPartialLoading(FetchingState state, Runnable onFinished) {
+        mHandler.removeCallbacks(mRankingRunnable);
+        mRankingScheduled = false;
+
+        updateSnapshot(DataSnapshot::loadingFinished, () -> {
+            mFetchingState = state;
+            onFinished.run();
+        });
+    }
+
+    /**
+     * Действия выполняемые после публикации первого снимка загруженных данных.
+     */
+    private void onDataLoaded() {
+        mFriendsSortState = FriendsSortState.byAlphabet;
+        mGroupsSortState = GroupsSortState.byDefault;
     }
 
 }
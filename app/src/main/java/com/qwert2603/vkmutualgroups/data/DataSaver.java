@@ -1,9 +1,35 @@
 package com.qwert2603.vkmutualgroups.data;
 
+import org.json.JSONArray;
+
 /**
  * Класс для сохранения и удаления данных.
+ * Списки друзей и групп передаются по страницам по мере загрузки,
+ * а сохраненными считаются только после {@link #save(Data)}.
  */
 public interface DataSaver {
+    /**
+     * Начать новые списки друзей и групп. Страницы прерванной загрузки отбрасываются.
+     *
+     * @return номер новых списков. Страницы передаются с ним, и страницы прежних списков
+     * (от отмененной загрузки, ответ которой пришел уже после начала новой) не сохраняются.
+     */
+    int startLists();
+
+    /**
+     * Дописать страницу друзей (элементы ответа friends.get).
+     *
+     * @param lists - номер списков из {@link #startLists()}.
+     */
+    void appendFriends(int lists, JSONArray items);
+
+    /**
+     * Дописать страницу групп (элементы ответа groups.get).
+     *
+     * @param lists - номер списков из {@link #startLists()}.
+     */
+    void appendGroups(int lists, JSONArray items);
+
     void save(Data data);
     void clear();
 }
@@ -0,0 +1,686 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import android.support.annotation.Nullable;
+
+import com.qwert2603.vkmutualgroups.util.VKApiCommunityArray_Fix;
+import com.vk.sdk.api.model.Identifiable;
+import com.vk.sdk.api.model.VKApiCommunityFull;
+import com.vk.sdk.api.model.VKApiUserFull;
+import com.vk.sdk.api.model.VKUsersArray;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Неизменяемый снимок данных {@link DataManager}: друзья и группы во всех порядках сортировки,
+ * карты "id" - "объект" и матрица общих групп.
+ * После создания снимок не изменяется, поэтому читать его можно из любого потока без блокировок.
+ * Каждое изменение данных создает новый снимок с большей версией (то, что не изменилось, - общее).
+ * Списки, возвращаемые снимком, изменять нельзя.
+ *
+ * Матрица общих групп тоже неизменяема ({@link IsMemberSnapshot}). Во время загрузки по частям
+ * снимок помнит матрицу, которую дописывает загрузчик, и каждый следующий снимок ({@link #reranked()})
+ * получает ее новую копию, так что кол-ва всегда соответствуют порядку сортировки.
+ *
+ * Друзья и группы хранятся по одному разу в канонических массивах, а каждый порядок сортировки -
+ * перестановка номеров в них ({@link IndexOrder}) по заранее вычисленным ключам:
+ * ключу сортировки имени ({@link Collator}) и кол-ву общих групп.
+ * Списки для отображения - представления массивов через перестановки, без копирования элементов.
+ * Порядки по кол-ву общих групп хранятся в {@link RankedOrder}: при добавлении или удалении друга или группы
+ * перемещаются только затронутые элементы, полной пересортировки нет.
+ *
+ * Изменение одного друга или группы, который затрагивает k элементов, стоит O(k log n) сравнений,
+ * копирования O(k) строк матрицы и копирования массивов ссылок и номеров (O(n) через System.arraycopy).
+ * Карты "id" - "номер" не перестраиваются: номер за id закрепляется на все снимки от одной загрузки.
+ */
+final class DataSnapshot {
+
+    private static final AtomicInteger sLastVersion = new AtomicInteger();
+
+    private final int mVersion;
+
+    /**
+     * Номер загрузки, для которой создан снимок. Увеличивается при очистке данных ({@link DataManager#clear()}).
+     */
+    private final int mGeneration;
+
+    /**
+     * Какие друзья в каких группах состоят (по номерам в {@link #mFriends} и {@link #mGroups}).
+     */
+    private final IsMemberSnapshot mIsMember;
+
+    /**
+     * Матрица, которую дописывает загрузчик во время загрузки по частям.
+     * Читатели снимка ее не видят: из нее копируются новые матрицы в {@link #reranked()}.
+     * null, если загрузка завершена.
+     */
+    @Nullable
+    private final IsMemberMatrix mLoadingIsMember;
+
+    /**
+     * Друзья: сначала загруженные, потом добавленные.
+     * На месте удаленных - null (до следующей загрузки), чтобы номера остальных не менялись.
+     * null, если данные не загружены.
+     */
+    private final VKApiUserFull[] mFriends;
+
+    /**
+     * Ключи сортировки имен друзей по номерам в {@link #mFriends}.
+     */
+    private final CollationKey[] mFriendNameKeys;
+
+    /**
+     * Карта: "id друга" - "номер в {@link #mFriends}".
+     * Общая для всех снимков от одной загрузки и только пополняется: номер закрепляется за id,
+     * и друг, добавленный снова, занимает прежнее место. Поэтому номер из карты надо проверять
+     * по массиву этого снимка ({@link #getFriendIndex(int)}).
+     */
+    private final Map<Integer, Integer> mFriendIndexes;
+
+    /**
+     * Друзья в алфавитном порядке.
+     */
+    private final int[] mFriendsByName;
+
+    /**
+     * Друзья в порядке уменьшения кол-ва общих групп, при равном кол-ве - в алфавитном.
+     */
+    private final RankedOrder mFriendsRanking;
+
+    /**
+     * Группы: сначала загруженные, потом добавленные.
+     * На месте удаленных - null (до следующей загрузки), чтобы номера остальных не менялись.
+     * null, если данные не загружены.
+     */
+    private final VKApiCommunityFull[] mGroups;
+
+    /**
+     * Места групп в порядке по умолчанию по номерам в {@link #mGroups}.
+     * Добавленная группа получает место после всех.
+     */
+    private final int[] mGroupRanks;
+
+    /**
+     * Карта: "id группы" - "номер в {@link #mGroups}", так же как {@link #mFriendIndexes}.
+     */
+    private final Map<Integer, Integer> mGroupIndexes;
+
+    /**
+     * Группы в порядке по умолчанию (добавленные - в конце).
+     */
+    private final int[] mGroupsByDefault;
+
+    /**
+     * Группы в порядке уменьшения кол-ва друзей в них, при равном кол-ве - в порядке по умолчанию.
+     */
+    private final RankedOrder mGroupsRanking;
+
+    /**
+     * Порядки по кол-ву для списков. Создаются при первом запросе.
+     */
+    private volatile int[] mFriendsByMutual;
+    private volatile int[] mGroupsByFriends;
+
+    /**
+     * Пустой снимок: данные не загружены.
+     */
+    static DataSnapshot empty(int generation) {
+        return new DataSnapshot(generation);
+    }
+
+    /**
+     * Снимок загруженных данных. Переданные списки и матрица копируются.
+     */
+    static DataSnapshot create(int generation, VKUsersArray friends, VKApiCommunityArray_Fix groups, IsMemberMatrix isMember) {
+        return create(generation, friends, groups, isMember, false);
+    }
+
+    /**
+     * Снимок данных, загружаемых по частям: загрузчик продолжает дописывать isMember.
+     * Снимок получает ее копию, а {@link #reranked()} - копию с новыми результатами.
+     */
+    static DataSnapshot createLoading(int generation, VKUsersArray friends, VKApiCommunityArray_Fix groups,
+                                      IsMemberMatrix isMember) {
+        return create(generation, friends, groups, isMember, true);
+    }
+
+    private static DataSnapshot create(int generation, VKUsersArray friends, VKApiCommunityArray_Fix groups,
+                                       IsMemberMatrix isMember, boolean loading) {
+        VKApiUserFull[] friendsArray = friends.toArray(new VKApiUserFull[friends.size()]);
+        CollationKey[] nameKeys = new CollationKey[friendsArray.length];
+        Collator collator = Collator.getInstance();
+        for (int i = 0; i < friendsArray.length; ++i) {
+            nameKeys[i] = getNameKey(collator, friendsArray[i]);
+        }
+        int[] friendsByName = IndexOrder.sort(IndexOrder.identity(friendsArray.length),
+                getFriendsNameOrder(friendsArray, nameKeys));
+        VKApiCommunityFull[] groupsArray = groups.toArray(new VKApiCommunityFull[groups.size()]);
+        int[] groupsByDefault = IndexOrder.identity(groupsArray.length);
+        IsMemberSnapshot isMemberSnapshot = IsMemberSnapshot.freeze(isMember, getIds(friendsArray), getIds(groupsArray));
+        return new DataSnapshot(generation, isMemberSnapshot, loading ? isMember : null,
+                friendsArray, nameKeys, getIndexes(friendsArray), friendsByName, null,
+                groupsArray, groupsByDefault.clone(), getIndexes(groupsArray), groupsByDefault, null);
+    }
+
+    private DataSnapshot(int generation) {
+        mVersion = sLastVersion.incrementAndGet();
+        mGeneration = generation;
+        mIsMember = null;
+        mLoadingIsMember = null;
+        mFriends = null;
+        mFriendNameKeys = null;
+        mFriendIndexes = Collections.emptyMap();
+        mFriendsByName = null;
+        mFriendsRanking = null;
+        mGroups = null;
+        mGroupRanks = null;
+        mGroupIndexes = Collections.emptyMap();
+        mGroupsByDefault = null;
+        mGroupsRanking = null;
+    }
+
+    /**
+     * Массивы и карты не изменяются (карты только пополняются) и могут быть общими с другим снимком.
+     * @param friendsByName - номера друзей, уже отсортированные по {@link #getFriendsNameOrder}.
+     * @param friendsRanking - порядок друзей по кол-ву общих групп или null, чтобы построить его по матрице.
+     * @param groupsByDefault - номера групп, уже отсортированные по groupRanks.
+     * @param groupsRanking - порядок групп по кол-ву друзей или null, чтобы построить его по матрице.
+     */
+    private DataSnapshot(int generation, IsMemberSnapshot isMember, @Nullable IsMemberMatrix loadingIsMember,
+                         VKApiUserFull[] friends, CollationKey[] friendNameKeys, Map<Integer, Integer> friendIndexes,
+                         int[] friendsByName, @Nullable RankedOrder friendsRanking,
+                         VKApiCommunityFull[] groups, int[] groupRanks, Map<Integer, Integer> groupIndexes,
+                         int[] groupsByDefault, @Nullable RankedOrder groupsRanking) {
+        mVersion = sLastVersion.incrementAndGet();
+        mGeneration = generation;
+        mIsMember = isMember;
+        mLoadingIsMember = loadingIsMember;
+
+        mFriends = friends;
+        mFriendNameKeys = friendNameKeys;
+        mFriendIndexes = friendIndexes;
+        mFriendsByName = friendsByName;
+        mFriendsRanking = (friendsRanking != null) ? friendsRanking
+                : RankedOrder.build(friendsByName, isMember::getGroupsCount);
+
+        mGroups = groups;
+        mGroupRanks = groupRanks;
+        mGroupIndexes = groupIndexes;
+        mGroupsByDefault = groupsByDefault;
+        mGroupsRanking = (groupsRanking != null) ? groupsRanking
+                : RankedOrder.build(groupsByDefault, isMember::getFriendsCount);
+    }
+
+    /**
+     * Снимок с новой копией матрицы, которую дописывает загрузчик, и заново упорядоченными по ней данными.
+     * Используется во время загрузки по частям. Если загрузка завершена, возвращается этот же снимок.
+     */
+    DataSnapshot reranked() {
+        return reranked(mLoadingIsMember);
+    }
+
+    /**
+     * То же, что {@link #reranked()}, но загрузка по частям завершена:
+     * это последняя копия матрицы загрузчика, дальше снимок с ней не связан.
+     */
+    DataSnapshot loadingFinished() {
+        return reranked(null);
+    }
+
+    private DataSnapshot reranked(@Nullable IsMemberMatrix loadingIsMember) {
+        if (isEmpty() || mLoadingIsMember == null) {
+            return this;
+        }
+        IsMemberSnapshot isMember = IsMemberSnapshot.freeze(mLoadingIsMember, getIds(mFriends), getIds(mGroups));
+        return new DataSnapshot(mGeneration, isMember, loadingIsMember,
+                mFriends, mFriendNameKeys, mFriendIndexes, mFriendsByName, null,
+                mGroups, mGroupRanks, mGroupIndexes, mGroupsByDefault, null);
+    }
+
+    /**
+     * Снимок без друга.
+     * Перемещаются только группы, в которых он состоит.
+     */
+    DataSnapshot withoutFriend(int friendId) {
+        Integer index = getFriendIndex(friendId);
+        if (index == null) {
+            return this;
+        }
+        IndexOrder.IndexComparator nameOrder = getFriendsNameOrder(mFriends, mFriendNameKeys);
+        int[] friendsByName = IndexOrder.remove(mFriendsByName, index, nameOrder);
+
+        RankedOrder.Editor friendsRanking = mFriendsRanking.edit(nameOrder);
+        friendsRanking.remove(index, mIsMember.getGroupsCount(index));
+        RankedOrder.Editor groupsRanking = mGroupsRanking.edit(getGroupsDefaultOrder(mGroupRanks));
+        for (int group : mIsMember.getGroups(index)) {
+            int friendsCount = mIsMember.getFriendsCount(group);
+            groupsRanking.move(group, friendsCount, friendsCount - 1);
+        }
+
+        VKApiUserFull[] friends = mFriends.clone();
+        friends[index] = null;
+        return new DataSnapshot(mGeneration, mIsMember.withoutFriend(index), mLoadingIsMember,
+                friends, mFriendNameKeys, mFriendIndexes, (friendsByName != null) ? friendsByName : mFriendsByName,
+                friendsRanking.build(), mGroups, mGroupRanks, mGroupIndexes, mGroupsByDefault, groupsRanking.build());
+    }
+
+    /**
+     * Снимок без группы.
+     * Перемещаются только друзья, которые в ней состоят.
+     */
+    DataSnapshot withoutGroup(int groupId) {
+        Integer index = getGroupIndex(groupId);
+        if (index == null) {
+            return this;
+        }
+        IndexOrder.IndexComparator defaultOrder = getGroupsDefaultOrder(mGroupRanks);
+        int[] groupsByDefault = IndexOrder.remove(mGroupsByDefault, index, defaultOrder);
+
+        RankedOrder.Editor groupsRanking = mGroupsRanking.edit(defaultOrder);
+        groupsRanking.remove(index, mIsMember.getFriendsCount(index));
+        RankedOrder.Editor friendsRanking = mFriendsRanking.edit(getFriendsNameOrder(mFriends, mFriendNameKeys));
+        for (int friend : mIsMember.getFriends(index)) {
+            int groupsCount = mIsMember.getGroupsCount(friend);
+            friendsRanking.move(friend, groupsCount, groupsCount - 1);
+        }
+
+        VKApiCommunityFull[] groups = mGroups.clone();
+        groups[index] = null;
+        return new DataSnapshot(mGeneration, mIsMember.withoutGroup(index), mLoadingIsMember,
+                mFriends, mFriendNameKeys, mFriendIndexes, mFriendsByName, friendsRanking.build(),
+                groups, mGroupRanks, mGroupIndexes, (groupsByDefault != null) ? groupsByDefault : mGroupsByDefault,
+                groupsRanking.build());
+    }
+
+    /**
+     * Снимок с новым другом.
+     * Перемещаются только группы, в которых он состоит.
+     * Не используется во время загрузки по частям: в матрице загрузчика друга нет,
+     * и {@link #reranked()} потерял бы его группы.
+     * @param friendIsMember - в каких группах состоит друг.
+     */
+    DataSnapshot withFriend(VKApiUserFull friend, IsMemberMatrix friendIsMember) {
+        if (isEmpty() || getFriendIndex(friend.id) != null) {
+            return this;
+        }
+        int index = getNewIndex(mFriendIndexes, mFriends, friend.id);
+        VKApiUserFull[] friends = Arrays.copyOf(mFriends, Math.max(mFriends.length, index + 1));
+        friends[index] = friend;
+        CollationKey[] nameKeys = Arrays.copyOf(mFriendNameKeys, friends.length);
+        nameKeys[index] = getNameKey(Collator.getInstance(), friend);
+        IndexOrder.IndexComparator nameOrder = getFriendsNameOrder(friends, nameKeys);
+        int[] friendsByName = IndexOrder.insert(mFriendsByName, index, nameOrder);
+
+        int[] groups = getGroupIndexes(friendIsMember.getGroupIds(friend.id));
+        RankedOrder.Editor friendsRanking = mFriendsRanking.edit(nameOrder);
+        friendsRanking.add(index, groups.length);
+        RankedOrder.Editor groupsRanking = mGroupsRanking.edit(getGroupsDefaultOrder(mGroupRanks));
+        for (int group : groups) {
+            int friendsCount = mIsMember.getFriendsCount(group);
+            groupsRanking.move(group, friendsCount, friendsCount + 1);
+        }
+
+        return new DataSnapshot(mGeneration, mIsMember.withFriend(index, groups), mLoadingIsMember,
+                friends, nameKeys, mFriendIndexes, friendsByName, friendsRanking.build(),
+                mGroups, mGroupRanks, mGroupIndexes, mGroupsByDefault, groupsRanking.build());
+    }
+
+    /**
+     * Снимок с новой группой (в конце порядка по умолчанию).
+     * Перемещаются только друзья, которые в ней состоят.
+     * Как и {@link #withFriend}, не используется во время загрузки по частям.
+     * @param groupIsMember - какие друзья состоят в группе.
+     */
+    DataSnapshot withGroup(VKApiCommunityFull group, IsMemberMatrix groupIsMember) {
+        if (isEmpty() || getGroupIndex(group.id) != null) {
+            return this;
+        }
+        int index = getNewIndex(mGroupIndexes, mGroups, group.id);
+        VKApiCommunityFull[] groups = Arrays.copyOf(mGroups, Math.max(mGroups.length, index + 1));
+        groups[index] = group;
+        int[] groupRanks = Arrays.copyOf(mGroupRanks, groups.length);
+        groupRanks[index] = (mGroupsByDefault.length > 0) ? mGroupRanks[mGroupsByDefault[mGroupsByDefault.length - 1]] + 1 : 0;
+        int[] groupsByDefault = Arrays.copyOf(mGroupsByDefault, mGroupsByDefault.length + 1);
+        groupsByDefault[mGroupsByDefault.length] = index;
+
+        int[] friends = getFriendIndexes(groupIsMember.getFriendIds(group.id));
+        RankedOrder.Editor groupsRanking = mGroupsRanking.edit(getGroupsDefaultOrder(groupRanks));
+        groupsRanking.add(index, friends.length);
+        RankedOrder.Editor friendsRanking = mFriendsRanking.edit(getFriendsNameOrder(mFriends, mFriendNameKeys));
+        for (int friend : friends) {
+            int groupsCount = mIsMember.getGroupsCount(friend);
+            friendsRanking.move(friend, groupsCount, groupsCount + 1);
+        }
+
+        return new DataSnapshot(mGeneration, mIsMember.withGroup(index, friends), mLoadingIsMember,
+                mFriends, mFriendNameKeys, mFriendIndexes, mFriendsByName, friendsRanking.build(),
+                groups, groupRanks, mGroupIndexes, groupsByDefault, groupsRanking.build());
+    }
+
+    int getVersion() {
+        return mVersion;
+    }
+
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Загружены ли данные.
+     */
+    boolean isEmpty() {
+        return mFriends == null;
+    }
+
+    /**
+     * Друзья в алфавитном порядке.
+     * Список только для чтения: элементы берутся из снимка через порядок, сами списки не копируются.
+     */
+    @Nullable
+    List<VKApiUserFull> getFriendsByAlphabet() {
+        return isEmpty() ? null : new OrderedList<>(mFriends, mFriendsByName);
+    }
+
+    /**
+     * Друзья по кол-ву общих групп. Список только для чтения, как {@link #getFriendsByAlphabet()}.
+     */
+    @Nullable
+    List<VKApiUserFull> getFriendsByMutual() {
+        if (isEmpty()) {
+            return null;
+        }
+        int[] order = mFriendsByMutual;
+        if (order == null) {
+            order = mFriendsRanking.toArray();
+            mFriendsByMutual = order;
+        }
+        return new OrderedList<>(mFriends, order);
+    }
+
+    /**
+     * Группы в порядке по умолчанию. Список только для чтения, как {@link #getFriendsByAlphabet()}.
+     */
+    @Nullable
+    List<VKApiCommunityFull> getGroupsByDefault() {
+        return isEmpty() ? null : new OrderedList<>(mGroups, mGroupsByDefault);
+    }
+
+    /**
+     * Группы по кол-ву друзей в них. Список только для чтения, как {@link #getFriendsByAlphabet()}.
+     */
+    @Nullable
+    List<VKApiCommunityFull> getGroupsByFriends() {
+        if (isEmpty()) {
+            return null;
+        }
+        int[] order = mGroupsByFriends;
+        if (order == null) {
+            order = mGroupsRanking.toArray();
+            mGroupsByFriends = order;
+        }
+        return new OrderedList<>(mGroups, order);
+    }
+
+    /**
+     * Новый список друзей в алфавитном порядке (например, для загрузки).
+     */
+    VKUsersArray copyFriends() {
+        VKUsersArray friends = new VKUsersArray();
+        if (!isEmpty()) {
+            for (int i : mFriendsByName) {
+                friends.add(mFriends[i]);
+            }
+        }
+        return friends;
+    }
+
+    /**
+     * Новый список групп в порядке по умолчанию (например, для загрузки).
+     */
+    VKApiCommunityArray_Fix copyGroups() {
+        VKApiCommunityArray_Fix groups = new VKApiCommunityArray_Fix();
+        if (!isEmpty()) {
+            for (int i : mGroupsByDefault) {
+                groups.add(mGroups[i]);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Кол-во групп, общих с другом.
+     * Если друг неизвестен, -1.
+     */
+    int getGroupsCount(int friendId) {
+        Integer index = getFriendIndex(friendId);
+        return (index != null) ? mIsMember.getGroupsCount(index) : -1;
+    }
+
+    /**
+     * Кол-во друзей в группе.
+     * Если группа неизвестна, -1.
+     */
+    int getFriendsCount(int groupId) {
+        Integer index = getGroupIndex(groupId);
+        return (index != null) ? mIsMember.getFriendsCount(index) : -1;
+    }
+
+    /**
+     * Новая матрица с теми же данными (например, для обновления по разнице).
+     */
+    IsMemberMatrix copyIsMember() {
+        if (isEmpty()) {
+            return new IsMemberMatrix();
+        }
+        int[] friendIds = getIds(mFriends);
+        int[] groupIds = getIds(mGroups);
+        int[] groupIdsByDefault = new int[mGroupsByDefault.length];
+        for (int i = 0; i < groupIdsByDefault.length; ++i) {
+            groupIdsByDefault[i] = groupIds[mGroupsByDefault[i]];
+        }
+        IsMemberMatrix result = new IsMemberMatrix(compact(friendIds), groupIdsByDefault);
+        for (int f = 0; f < friendIds.length; ++f) {
+            if (friendIds[f] != 0) {
+                for (int group : mIsMember.getGroups(f)) {
+                    result.set(friendIds[f], groupIds[group]);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Nullable
+    VKApiUserFull getFriend(int friendId) {
+        Integer index = getFriendIndex(friendId);
+        return (index != null) ? mFriends[index] : null;
+    }
+
+    @Nullable
+    VKApiCommunityFull getGroup(int groupId) {
+        Integer index = getGroupIndex(groupId);
+        return (index != null) ? mGroups[index] : null;
+    }
+
+    /**
+     * Новый список групп, общих с другом.
+     * Если друг неизвестен, null.
+     */
+    @Nullable
+    VKApiCommunityArray_Fix getGroupsMutualWithFriend(int friendId) {
+        Integer index = getFriendIndex(friendId);
+        if (index == null) {
+            return null;
+        }
+        VKApiCommunityArray_Fix groups = new VKApiCommunityArray_Fix();
+        for (int group : IndexOrder.sort(mIsMember.getGroups(index), getGroupsDefaultOrder(mGroupRanks))) {
+            groups.add(mGroups[group]);
+        }
+        return groups;
+    }
+
+    /**
+     * Новый список друзей в группе.
+     * Если группа неизвестна, null.
+     */
+    @Nullable
+    VKUsersArray getFriendsInGroup(int groupId) {
+        Integer index = getGroupIndex(groupId);
+        if (index == null) {
+            return null;
+        }
+        VKUsersArray friends = new VKUsersArray();
+        for (int friend : mIsMember.getFriends(index)) {
+            friends.add(mFriends[friend]);
+        }
+        return friends;
+    }
+
+    private static CollationKey getNameKey(Collator collator, VKApiUserFull friend) {
+        return collator.getCollationKey(friend.first_name + " " + friend.last_name);
+    }
+
+    /**
+     * Алфавитный порядок друзей по ключам сортировки имен. При совпадении имен - по id, чтобы порядок был однозначным.
+     */
+    private static IndexOrder.IndexComparator getFriendsNameOrder(VKApiUserFull[] friends, CollationKey[] nameKeys) {
+        return (lhs, rhs) -> {
+            int r = nameKeys[lhs].compareTo(nameKeys[rhs]);
+            return (r != 0) ? r : compareInts(friends[lhs].id, friends[rhs].id);
+        };
+    }
+
+    /**
+     * id по номерам в каноническом массиве (0 - на месте удаленных).
+     */
+    private static int[] getIds(Identifiable[] items) {
+        int[] result = new int[items.length];
+        for (int i = 0; i < items.length; ++i) {
+            result[i] = (items[i] != null) ? items[i].getId() : 0;
+        }
+        return result;
+    }
+
+    private static int[] compact(int[] ids) {
+        int[] result = new int[ids.length];
+        int count = 0;
+        for (int id : ids) {
+            if (id != 0) {
+                result[count++] = id;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Порядок групп по умолчанию по их местам.
+     */
+    private static IndexOrder.IndexComparator getGroupsDefaultOrder(int[] groupRanks) {
+        return (lhs, rhs) -> compareInts(groupRanks[lhs], groupRanks[rhs]);
+    }
+
+    /**
+     * Новая карта "id" - "номер" для снимков от одной загрузки.
+     */
+    private static Map<Integer, Integer> getIndexes(Identifiable[] items) {
+        Map<Integer, Integer> result = new ConcurrentHashMap<>();
+        for (int i = 0; i < items.length; ++i) {
+            result.put(items[i].getId(), i);
+        }
+        return result;
+    }
+
+    /**
+     * Номер для добавляемого элемента: прежний, если элемент с таким id уже был и его место свободно,
+     * иначе - первый после массива. Номер сразу закрепляется в общей карте.
+     */
+    private static int getNewIndex(Map<Integer, Integer> indexes, Identifiable[] items, int id) {
+        Integer index = indexes.get(id);
+        if (index == null || (index < items.length && items[index] != null)) {
+            index = items.length;
+            indexes.put(id, index);
+        }
+        return index;
+    }
+
+    @Nullable
+    private Integer getFriendIndex(int friendId) {
+        return getIndex(mFriendIndexes, mFriends, friendId);
+    }
+
+    @Nullable
+    private Integer getGroupIndex(int groupId) {
+        return getIndex(mGroupIndexes, mGroups, groupId);
+    }
+
+    /**
+     * Номер элемента, если он есть в этом снимке, иначе null.
+     */
+    @Nullable
+    private static Integer getIndex(Map<Integer, Integer> indexes, @Nullable Identifiable[] items, int id) {
+        Integer index = indexes.get(id);
+        return (index != null && index < items.length && items[index] != null && items[index].getId() == id)
+                ? index : null;
+    }
+
+    private int[] getFriendIndexes(@Nullable int[] friendIds) {
+        return toIndexes(friendIds, mFriendIndexes, mFriends);
+    }
+
+    private int[] getGroupIndexes(@Nullable int[] groupIds) {
+        return toIndexes(groupIds, mGroupIndexes, mGroups);
+    }
+
+    /**
+     * Номера известных снимку элементов по их id. Неизвестные id пропускаются.
+     */
+    private static int[] toIndexes(@Nullable int[] ids, Map<Integer, Integer> indexes, Identifiable[] items) {
+        if (ids == null) {
+            return new int[0];
+        }
+        int[] result = new int[ids.length];
+        int count = 0;
+        for (int id : ids) {
+            Integer index = getIndex(indexes, items, id);
+            if (index != null) {
+                result[count++] = index;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static int compareInts(int lhs, int rhs) {
+        return (lhs == rhs) ? 0 : ((lhs < rhs) ? -1 : 1);
+    }
+
+    /**
+     * Элементы массива снимка в порядке order. Только для чтения.
+     */
+    private static class OrderedList<T> extends AbstractList<T> implements RandomAccess {
+        private final T[] mItems;
+        private final int[] mOrder;
+
+        OrderedList(T[] items, int[] order) {
+            mItems = items;
+            mOrder = order;
+        }
+
+        @Override
+        public T get(int location) {
+            return mItems[mOrder[location]];
+        }
+
+        @Override
+        public int size() {
+            return mOrder.length;
+        }
+    }
+
+}
@@ -11,11 +11,32 @@ public interface DeviceDataNames {
     String FILENAME_GROUPS = "groups" + FILENAME_SUFFIX;
     String FILENAME_IS_MEMBER = "is_member" + FILENAME_SUFFIX;
 
+    /**
+     * Страницы друзей и групп текущей загрузки.
+     * После сохранения всех данных переименовываются в {@link #FILENAME_FRIENDS} и {@link #FILENAME_GROUPS}.
+     */
+    String FILENAME_FRIENDS_PAGES = "friends_pages" + FILENAME_SUFFIX;
+    String FILENAME_GROUPS_PAGES = "groups_pages" + FILENAME_SUFFIX;
+
+    /**
+     * Контрольная точка незавершенной загрузки информации о друзьях в группах.
+     */
+    String FILENAME_IS_MEMBER_CHECKPOINT = "is_member_checkpoint" + FILENAME_SUFFIX;
+
     String JSON_FRIEND_ID = "friend_id";
     String JSON_GROUPS_ID_LIST = "groups_id_list";
+    String JSON_FRIENDS_ID_LIST = "friends_id_list";
+    String JSON_BLOCKS = "blocks";
+    String JSON_IS_MEMBER = "is_member";
+    String JSON_TIMESTAMP = "timestamp";
 
     /**
      * Время последнего сохранения.
      */
     String PREF_DATA_TIMESTAMP = "data_timestamp";
+
+    /**
+     * Время последней загрузки, проверившей все пары друзей и групп (не по разнице).
+     */
+    String PREF_FULL_CHECK_TIMESTAMP = "full_check_timestamp";
 }
@@ -11,6 +11,11 @@ import android.util.Log;
 
 import com.qwert2603.vkmutualgroups.Listener;
 import com.qwert2603.vkmutualgroups.util.VKApiCommunityArray_Fix;
+import com.vk.sdk.api.model.Identifiable;
+import com.vk.sdk.api.model.VKApiCommunityFull;
+import com.vk.sdk.api.model.VKApiModel;
+import com.vk.sdk.api.model.VKApiUserFull;
+import com.vk.sdk.api.model.VKList;
 import com.vk.sdk.api.model.VKUsersArray;
 
 import org.json.JSONArray;
@@ -23,9 +28,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 
 /**
  * Загрузчик данных из памяти устройства.
@@ -79,6 +82,13 @@ public class DeviceDataProvider implements DataProvider, DeviceDataNames {
         mLoadingThread.load(listener);
     }
 
+    /**
+     * Разбор одного элемента списка.
+     */
+    private interface ItemParser<T> {
+        T parse(JSONObject item) throws JSONException;
+    }
+
     private class LoadingThread extends HandlerThread {
 
         private volatile Handler mHandler;
@@ -116,19 +126,17 @@ public class DeviceDataProvider implements DataProvider, DeviceDataNames {
 
                 File friendsFile = new File(mContext.getFilesDir(), FILENAME_FRIENDS);
                 VKUsersArray friends = new VKUsersArray();
-                JSONObject jsonObjectFriends = new JSONObject(loadFile(friendsFile));
-                friends.parse(jsonObjectFriends);
+                loadList(friendsFile, friends, item -> new VKApiUserFull().parse(item));
                 data.mFriends = friends;
 
                 File groupsFile = new File(mContext.getFilesDir(), FILENAME_GROUPS);
                 VKApiCommunityArray_Fix groups = new VKApiCommunityArray_Fix();
-                JSONObject jsonObjectGroups = new JSONObject(loadFile(groupsFile));
-                groups.parse(jsonObjectGroups);
+                loadList(groupsFile, groups, item -> new VKApiCommunityFull().parse(item));
                 data.mGroups = groups;
 
                 File isMemberFile = new File(mContext.getFilesDir(), FILENAME_IS_MEMBER);
                 JSONArray isMemberJSONArray = new JSONArray(loadFile(isMemberFile));
-                data.mIsMember = parseIsMember(isMemberJSONArray);
+                data.mIsMember = parseIsMember(isMemberJSONArray, new IsMemberMatrix(friends, groups));
 
                 mResponseHandler.post(() -> listener.onCompleted(data));
             } catch (IOException | JSONException e) {
@@ -137,6 +145,32 @@ public class DeviceDataProvider implements DataProvider, DeviceDataNames {
             }
         }
 
+        /**
+         * Прочитать список друзей или групп.
+         * Файл состоит из страниц, по одному JSON-массиву элементов в строке.
+         * Файл, сохраненный прежней версией, - одна строка с JSON-объектом ответа vkapi целиком.
+         */
+        private <T extends VKApiModel & Identifiable> void loadList(File file, VKList<T> list, ItemParser<T> itemParser)
+                throws IOException, JSONException {
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+            try {
+                String line;
+                while ((line = bufferedReader.readLine()) != null) {
+                    if (line.startsWith("[")) {
+                        JSONArray items = new JSONArray(line);
+                        int itemsLength = items.length();
+                        for (int i = 0; i < itemsLength; ++i) {
+                            list.add(itemParser.parse(items.getJSONObject(i)));
+                        }
+                    } else if (!line.isEmpty()) {
+                        list.parse(new JSONObject(line));
+                    }
+                }
+            } finally {
+                bufferedReader.close();
+            }
+        }
+
         private String loadFile(File file) throws IOException {
             InputStream inputStream = new FileInputStream(file);
             BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
@@ -149,18 +183,16 @@ public class DeviceDataProvider implements DataProvider, DeviceDataNames {
             return stringBuilder.toString();
         }
 
-        private HashMap<Integer, ArrayList<Integer>> parseIsMember(JSONArray jsonArray) throws JSONException {
-            HashMap<Integer, ArrayList<Integer>> result = new HashMap<>();
+        private IsMemberMatrix parseIsMember(JSONArray jsonArray, IsMemberMatrix result) throws JSONException {
             int jsonArrayLength = jsonArray.length();
             for (int i = 0; i < jsonArrayLength; ++i) {
                 JSONObject jsonObjectFriend = jsonArray.getJSONObject(i);
-                ArrayList<Integer> groups = new ArrayList<>();
+                int friendId = jsonObjectFriend.getInt(JSON_FRIEND_ID);
                 JSONArray jsonArrayGroups = jsonObjectFriend.getJSONArray(JSON_GROUPS_ID_LIST);
                 int jsonArrayGroupsLength = jsonArrayGroups.length();
                 for (int j = 0; j < jsonArrayGroupsLength; ++j) {
-                    groups.add(jsonArrayGroups.getInt(j));
+                    result.set(friendId, jsonArrayGroups.getInt(j));
                 }
-                result.put(jsonObjectFriend.getInt(JSON_FRIEND_ID), groups);
             }
             return result;
         }
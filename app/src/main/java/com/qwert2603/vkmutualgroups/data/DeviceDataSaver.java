@@ -8,22 +8,28 @@ import android.os.Message;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import com.qwert2603.vkmutualgroups.BuildConfig;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Класс для сохранения данных в файлы в фоновом режиме.
  * И для удаления сохраненных файлов с устройства.
+ * Также хранит контрольную точку незавершенной загрузки информации о друзьях в группах.
  */
-public class DeviceDataSaver implements DataSaver, DeviceDataNames {
+public class DeviceDataSaver implements DataSaver, IsMemberCheckpointStorage, DeviceDataNames {
 
     public static final String TAG = "DeviceDataSaver";
 
@@ -47,6 +53,28 @@ public class DeviceDataSaver implements DataSaver, DeviceDataNames {
         mDeviceDataSavingThread.getLooper();
     }
 
+    /**
+     * Номер последних начатых списков друзей и групп.
+     */
+    private final AtomicInteger mLastLists = new AtomicInteger();
+
+    @Override
+    public int startLists() {
+        int lists = mLastLists.incrementAndGet();
+        mDeviceDataSavingThread.startLists(lists);
+        return lists;
+    }
+
+    @Override
+    public void appendFriends(int lists, JSONArray items) {
+        mDeviceDataSavingThread.appendPage(new Page(lists, FILENAME_FRIENDS_PAGES, items));
+    }
+
+    @Override
+    public void appendGroups(int lists, JSONArray items) {
+        mDeviceDataSavingThread.appendPage(new Page(lists, FILENAME_GROUPS_PAGES, items));
+    }
+
     @Override
     public void save(Data data) {
         mDeviceDataSavingThread.save(data);
@@ -60,6 +88,52 @@ public class DeviceDataSaver implements DataSaver, DeviceDataNames {
         mDeviceDataSavingThread.clear();
     }
 
+    @Override
+    public boolean restoreCheckpoint(IsMemberCheckpoint checkpoint) {
+        return mDeviceDataSavingThread.restoreCheckpoint(checkpoint);
+    }
+
+    @Override
+    public void appendCheckpoint(JSONObject record) {
+        mDeviceDataSavingThread.appendCheckpoint(record);
+    }
+
+    @Override
+    public void clearCheckpoint() {
+        mDeviceDataSavingThread.clearCheckpoint();
+    }
+
+    /**
+     * Запрос на чтение контрольной точки.
+     */
+    private static class RestoreCheckpointRequest {
+        final IsMemberCheckpoint mCheckpoint;
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile boolean mRestored = false;
+
+        RestoreCheckpointRequest(IsMemberCheckpoint checkpoint) {
+            mCheckpoint = checkpoint;
+        }
+    }
+
+    /**
+     * Страница списка друзей или групп для дописывания в файл.
+     */
+    private static class Page {
+        /**
+         * Номер списков ({@link #startLists()}), к которым относится страница.
+         */
+        final int mLists;
+        final String mFilename;
+        final JSONArray mItems;
+
+        Page(int lists, String filename, JSONArray items) {
+            mLists = lists;
+            mFilename = filename;
+            mItems = items;
+        }
+    }
+
     /**
      * Поток для сохранения файлов и удаления сохраненных файлов.
      */
@@ -67,9 +141,26 @@ public class DeviceDataSaver implements DataSaver, DeviceDataNames {
 
         private static final int MESSAGE_SAVE = 1;
         private static final int MESSAGE_CLEAR = 2;
+        private static final int MESSAGE_RESTORE_CHECKPOINT = 3;
+        private static final int MESSAGE_APPEND_CHECKPOINT = 4;
+        private static final int MESSAGE_CLEAR_CHECKPOINT = 5;
+        private static final int MESSAGE_START_LISTS = 6;
+        private static final int MESSAGE_APPEND_PAGE = 7;
 
         private volatile Handler mHandler;
 
+        /**
+         * Не удалось записать одну из страниц текущей загрузки.
+         * Используется только в этом потоке.
+         */
+        private boolean mPagesBroken = false;
+
+        /**
+         * Номер текущих списков. Страницы других списков отбрасываются.
+         * Используется только в этом потоке.
+         */
+        private int mLists = 0;
+
         public DeviceDataSavingThread() {
             super("DeviceDataSavingThread");
         }
@@ -87,6 +178,23 @@ public class DeviceDataSaver implements DataSaver, DeviceDataNames {
                             break;
                         case MESSAGE_CLEAR:
                             handleClear();
+                            handleClearPages();
+                            break;
+                        case MESSAGE_RESTORE_CHECKPOINT:
+                            handleRestoreCheckpoint((RestoreCheckpointRequest) msg.obj);
+                            break;
+                        case MESSAGE_APPEND_CHECKPOINT:
+                            handleAppendCheckpoint((JSONObject) msg.obj);
+                            break;
+                        case MESSAGE_CLEAR_CHECKPOINT:
+                            handleClearCheckpoint();
+                            break;
+                        case MESSAGE_START_LISTS:
+                            mLists = msg.arg1;
+                            handleClearPages();
+                            break;
+                        case MESSAGE_APPEND_PAGE:
+                            handleAppendPage((Page) msg.obj);
                             break;
                     }
                 }
@@ -107,29 +215,79 @@ public class DeviceDataSaver implements DataSaver, DeviceDataNames {
             }
 
             mHandler.removeMessages(MESSAGE_SAVE);
+            mHandler.removeMessages(MESSAGE_APPEND_PAGE);
             mHandler.obtainMessage(MESSAGE_CLEAR).sendToTarget();
         }
 
+        public void startLists(int lists) {
+            while (mHandler == null) {
+                Thread.yield();
+            }
+
+            mHandler.removeMessages(MESSAGE_APPEND_PAGE);
+            mHandler.obtainMessage(MESSAGE_START_LISTS, lists, 0).sendToTarget();
+        }
+
+        public void appendPage(Page page) {
+            while (mHandler == null) {
+                Thread.yield();
+            }
+
+            mHandler.obtainMessage(MESSAGE_APPEND_PAGE, page).sendToTarget();
+        }
+
+        public boolean restoreCheckpoint(IsMemberCheckpoint checkpoint) {
+            while (mHandler == null) {
+                Thread.yield();
+            }
+
+            RestoreCheckpointRequest request = new RestoreCheckpointRequest(checkpoint);
+            mHandler.obtainMessage(MESSAGE_RESTORE_CHECKPOINT, request).sendToTarget();
+            try {
+                request.mDone.await();
+            } catch (InterruptedException e) {
+                Log.e(TAG, e.toString(), e);
+            }
+            return request.mRestored;
+        }
+
+        public void appendCheckpoint(JSONObject record) {
+            while (mHandler == null) {
+                Thread.yield();
+            }
+
+            mHandler.obtainMessage(MESSAGE_APPEND_CHECKPOINT, record).sendToTarget();
+        }
+
+        public void clearCheckpoint() {
+            while (mHandler == null) {
+                Thread.yield();
+            }
+
+            mHandler.removeMessages(MESSAGE_APPEND_CHECKPOINT);
+            mHandler.obtainMessage(MESSAGE_CLEAR_CHECKPOINT).sendToTarget();
+        }
+
         @SuppressWarnings("ResultOfMethodCallIgnored")
         private void handleSave(Data data) {
             try {
                 handleClear();
 
-                File fileFriends = new File(mContext.getFilesDir(), FILENAME_FRIENDS);
-                JSONObject jsonObjectFriends = data.mFriends.fields;
-                doSave(fileFriends, jsonObjectFriends);
-
-                File fileGroups = new File(mContext.getFilesDir(), FILENAME_GROUPS);
-                JSONObject jsonObjectGroups = data.mGroups.fields;
-                doSave(fileGroups, jsonObjectGroups);
+                // страницы друзей и групп уже записаны во время загрузки.
+                movePages(FILENAME_FRIENDS_PAGES, FILENAME_FRIENDS);
+                movePages(FILENAME_GROUPS_PAGES, FILENAME_GROUPS);
 
                 File fileIsMember = new File(mContext.getFilesDir(), FILENAME_IS_MEMBER);
                 JSONArray jsonArrayIsMember = new JSONArray();
-                for (Map.Entry<Integer, ArrayList<Integer>> entry : data.mIsMember.entrySet()) {
+                for (int friendId : data.mIsMember.getFriendIds()) {
+                    int[] groupIds = data.mIsMember.getGroupIds(friendId);
+                    if (groupIds == null || groupIds.length == 0) {
+                        continue;
+                    }
                     JSONObject jsonObjectFriend = new JSONObject();
-                    jsonObjectFriend.put(JSON_FRIEND_ID, entry.getKey());
+                    jsonObjectFriend.put(JSON_FRIEND_ID, friendId);
                     JSONArray jsonArrayGroups = new JSONArray();
-                    for (Integer group_id : entry.getValue()) {
+                    for (int group_id : groupIds) {
                         jsonArrayGroups.put(group_id);
                     }
                     jsonObjectFriend.put(JSON_GROUPS_ID_LIST, jsonArrayGroups);
@@ -137,12 +295,50 @@ public class DeviceDataSaver implements DataSaver, DeviceDataNames {
                 }
                 doSave(fileIsMember, jsonArrayIsMember);
                 setTimestamp(System.currentTimeMillis());
+
+                // данные сохранены целиком, продолжать прерванную загрузку больше не нужно.
+                handleClearCheckpoint();
             } catch (IOException | JSONException e) {
                 Log.e(TAG, e.toString(), e);
                 handleClear();
             }
         }
 
+        private void movePages(String pagesFilename, String filename) throws IOException {
+            File pages = new File(mContext.getFilesDir(), pagesFilename);
+            if (!pages.renameTo(new File(mContext.getFilesDir(), filename))) {
+                throw new IOException("can't move " + pagesFilename + " to " + filename);
+            }
+        }
+
+        /**
+         * Дописать страницу отдельной строкой.
+         * Если записать страницу не удалось, списки текущей загрузки не сохраняются совсем.
+         * Страницы прежних списков (от отмененной загрузки) отбрасываются.
+         */
+        private void handleAppendPage(Page page) {
+            if (mPagesBroken || page.mLists != mLists) {
+                return;
+            }
+            File file = new File(mContext.getFilesDir(), page.mFilename);
+            try {
+                doSave(file, page.mItems.toString() + "\n", true);
+            } catch (IOException e) {
+                Log.e(TAG, e.toString(), e);
+                handleClearPages();
+                mPagesBroken = true;
+            }
+        }
+
+        @SuppressWarnings("ResultOfMethodCallIgnored")
+        private void handleClearPages() {
+            mPagesBroken = false;
+            File friendsPages = new File(mContext.getFilesDir(), FILENAME_FRIENDS_PAGES);
+            friendsPages.delete();
+            File groupsPages = new File(mContext.getFilesDir(), FILENAME_GROUPS_PAGES);
+            groupsPages.delete();
+        }
+
         private void setTimestamp(long timeInMillis) {
             PreferenceManager.getDefaultSharedPreferences(mContext)
                     .edit()
@@ -151,10 +347,14 @@ public class DeviceDataSaver implements DataSaver, DeviceDataNames {
         }
 
         private void doSave(File file, Object object) throws IOException {
+            doSave(file, object.toString(), false);
+        }
+
+        private void doSave(File file, String string, boolean append) throws IOException {
             OutputStream outputStream = null;
             try {
-                outputStream = new FileOutputStream(file);
-                outputStream.write(object.toString().getBytes());
+                outputStream = new FileOutputStream(file, append);
+                outputStream.write(string.getBytes());
             }
             finally {
                 if (outputStream != null) {
@@ -176,6 +376,88 @@ public class DeviceDataSaver implements DataSaver, DeviceDataNames {
             is_member.delete();
             setTimestamp(-1);
         }
+
+        /**
+         * Прочитать контрольную точку, если она есть и не устарела.
+         * Иначе - начать новую, записав время ее начала.
+         * Недописанная (при аварийном завершении) последняя запись пропускается.
+         */
+        private void handleRestoreCheckpoint(RestoreCheckpointRequest request) {
+            File file = new File(mContext.getFilesDir(), FILENAME_IS_MEMBER_CHECKPOINT);
+            try {
+                if (file.exists()) {
+                    request.mRestored = readCheckpoint(file, request.mCheckpoint);
+                }
+                if (!request.mRestored) {
+                    JSONObject header = new JSONObject();
+                    header.put(JSON_TIMESTAMP, System.currentTimeMillis());
+                    doSave(file, header.toString() + "\n", false);
+                }
+            } catch (IOException | JSONException e) {
+                Log.e(TAG, e.toString(), e);
+                handleClearCheckpoint();
+            } finally {
+                request.mDone.countDown();
+            }
+        }
+
+        /**
+         * @return true, если контрольная точка не устарела и ее записи добавлены в checkpoint.
+         */
+        private boolean readCheckpoint(File file, IsMemberCheckpoint checkpoint) throws IOException {
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
+            try {
+                String header = bufferedReader.readLine();
+                long age;
+                try {
+                    age = System.currentTimeMillis() - new JSONObject(header).getLong(JSON_TIMESTAMP);
+                } catch (JSONException | NullPointerException e) {
+                    Log.e(TAG, "broken checkpoint header ## " + e);
+                    return false;
+                }
+                if (age < 0 || age > IsMemberCheckpoint.MAX_AGE) {
+                    return false;
+                }
+                int records = 0;
+                String line;
+                while ((line = bufferedReader.readLine()) != null) {
+                    try {
+                        checkpoint.addRecord(new JSONObject(line));
+                        ++records;
+                    } catch (JSONException e) {
+                        Log.e(TAG, "broken checkpoint record skipped ## " + e);
+                    }
+                }
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "checkpoint restored ## records == " + records + " checked == " + checkpoint.getCheckedCount());
+                }
+                return true;
+            } finally {
+                bufferedReader.close();
+            }
+        }
+
+        /**
+         * Дописать запись в контрольную точку.
+         * Если контрольной точки нет (она удалена), запись не сохраняется.
+         */
+        private void handleAppendCheckpoint(JSONObject record) {
+            File file = new File(mContext.getFilesDir(), FILENAME_IS_MEMBER_CHECKPOINT);
+            if (!file.exists()) {
+                return;
+            }
+            try {
+                doSave(file, record.toString() + "\n", true);
+            } catch (IOException e) {
+                Log.e(TAG, e.toString(), e);
+            }
+        }
+
+        @SuppressWarnings("ResultOfMethodCallIgnored")
+        private void handleClearCheckpoint() {
+            File checkpoint = new File(mContext.getFilesDir(), FILENAME_IS_MEMBER_CHECKPOINT);
+            checkpoint.delete();
+        }
     }
 
 }
@@ -0,0 +1,196 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import com.vk.sdk.api.VKParameters;
+
+/**
+ * Параметры для vkapi.execute, загружающего информацию о друзьях в группах
+ * и постранично - списки друзей и групп пользователя.
+ *
+ * Код скриптов постоянный, а id и номера страниц передаются отдельными параметрами запроса
+ * (в скрипте они доступны через Args).
+ * id упаковываются в одну строку через {@link #ID_SEPARATOR} и разделяются уже в скрипте (split).
+ * Разделители выбраны из символов, которые не кодируются в теле POST-запроса (в отличие от ',' -> "%2C").
+ * Массив строк, переданный в параметр user_ids, vk сам соединяет через запятую.
+ */
+final class ExecuteCodeBuilder {
+
+    /**
+     * Разделитель id в строке.
+     */
+    static final char ID_SEPARATOR = '_';
+
+    /**
+     * Разделитель пачек друзей в строке.
+     */
+    static final char ROW_SEPARATOR = '~';
+
+    static final String PARAM_CODE = "code";
+
+    /**
+     * Пачки друзей через {@link #ROW_SEPARATOR} или id друзей.
+     */
+    static final String PARAM_FRIENDS = "f";
+
+    /**
+     * id групп.
+     */
+    static final String PARAM_GROUPS = "g";
+
+    /**
+     * Номер пачки друзей для каждой группы.
+     */
+    static final String PARAM_ROWS = "r";
+
+    /**
+     * Смещение первой страницы.
+     */
+    static final String PARAM_OFFSET = "o";
+
+    /**
+     * Размер страницы.
+     */
+    static final String PARAM_COUNT = "c";
+
+    /**
+     * Кол-во страниц.
+     */
+    static final String PARAM_PAGES = "k";
+
+    /**
+     * Скрипт для groups.isMember.
+     * Параметры: {@link #PARAM_FRIENDS}, {@link #PARAM_GROUPS}, {@link #PARAM_ROWS}.
+     */
+    static final String IS_MEMBER_CODE = "var f=" + split(PARAM_FRIENDS, ROW_SEPARATOR) +
+            "var g=" + split(PARAM_GROUPS, ID_SEPARATOR) +
+            "var r=" + split(PARAM_ROWS, ID_SEPARATOR) +
+            "var s=[];var i=0;" +
+            "while(i<g.length){" +
+            "s=s+[{\"group_id\":g[i],\"members\":API.groups.isMember({\"group_id\":g[i]," +
+            "\"user_ids\":f[parseInt(r[i])].split(\"" + ID_SEPARATOR + "\")})}];" +
+            "i=i+1;}" +
+            "return s;";
+
+    /**
+     * Скрипт для groups.get.
+     * Параметры: {@link #PARAM_FRIENDS} - id друзей.
+     */
+    static final String FRIENDS_GROUPS_CODE = "var f=" + split(PARAM_FRIENDS, ID_SEPARATOR) +
+            "var s=[];var i=0;" +
+            "while(i<f.length){" +
+            "s=s+[API.groups.get({\"user_id\":f[i],\"count\":" + FriendsGroupsPlanner.GROUPS_PER_FRIEND + "})];" +
+            "i=i+1;}" +
+            "return s;";
+
+    /**
+     * Начало скриптов для страниц: o - смещение первой страницы, c - размер страницы, k - кол-во страниц.
+     */
+    private static final String PAGES_VARS = "var o=parseInt(Args." + PARAM_OFFSET + ");" +
+            "var c=parseInt(Args." + PARAM_COUNT + ");" +
+            "var k=parseInt(Args." + PARAM_PAGES + ");" +
+            "var s=[];var i=0;";
+
+    /**
+     * Скрипт для страниц friends.get.
+     * Параметры: {@link #PARAM_OFFSET}, {@link #PARAM_COUNT}, {@link #PARAM_PAGES}.
+     * Загрузка останавливается на первой неполной странице.
+     */
+    static final String FRIENDS_PAGES_CODE = PAGES_VARS +
+            "while(i<k){" +
+            "var p=API.friends.get({\"fields\":\"photo_50,can_write_private_message\",\"count\":c,\"offset\":o+i*c});" +
+            "s=s+[p];" +
+            "if(p.items.length<c){i=k;}" +
+            "i=i+1;}" +
+            "return s;";
+
+    /**
+     * Скрипт для страниц groups.get.
+     * Параметры те же, что у {@link #FRIENDS_PAGES_CODE}.
+     */
+    static final String GROUPS_PAGES_CODE = PAGES_VARS +
+            "while(i<k){" +
+            "var p=API.groups.get({\"extended\":1,\"count\":c,\"offset\":o+i*c});" +
+            "s=s+[p];" +
+            "if(p.items.length<c){i=k;}" +
+            "i=i+1;}" +
+            "return s;";
+
+    private ExecuteCodeBuilder() {
+    }
+
+    /**
+     * Соединить id через {@link #ID_SEPARATOR}.
+     */
+    static String join(int[] ids) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < ids.length; ++i) {
+            if (i > 0) {
+                s.append(ID_SEPARATOR);
+            }
+            s.append(ids[i]);
+        }
+        return s.toString();
+    }
+
+    /**
+     * Получить параметры запроса, проверяющего все ячейки части матрицы.
+     * i-й элемент ответа соответствует i-й ячейке.
+     */
+    static VKParameters getIsMemberParams(IsMemberChunk chunk) {
+        StringBuilder f = new StringBuilder();
+        for (IsMemberChunk.Row row : chunk.mRows) {
+            if (f.length() > 0) {
+                f.append(ROW_SEPARATOR);
+            }
+            f.append(row.mFriendIdsString);
+        }
+        StringBuilder g = new StringBuilder();
+        StringBuilder r = new StringBuilder();
+        for (IsMemberChunk.Cell cell : chunk.mCells) {
+            if (g.length() > 0) {
+                g.append(ID_SEPARATOR);
+                r.append(ID_SEPARATOR);
+            }
+            g.append(cell.mGroupId);
+            r.append(chunk.mRows.indexOf(cell.mRow));
+        }
+        return VKParameters.from(PARAM_CODE, IS_MEMBER_CODE,
+                PARAM_FRIENDS, f.toString(), PARAM_GROUPS, g.toString(), PARAM_ROWS, r.toString());
+    }
+
+    /**
+     * Получить параметры запроса, загружающего группы переданных друзей.
+     * i-й элемент ответа соответствует i-му другу.
+     */
+    static VKParameters getFriendsGroupsParams(int[] friendIds) {
+        return VKParameters.from(PARAM_CODE, FRIENDS_GROUPS_CODE, PARAM_FRIENDS, join(friendIds));
+    }
+
+    /**
+     * Получить параметры запроса, загружающего до {@link ListPages#PAGES_PER_REQUEST} страниц друзей, начиная с offset.
+     * i-й элемент ответа - i-я страница.
+     */
+    static VKParameters getFriendsPagesParams(int offset) {
+        return getPagesParams(FRIENDS_PAGES_CODE, offset, ListPages.FRIENDS_PAGE_SIZE);
+    }
+
+    /**
+     * Получить параметры запроса, загружающего до {@link ListPages#PAGES_PER_REQUEST} страниц групп, начиная с offset.
+     * i-й элемент ответа - i-я страница.
+     */
+    static VKParameters getGroupsPagesParams(int offset) {
+        return getPagesParams(GROUPS_PAGES_CODE, offset, ListPages.GROUPS_PAGE_SIZE);
+    }
+
+    private static VKParameters getPagesParams(String code, int offset, int pageSize) {
+        return VKParameters.from(PARAM_CODE, code,
+                PARAM_OFFSET, offset, PARAM_COUNT, pageSize, PARAM_PAGES, ListPages.PAGES_PER_REQUEST);
+    }
+
+    /**
+     * Разделение строки из параметра на массив.
+     */
+    private static String split(String param, char separator) {
+        return "Args." + param + ".split(\"" + separator + "\");";
+    }
+
+}
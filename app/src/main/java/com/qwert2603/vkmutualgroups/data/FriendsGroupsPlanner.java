@@ -0,0 +1,78 @@
+package com.qwert2603.vkmutualgroups.data;
+
+/**
+ * Планировщик запросов groups.get для каждого друга.
+ * Упаковывает друзей по 25 в запросы vkapi.execute.
+ * Группы друга потом пересекаются с группами пользователя на устройстве.
+ * Все методы потокобезопасны.
+ */
+class FriendsGroupsPlanner {
+
+    /**
+     * Кол-во друзей в 1 запросе.
+     * Не больше 25. (ограничение в 25 запросов к api в vkapi.execute).
+     */
+    static final int FRIENDS_PER_REQUEST = 25;
+
+    /**
+     * Сколько групп друга загружать (максимум для groups.get).
+     * Если у друга групп больше, его группы проверяются через groups.isMember.
+     */
+    static final int GROUPS_PER_FRIEND = 1000;
+
+    private final int[] mFriendIds;
+
+    /**
+     * Друг, с которого начнется следующий запрос.
+     */
+    private int mNextFriend = 0;
+
+    FriendsGroupsPlanner(int[] friendIds) {
+        // порядок друзей меняется в setHotFriends.
+        mFriendIds = friendIds.clone();
+    }
+
+    /**
+     * Кол-во запросов, необходимое для загрузки групп всех друзей.
+     */
+    static int estimateRequestCount(int friendsCount) {
+        return (friendsCount + FRIENDS_PER_REQUEST - 1) / FRIENDS_PER_REQUEST;
+    }
+
+    synchronized boolean hasNext() {
+        return mNextFriend < mFriendIds.length;
+    }
+
+    /**
+     * id друзей для следующего запроса. Не более {@link #FRIENDS_PER_REQUEST}.
+     */
+    synchronized int[] next() {
+        int friendEnd = Math.min(mNextFriend + FRIENDS_PER_REQUEST, mFriendIds.length);
+        int[] result = new int[friendEnd - mNextFriend];
+        System.arraycopy(mFriendIds, mNextFriend, result, 0, result.length);
+        mNextFriend = friendEnd;
+        return result;
+    }
+
+    /**
+     * Переместить видимых друзей, для которых запрос еще не отправлен, в начало очереди.
+     */
+    synchronized void setHotFriends(int[] friendIds) {
+        int hotEnd = mNextFriend;
+        for (int friendId : friendIds) {
+            for (int i = hotEnd; i < mFriendIds.length; ++i) {
+                if (mFriendIds[i] == friendId) {
+                    mFriendIds[i] = mFriendIds[hotEnd];
+                    mFriendIds[hotEnd] = friendId;
+                    ++hotEnd;
+                    break;
+                }
+            }
+        }
+    }
+
+    synchronized int estimateRequestsRemain() {
+        return estimateRequestCount(mFriendIds.length - mNextFriend);
+    }
+
+}
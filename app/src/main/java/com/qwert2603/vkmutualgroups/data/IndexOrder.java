@@ -0,0 +1,114 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import java.util.Arrays;
+
+/**
+ * Порядки элементов канонического массива в виде перестановок их номеров (int[]).
+ * Сравниваются номера по заранее вычисленным ключам (кол-ву общих групп, ключу сортировки имени),
+ * так что для нового порядка сами элементы не копируются и не сравниваются.
+ */
+final class IndexOrder {
+
+    /**
+     * Сравнение элементов по их номерам в каноническом массиве.
+     */
+    interface IndexComparator {
+        int compare(int lhs, int rhs);
+    }
+
+    private IndexOrder() {
+    }
+
+    /**
+     * Номера 0..count-1.
+     */
+    static int[] identity(int count) {
+        int[] result = new int[count];
+        for (int i = 0; i < count; ++i) {
+            result[i] = i;
+        }
+        return result;
+    }
+
+    /**
+     * Отсортированная копия перестановки (сортировка слиянием, устойчивая).
+     */
+    static int[] sort(int[] order, IndexComparator comparator) {
+        int[] result = order.clone();
+        int[] buffer = new int[result.length];
+        for (int width = 1; width < result.length; width *= 2) {
+            for (int b = 0; b < result.length; b += 2 * width) {
+                int m = Math.min(b + width, result.length);
+                int e = Math.min(b + 2 * width, result.length);
+                int l = b;
+                int r = m;
+                int i = b;
+                while (l < m && r < e) {
+                    buffer[i++] = (comparator.compare(result[r], result[l]) < 0) ? result[r++] : result[l++];
+                }
+                while (l < m) {
+                    buffer[i++] = result[l++];
+                }
+                while (r < e) {
+                    buffer[i++] = result[r++];
+                }
+            }
+            int[] t = result;
+            result = buffer;
+            buffer = t;
+        }
+        return result;
+    }
+
+    /**
+     * Позиция номера index в упорядоченной перестановке.
+     * Если его там нет, то (-(позиция для вставки) - 1), как в {@link Arrays#binarySearch(int[], int)}.
+     */
+    static int binarySearch(int[] order, int index, IndexComparator comparator) {
+        int l = 0;
+        int r = order.length - 1;
+        while (l <= r) {
+            int m = (l + r) >>> 1;
+            int c = comparator.compare(order[m], index);
+            if (c < 0) {
+                l = m + 1;
+            } else if (c > 0) {
+                r = m - 1;
+            } else {
+                return m;
+            }
+        }
+        return -l - 1;
+    }
+
+    /**
+     * Копия упорядоченной перестановки с добавленным номером.
+     */
+    static int[] insert(int[] order, int index, IndexComparator comparator) {
+        int position = binarySearch(order, index, comparator);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        int[] result = new int[order.length + 1];
+        System.arraycopy(order, 0, result, 0, position);
+        result[position] = index;
+        System.arraycopy(order, position, result, position + 1, order.length - position);
+        return result;
+    }
+
+    /**
+     * Копия упорядоченной перестановки без номера.
+     * Если номера в ней нет, null.
+     */
+    static int[] remove(int[] order, int index, IndexComparator comparator) {
+        int position = binarySearch(order, index, comparator);
+        if (position < 0 || order[position] != index) {
+            return null;
+        }
+        int[] result = new int[order.length - 1];
+        System.arraycopy(order, 0, result, 0, position);
+        System.arraycopy(order, position + 1, result, position, result.length - position);
+        return result;
+    }
+
+}
@@ -0,0 +1,310 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Контрольная точка загрузки информации о друзьях в группах.
+ * Хранит, какие пары "друг-группа" уже проверены (в прерванной загрузке или в предыдущей загрузке,
+ * если обновление идет по разнице), и найденные общие группы.
+ * Учитываются только текущие друзья и группы пользователя (переданные в конструктор).
+ *
+ * На устройстве контрольная точка хранится построчно:
+ * в первой строке - время начала загрузки, в каждой следующей - запись об одном выполненном запросе.
+ * Запись состоит из блоков (прямоугольников "друзья × группы", которые проверены полностью)
+ * и общих групп, найденных в этих блоках.
+ *
+ * Изменяется только до начала отправки запросов, после этого только читается.
+ */
+class IsMemberCheckpoint implements DeviceDataNames {
+
+    /**
+     * Сколько мс контрольная точка остается действительной.
+     * Более старые данные о друзьях в группах лучше загрузить заново.
+     */
+    static final long MAX_AGE = 6 * 60 * 60 * 1000;
+
+    /**
+     * Полностью проверенный прямоугольник "друзья × группы".
+     */
+    static class Block {
+        final int[] mFriendIds;
+        final int[] mGroupIds;
+
+        Block(int[] friendIds, int[] groupIds) {
+            mFriendIds = friendIds;
+            mGroupIds = groupIds;
+        }
+    }
+
+    /**
+     * Запись о выполненном запросе, заполняемая по ходу разбора ответа.
+     * Общие группы хранятся парами "друг-группа" в массиве, без карты и объектов Integer.
+     * Заполняется в одном потоке.
+     */
+    static class Record {
+        /**
+         * Пары: "id друга" в старших 32 битах, "id группы" - в младших.
+         */
+        private long[] mMembers = new long[16];
+        private int mMembersCount = 0;
+
+        void addMember(int friendId, int groupId) {
+            if (mMembersCount == mMembers.length) {
+                mMembers = Arrays.copyOf(mMembers, mMembersCount * 2);
+            }
+            mMembers[mMembersCount++] = ((long) friendId << 32) | (groupId & 0xFFFFFFFFL);
+        }
+
+        /**
+         * Создать запись для сохранения на устройстве.
+         *
+         * @param blocks - проверенные запросом прямоугольники "друзья × группы".
+         */
+        JSONObject toJSON(List<Block> blocks) throws JSONException {
+            JSONArray blocksJSONArray = new JSONArray();
+            for (Block block : blocks) {
+                JSONObject blockJSONObject = new JSONObject();
+                blockJSONObject.put(JSON_FRIENDS_ID_LIST, toJSONArray(block.mFriendIds));
+                blockJSONObject.put(JSON_GROUPS_ID_LIST, toJSONArray(block.mGroupIds));
+                blocksJSONArray.put(blockJSONObject);
+            }
+
+            // после сортировки пары одного друга идут подряд.
+            long[] members = Arrays.copyOf(mMembers, mMembersCount);
+            Arrays.sort(members);
+            JSONArray isMemberJSONArray = new JSONArray();
+            JSONArray groupsJSONArray = null;
+            int friendId = 0;
+            for (long member : members) {
+                if (groupsJSONArray == null || (int) (member >> 32) != friendId) {
+                    friendId = (int) (member >> 32);
+                    groupsJSONArray = new JSONArray();
+                    JSONObject friendJSONObject = new JSONObject();
+                    friendJSONObject.put(JSON_FRIEND_ID, friendId);
+                    friendJSONObject.put(JSON_GROUPS_ID_LIST, groupsJSONArray);
+                    isMemberJSONArray.put(friendJSONObject);
+                }
+                groupsJSONArray.put((int) member);
+            }
+
+            JSONObject record = new JSONObject();
+            record.put(JSON_BLOCKS, blocksJSONArray);
+            record.put(JSON_IS_MEMBER, isMemberJSONArray);
+            return record;
+        }
+    }
+
+    /**
+     * Карта: "id друга" - "его номер в матрице".
+     */
+    private final HashMap<Integer, Integer> mFriendIndexes = new HashMap<>();
+
+    /**
+     * Карта: "id группы" - "ее номер в матрице".
+     */
+    private final HashMap<Integer, Integer> mGroupIndexes = new HashMap<>();
+
+    /**
+     * Проверенные пары. Номер бита: "номер друга" * "кол-во групп" + "номер группы".
+     */
+    private final BitSet mChecked = new BitSet();
+
+    /**
+     * Общие группы в проверенных парах.
+     */
+    private final IsMemberMatrix mIsMember;
+
+    IsMemberCheckpoint(int[] friendIds, int[] groupIds) {
+        mIsMember = new IsMemberMatrix(friendIds, groupIds);
+        for (int i = 0; i < friendIds.length; ++i) {
+            mFriendIndexes.put(friendIds[i], i);
+        }
+        for (int i = 0; i < groupIds.length; ++i) {
+            mGroupIndexes.put(groupIds[i], i);
+        }
+    }
+
+    /**
+     * Проверена ли пара "друг-группа".
+     */
+    boolean isChecked(int friendId, int groupId) {
+        Integer friendIndex = mFriendIndexes.get(friendId);
+        Integer groupIndex = mGroupIndexes.get(groupId);
+        return friendIndex != null && groupIndex != null && mChecked.get(getBitIndex(friendIndex, groupIndex));
+    }
+
+    /**
+     * Проверен ли друг для всех групп.
+     */
+    boolean isFriendChecked(int friendId) {
+        Integer friendIndex = mFriendIndexes.get(friendId);
+        if (friendIndex == null) {
+            return false;
+        }
+        int from = getBitIndex(friendIndex, 0);
+        int to = from + mGroupIndexes.size();
+        return mChecked.nextClearBit(from) >= to;
+    }
+
+    /**
+     * Забыть все, что известно о друге.
+     * Он будет проверен заново для всех групп.
+     */
+    void forgetFriend(int friendId) {
+        Integer friendIndex = mFriendIndexes.get(friendId);
+        if (friendIndex == null) {
+            return;
+        }
+        int from = getBitIndex(friendIndex, 0);
+        mChecked.clear(from, from + mGroupIndexes.size());
+        mIsMember.clearFriend(friendId);
+    }
+
+    /**
+     * Кол-во друзей из переданных, еще не проверенных для группы.
+     */
+    int getUncheckedCount(int groupId, int[] friendIds) {
+        Integer groupIndex = mGroupIndexes.get(groupId);
+        if (groupIndex == null) {
+            return friendIds.length;
+        }
+        int result = 0;
+        for (int friendId : friendIds) {
+            Integer friendIndex = mFriendIndexes.get(friendId);
+            if (friendIndex == null || !mChecked.get(getBitIndex(friendIndex, groupIndex))) {
+                ++result;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Кол-во проверенных пар.
+     */
+    int getCheckedCount() {
+        return mChecked.cardinality();
+    }
+
+    /**
+     * Общие группы в проверенных парах.
+     */
+    IsMemberMatrix getIsMember() {
+        return mIsMember;
+    }
+
+    /**
+     * Добавить запись, прочитанную с устройства.
+     * Если запись повреждена, она не добавляется совсем.
+     */
+    void addRecord(JSONObject record) throws JSONException {
+        HashMap<Integer, ArrayList<Integer>> isMember = new HashMap<>();
+        JSONArray isMemberJSONArray = record.getJSONArray(JSON_IS_MEMBER);
+        int isMemberJSONArrayLength = isMemberJSONArray.length();
+        for (int i = 0; i < isMemberJSONArrayLength; ++i) {
+            JSONObject friendJSONObject = isMemberJSONArray.getJSONObject(i);
+            JSONArray groupsJSONArray = friendJSONObject.getJSONArray(JSON_GROUPS_ID_LIST);
+            ArrayList<Integer> groups = new ArrayList<>();
+            int groupsJSONArrayLength = groupsJSONArray.length();
+            for (int j = 0; j < groupsJSONArrayLength; ++j) {
+                groups.add(groupsJSONArray.getInt(j));
+            }
+            isMember.put(friendJSONObject.getInt(JSON_FRIEND_ID), groups);
+        }
+
+        ArrayList<Block> blocks = new ArrayList<>();
+        JSONArray blocksJSONArray = record.getJSONArray(JSON_BLOCKS);
+        int blocksJSONArrayLength = blocksJSONArray.length();
+        for (int i = 0; i < blocksJSONArrayLength; ++i) {
+            JSONObject blockJSONObject = blocksJSONArray.getJSONObject(i);
+            blocks.add(new Block(toIntArray(blockJSONObject.getJSONArray(JSON_FRIENDS_ID_LIST)),
+                    toIntArray(blockJSONObject.getJSONArray(JSON_GROUPS_ID_LIST))));
+        }
+
+        add(blocks, isMember);
+    }
+
+    /**
+     * Добавить проверенные прямоугольники "друзья × группы" и общие группы, найденные в них.
+     * Пары, которые уже были проверены ранее, не учитываются повторно.
+     * Друзья и группы, которых больше нет у пользователя, пропускаются.
+     *
+     * @param isMember - карта: "id друга" - "id общих с ним групп".
+     */
+    void add(List<Block> blocks, Map<Integer, ArrayList<Integer>> isMember) {
+        for (Map.Entry<Integer, ArrayList<Integer>> entry : isMember.entrySet()) {
+            for (int groupId : entry.getValue()) {
+                addMember(entry.getKey(), groupId);
+            }
+        }
+        setChecked(blocks);
+    }
+
+    /**
+     * То же, что {@link #add(List, Map)}, но общие группы берутся из матрицы.
+     */
+    void add(List<Block> blocks, IsMemberMatrix isMember) {
+        for (int friendId : isMember.getFriendIds()) {
+            int[] groupIds = isMember.getGroupIds(friendId);
+            if (groupIds == null) {
+                continue;
+            }
+            for (int groupId : groupIds) {
+                addMember(friendId, groupId);
+            }
+        }
+        setChecked(blocks);
+    }
+
+    private void addMember(int friendId, int groupId) {
+        if (!isChecked(friendId, groupId)) {
+            mIsMember.set(friendId, groupId);
+        }
+    }
+
+    private void setChecked(List<Block> blocks) {
+        for (Block block : blocks) {
+            for (int friendId : block.mFriendIds) {
+                Integer friendIndex = mFriendIndexes.get(friendId);
+                if (friendIndex == null) {
+                    continue;
+                }
+                for (int groupId : block.mGroupIds) {
+                    Integer groupIndex = mGroupIndexes.get(groupId);
+                    if (groupIndex != null) {
+                        mChecked.set(getBitIndex(friendIndex, groupIndex));
+                    }
+                }
+            }
+        }
+    }
+
+    private static int[] toIntArray(JSONArray jsonArray) throws JSONException {
+        int[] result = new int[jsonArray.length()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = jsonArray.getInt(i);
+        }
+        return result;
+    }
+
+    private static JSONArray toJSONArray(int[] ids) {
+        JSONArray result = new JSONArray();
+        for (int id : ids) {
+            result.put(id);
+        }
+        return result;
+    }
+
+    private int getBitIndex(int friendIndex, int groupIndex) {
+        return friendIndex * mGroupIndexes.size() + groupIndex;
+    }
+
+}
@@ -0,0 +1,28 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import org.json.JSONObject;
+
+/**
+ * Хранилище контрольной точки загрузки информации о друзьях в группах.
+ */
+interface IsMemberCheckpointStorage {
+
+    /**
+     * Добавить в checkpoint записи сохраненной контрольной точки.
+     * Если ее нет или она устарела, начать новую.
+     * Блокирует вызывающий поток до окончания чтения, поэтому вызывается только в фоновом потоке.
+     *
+     * @return была ли продолжена сохраненная контрольная точка.
+     */
+    boolean restoreCheckpoint(IsMemberCheckpoint checkpoint);
+
+    /**
+     * Дописать запись о выполненном запросе (в фоновом режиме).
+     */
+    void appendCheckpoint(JSONObject record);
+
+    /**
+     * Удалить контрольную точку.
+     */
+    void clearCheckpoint();
+}
@@ -0,0 +1,86 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import java.util.ArrayList;
+
+/**
+ * Часть матрицы "друзья × группы", обрабатываемая одним запросом vkapi.execute.
+ * Состоит из ячеек: в каждой ячейке одна группа и пачка друзей (один вызов groups.isMember).
+ */
+class IsMemberChunk {
+
+    /**
+     * Пачка друзей, общая для нескольких ячеек.
+     */
+    static class Row {
+        final int[] mFriendIds;
+
+        /**
+         * id друзей через {@link ExecuteCodeBuilder#ID_SEPARATOR} (для параметра user_ids).
+         */
+        final String mFriendIdsString;
+
+        Row(int[] friendIds) {
+            mFriendIds = friendIds;
+            mFriendIdsString = ExecuteCodeBuilder.join(friendIds);
+        }
+    }
+
+    /**
+     * Ячейка: группа и пачка друзей, для которых надо проверить членство в этой группе.
+     */
+    static class Cell {
+        final int mGroupId;
+        final Row mRow;
+
+        Cell(int groupId, Row row) {
+            mGroupId = groupId;
+            mRow = row;
+        }
+    }
+
+    final ArrayList<Cell> mCells = new ArrayList<>();
+
+    /**
+     * Пачки друзей, на которые ссылаются ячейки, в порядке первого появления.
+     */
+    final ArrayList<Row> mRows = new ArrayList<>();
+
+    /**
+     * Политика повтора этой части при ошибках.
+     * Общая с частью, из которой выделена эта часть при повторе.
+     */
+    final ChunkRetryPolicy mRetryPolicy;
+
+    /**
+     * Состоит ли часть из ячеек для видимых пользователю друзей и групп.
+     * Ее результат сразу показывается пользователю.
+     */
+    boolean mHot = false;
+
+    IsMemberChunk() {
+        this(new ChunkRetryPolicy());
+    }
+
+    IsMemberChunk(ChunkRetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    void addCell(Cell cell) {
+        mCells.add(cell);
+        if (!mRows.contains(cell.mRow)) {
+            mRows.add(cell.mRow);
+        }
+    }
+
+    /**
+     * Кол-во пар "друг-группа", проверяемых этим запросом.
+     */
+    int getPairsCount() {
+        int result = 0;
+        for (Cell cell : mCells) {
+            result += cell.mRow.mFriendIds.length;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,461 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import android.support.annotation.Nullable;
+
+import com.qwert2603.vkmutualgroups.util.VKApiCommunityArray_Fix;
+import com.vk.sdk.api.model.Identifiable;
+import com.vk.sdk.api.model.VKUsersArray;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Матрица "друзья × группы": в каких группах пользователя состоят его друзья.
+ * Хранится плотно: для каждого друга - битовая строка по номерам групп.
+ * Кол-во групп друга считается через popcount его строки, кол-во друзей в группе хранится отдельно.
+ * Группы друга возвращаются в порядке добавления групп (для загруженных данных - в порядке по умолчанию),
+ * друзья в группе - в порядке добавления друзей.
+ * Друзья и группы могут добавляться и удаляться. Все методы потокобезопасны.
+ *
+ * Результаты запросов приходят одновременно из нескольких потоков, поэтому {@link #set(int, int)}
+ * и {@link #addAll(Map)} не блокируют друг друга: биты и счетчики изменяются атомарно,
+ * а исключительная блокировка берется только при изменении состава друзей и групп.
+ */
+public class IsMemberMatrix {
+
+    private static final int BITS_PER_WORD = 64;
+
+    /**
+     * Чтение - для чтения и записи битов, запись - для изменения состава друзей и групп.
+     */
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    /**
+     * Карта: "id друга" - "номер его строки".
+     */
+    private final HashMap<Integer, Integer> mFriendIndexes = new HashMap<>();
+
+    /**
+     * Карта: "id группы" - "номер ее столбца".
+     */
+    private final HashMap<Integer, Integer> mGroupIndexes = new HashMap<>();
+
+    /**
+     * id друзей по номерам строк. У удаленных друзей - 0.
+     */
+    private int[] mFriendIds = new int[0];
+    private int mFriendsCount = 0;
+
+    /**
+     * id групп по номерам столбцов. У удаленных групп - 0.
+     */
+    private int[] mGroupIds = new int[0];
+    private int mGroupsCount = 0;
+
+    /**
+     * Строки матрицы. Все строки одной длины, достаточной для {@link #mGroupIds}.
+     */
+    private AtomicLongArray[] mRows = new AtomicLongArray[0];
+
+    /**
+     * Кол-во друзей в каждом столбце.
+     */
+    private AtomicIntegerArray mColumnCounts = new AtomicIntegerArray(0);
+
+    public IsMemberMatrix() {
+    }
+
+    public IsMemberMatrix(int[] friendIds, int[] groupIds) {
+        for (int groupId : groupIds) {
+            addGroup(groupId);
+        }
+        for (int friendId : friendIds) {
+            addFriend(friendId);
+        }
+    }
+
+    public IsMemberMatrix(VKUsersArray friends, VKApiCommunityArray_Fix groups) {
+        this(getIds(friends), getIds(groups));
+    }
+
+    private static int[] getIds(List<? extends Identifiable> list) {
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = list.get(i).getId();
+        }
+        return result;
+    }
+
+    private int getRowLength() {
+        return (mGroupIds.length + BITS_PER_WORD - 1) / BITS_PER_WORD;
+    }
+
+    public void addFriend(int friendId) {
+        mLock.writeLock().lock();
+        try {
+            if (mFriendIndexes.containsKey(friendId)) {
+                return;
+            }
+            if (mFriendsCount == mFriendIds.length) {
+                int capacity = Math.max(16, mFriendsCount * 2);
+                mFriendIds = Arrays.copyOf(mFriendIds, capacity);
+                mRows = Arrays.copyOf(mRows, capacity);
+            }
+            mFriendIds[mFriendsCount] = friendId;
+            mRows[mFriendsCount] = new AtomicLongArray(getRowLength());
+            mFriendIndexes.put(friendId, mFriendsCount);
+            ++mFriendsCount;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    public void addGroup(int groupId) {
+        mLock.writeLock().lock();
+        try {
+            if (mGroupIndexes.containsKey(groupId)) {
+                return;
+            }
+            if (mGroupsCount == mGroupIds.length) {
+                int capacity = Math.max(BITS_PER_WORD, mGroupsCount * 2);
+                mGroupIds = Arrays.copyOf(mGroupIds, capacity);
+                AtomicIntegerArray columnCounts = new AtomicIntegerArray(capacity);
+                for (int g = 0; g < mGroupsCount; ++g) {
+                    columnCounts.set(g, mColumnCounts.get(g));
+                }
+                mColumnCounts = columnCounts;
+                int rowLength = getRowLength();
+                for (int f = 0; f < mFriendsCount; ++f) {
+                    AtomicLongArray row = new AtomicLongArray(rowLength);
+                    for (int w = 0; w < mRows[f].length(); ++w) {
+                        row.set(w, mRows[f].get(w));
+                    }
+                    mRows[f] = row;
+                }
+            }
+            mGroupIds[mGroupsCount] = groupId;
+            mGroupIndexes.put(groupId, mGroupsCount);
+            ++mGroupsCount;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    public void removeFriend(int friendId) {
+        mLock.writeLock().lock();
+        try {
+            Integer friendIndex = mFriendIndexes.remove(friendId);
+            if (friendIndex == null) {
+                return;
+            }
+            clearRow(friendIndex);
+            mFriendIds[friendIndex] = 0;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    public void removeGroup(int groupId) {
+        mLock.writeLock().lock();
+        try {
+            Integer groupIndex = mGroupIndexes.remove(groupId);
+            if (groupIndex == null) {
+                return;
+            }
+            int word = groupIndex / BITS_PER_WORD;
+            long mask = 1L << (groupIndex % BITS_PER_WORD);
+            for (int f = 0; f < mFriendsCount; ++f) {
+                AtomicLongArray row = mRows[f];
+                row.set(word, row.get(word) & ~mask);
+            }
+            mColumnCounts.set(groupIndex, 0);
+            mGroupIds[groupIndex] = 0;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    public boolean hasFriend(int friendId) {
+        mLock.readLock().lock();
+        try {
+            return mFriendIndexes.containsKey(friendId);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public boolean hasGroup(int groupId) {
+        mLock.readLock().lock();
+        try {
+            return mGroupIndexes.containsKey(groupId);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Отметить, что друг состоит в группе.
+     * Если друг или группа неизвестны, ничего не происходит.
+     */
+    public void set(int friendId, int groupId) {
+        mLock.readLock().lock();
+        try {
+            doSet(friendId, groupId);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Должен вызываться под {@link #mLock}.
+     */
+    private void doSet(int friendId, int groupId) {
+        Integer friendIndex = mFriendIndexes.get(friendId);
+        Integer groupIndex = mGroupIndexes.get(groupId);
+        if (friendIndex == null || groupIndex == null) {
+            return;
+        }
+        AtomicLongArray row = mRows[friendIndex];
+        int word = groupIndex / BITS_PER_WORD;
+        long mask = 1L << (groupIndex % BITS_PER_WORD);
+        while (true) {
+            long current = row.get(word);
+            if ((current & mask) != 0) {
+                return;
+            }
+            if (row.compareAndSet(word, current, current | mask)) {
+                // счетчик увеличивает только тот поток, который установил бит.
+                mColumnCounts.incrementAndGet(groupIndex);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Забыть, в каких группах состоит друг. Сам друг остается.
+     */
+    public void clearFriend(int friendId) {
+        mLock.writeLock().lock();
+        try {
+            Integer friendIndex = mFriendIndexes.get(friendId);
+            if (friendIndex != null) {
+                clearRow(friendIndex);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private void clearRow(int friendIndex) {
+        AtomicLongArray row = mRows[friendIndex];
+        for (int w = 0; w < row.length(); ++w) {
+            long word = row.get(w);
+            while (word != 0) {
+                mColumnCounts.decrementAndGet(w * BITS_PER_WORD + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+            row.set(w, 0);
+        }
+    }
+
+    public boolean isMember(int friendId, int groupId) {
+        mLock.readLock().lock();
+        try {
+            Integer friendIndex = mFriendIndexes.get(friendId);
+            Integer groupIndex = mGroupIndexes.get(groupId);
+            if (friendIndex == null || groupIndex == null) {
+                return false;
+            }
+            long word = mRows[friendIndex].get(groupIndex / BITS_PER_WORD);
+            return (word & (1L << (groupIndex % BITS_PER_WORD))) != 0;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Кол-во групп, общих с другом.
+     * Если друг неизвестен, -1.
+     */
+    public int getGroupsCount(int friendId) {
+        mLock.readLock().lock();
+        try {
+            Integer friendIndex = mFriendIndexes.get(friendId);
+            if (friendIndex == null) {
+                return -1;
+            }
+            AtomicLongArray row = mRows[friendIndex];
+            int result = 0;
+            for (int w = 0; w < row.length(); ++w) {
+                result += Long.bitCount(row.get(w));
+            }
+            return result;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Кол-во друзей в группе.
+     * Если группа неизвестна, -1.
+     */
+    public int getFriendsCount(int groupId) {
+        mLock.readLock().lock();
+        try {
+            Integer groupIndex = mGroupIndexes.get(groupId);
+            return groupIndex != null ? mColumnCounts.get(groupIndex) : -1;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * id групп, общих с другом (строка матрицы).
+     * Если друг неизвестен, null.
+     */
+    @Nullable
+    public int[] getGroupIds(int friendId) {
+        mLock.readLock().lock();
+        try {
+            Integer friendIndex = mFriendIndexes.get(friendId);
+            if (friendIndex == null) {
+                return null;
+            }
+            // строка может меняться во время чтения, поэтому сначала копируем ее.
+            AtomicLongArray row = mRows[friendIndex];
+            long[] words = new long[row.length()];
+            int count = 0;
+            for (int w = 0; w < words.length; ++w) {
+                words[w] = row.get(w);
+                count += Long.bitCount(words[w]);
+            }
+            int[] result = new int[count];
+            int i = 0;
+            for (int w = 0; w < words.length; ++w) {
+                long word = words[w];
+                while (word != 0) {
+                    result[i++] = mGroupIds[w * BITS_PER_WORD + Long.numberOfTrailingZeros(word)];
+                    word &= word - 1;
+                }
+            }
+            return result;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * id друзей в группе (столбец матрицы).
+     * Если группа неизвестна, null.
+     */
+    @Nullable
+    public int[] getFriendIds(int groupId) {
+        mLock.readLock().lock();
+        try {
+            Integer groupIndex = mGroupIndexes.get(groupId);
+            if (groupIndex == null) {
+                return null;
+            }
+            int word = groupIndex / BITS_PER_WORD;
+            long mask = 1L << (groupIndex % BITS_PER_WORD);
+            int[] result = new int[mFriendsCount];
+            int count = 0;
+            for (int f = 0; f < mFriendsCount; ++f) {
+                if ((mRows[f].get(word) & mask) != 0) {
+                    result[count++] = mFriendIds[f];
+                }
+            }
+            return Arrays.copyOf(result, count);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * id всех друзей в порядке добавления.
+     */
+    public int[] getFriendIds() {
+        mLock.readLock().lock();
+        try {
+            int[] result = new int[mFriendIndexes.size()];
+            int i = 0;
+            for (int f = 0; f < mFriendsCount; ++f) {
+                if (mFriendIds[f] != 0) {
+                    result[i++] = mFriendIds[f];
+                }
+            }
+            return result;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * id всех групп в порядке добавления.
+     */
+    public int[] getGroupIds() {
+        mLock.readLock().lock();
+        try {
+            int[] result = new int[mGroupIndexes.size()];
+            int i = 0;
+            for (int g = 0; g < mGroupsCount; ++g) {
+                if (mGroupIds[g] != 0) {
+                    result[i++] = mGroupIds[g];
+                }
+            }
+            return result;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Копия матрицы с теми же друзьями и группами в том же порядке.
+     */
+    public IsMemberMatrix copy() {
+        IsMemberMatrix result = new IsMemberMatrix(getFriendIds(), getGroupIds());
+        result.addAll(this);
+        return result;
+    }
+
+    /**
+     * Добавить информацию о друзьях в группах.
+     * Карта: "id друга" - "id общих с ним групп".
+     * Может вызываться одновременно из нескольких потоков.
+     */
+    public void addAll(Map<Integer, ? extends List<Integer>> isMember) {
+        mLock.readLock().lock();
+        try {
+            for (Map.Entry<Integer, ? extends List<Integer>> entry : isMember.entrySet()) {
+                int friendId = entry.getKey();
+                for (int groupId : entry.getValue()) {
+                    doSet(friendId, groupId);
+                }
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Добавить информацию о друзьях в группах из другой матрицы.
+     * Учитываются только друзья и группы, известные этой матрице.
+     */
+    public void addAll(IsMemberMatrix isMember) {
+        for (int friendId : isMember.getFriendIds()) {
+            int[] groupIds = isMember.getGroupIds(friendId);
+            if (groupIds == null) {
+                continue;
+            }
+            for (int groupId : groupIds) {
+                set(friendId, groupId);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,395 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.qwert2603.vkmutualgroups.BuildConfig;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Планировщик запросов groups.isMember.
+ * Разбивает матрицу "друзья × группы" на ячейки (одна группа × пачка друзей)
+ * и упаковывает их по 25 в запросы vkapi.execute.
+ * Ячейки разных пачек друзей могут попасть в один запрос, так что запросы не бывают полупустыми.
+ * Размер пачки друзей подстраивается по времени ответа, размеру ответа и ошибкам.
+ * Пары, уже проверенные в прерванной загрузке (по контрольной точке), пропускаются.
+ * Друзья и группы, видимые пользователю ({@link #setHotFriends(int[])}, {@link #setHotGroups(int[])}),
+ * проверяются в первую очередь отдельными запросами.
+ * Все методы потокобезопасны.
+ */
+class IsMemberPlanner {
+
+    @SuppressWarnings("unused")
+    private static final String TAG = "IsMemberPlanner";
+
+    /**
+     * Максимальное кол-во друзей в одной ячейке (ограничение groups.isMember).
+     */
+    static final int MAX_FRIENDS_PER_ROW = 500;
+
+    /**
+     * Минимальное кол-во друзей в одной ячейке, до которого уменьшается пачка при ошибках.
+     */
+    static final int MIN_FRIENDS_PER_ROW = 50;
+
+    /**
+     * Начальное кол-во друзей в одной ячейке.
+     */
+    static final int START_FRIENDS_PER_ROW = 200;
+
+    /**
+     * На сколько увеличивается пачка друзей после быстрого ответа.
+     */
+    static final int FRIENDS_PER_ROW_STEP = 100;
+
+    /**
+     * Кол-во ячеек в 1 запросе.
+     * Не больше 25. (ограничение в 25 запросов к api в vkapi.execute).
+     */
+    static final int CELLS_PER_REQUEST = 25;
+
+    /**
+     * Желаемое время выполнения 1 запроса (мс).
+     */
+    static final long TARGET_RESPONSE_TIME = 2000;
+
+    /**
+     * Желаемый максимальный размер ответа на 1 запрос (символов).
+     */
+    static final int TARGET_RESPONSE_LENGTH = 512 * 1024;
+
+    private final int[] mFriendIds;
+    private final int[] mGroupIds;
+
+    /**
+     * Контрольная точка прерванной загрузки.
+     * Если == null, проверяются все пары.
+     */
+    @Nullable
+    private final IsMemberCheckpoint mCheckpoint;
+
+    /**
+     * Сколько друзей будет в следующей пачке.
+     */
+    private int mFriendsPerRow = START_FRIENDS_PER_ROW;
+
+    /**
+     * Текущая пачка друзей.
+     */
+    private IsMemberChunk.Row mRow;
+
+    /**
+     * Части текущей пачки друзей, еще не проверенные для некоторых групп.
+     * Карта: "id друзей через запятую" - "пачка".
+     * Одинаковые части используются в разных ячейках, чтобы не увеличивать запрос.
+     */
+    private final HashMap<String, IsMemberChunk.Row> mUncheckedRows = new HashMap<>();
+
+    /**
+     * Друг, с которого начнется следующая пачка.
+     */
+    private int mNextFriend = 0;
+
+    /**
+     * Ячейки для видимых друзей и групп. Отправляются раньше остальных.
+     */
+    private final ArrayDeque<IsMemberChunk.Cell> mHotCells = new ArrayDeque<>();
+
+    /**
+     * Видимые друзья, уже запланированные для всех групп, кроме {@link #mHotGroups}.
+     * В пачки друзей они больше не попадают.
+     */
+    private final HashSet<Integer> mHotFriends = new HashSet<>();
+
+    /**
+     * Видимые группы, уже запланированные для всех еще не проверенных друзей.
+     * Для пачек друзей они больше не используются.
+     */
+    private final HashSet<Integer> mHotGroups = new HashSet<>();
+
+    /**
+     * Карта: "id друга" - "его номер в {@link #mFriendIds}".
+     * Создается при первом вызове {@link #setHotFriends(int[])}.
+     */
+    private HashMap<Integer, Integer> mFriendIndexes;
+
+    /**
+     * Группа, для которой будет создана следующая ячейка текущей пачки.
+     */
+    private int mNextGroup;
+
+    IsMemberPlanner(int[] friendIds, int[] groupIds) {
+        this(friendIds, groupIds, null);
+    }
+
+    IsMemberPlanner(int[] friendIds, int[] groupIds, @Nullable IsMemberCheckpoint checkpoint) {
+        mFriendIds = friendIds;
+        mGroupIds = groupIds;
+        mCheckpoint = checkpoint;
+        mNextGroup = mGroupIds.length;
+    }
+
+    /**
+     * Кол-во запросов, необходимое для обработки всей матрицы,
+     * если пачки друзей будут максимального размера.
+     */
+    static int estimateRequestCount(int friendsCount, int groupsCount) {
+        int rows = (friendsCount + MAX_FRIENDS_PER_ROW - 1) / MAX_FRIENDS_PER_ROW;
+        return (rows * groupsCount + CELLS_PER_REQUEST - 1) / CELLS_PER_REQUEST;
+    }
+
+    /**
+     * Кол-во запросов, необходимое для проверки пар, еще не проверенных в контрольной точке,
+     * если пачки друзей будут максимального размера.
+     */
+    static int estimateRequestCount(int[] friendIds, int[] groupIds, IsMemberCheckpoint checkpoint) {
+        int cells = 0;
+        for (int groupId : groupIds) {
+            int unchecked = checkpoint.getUncheckedCount(groupId, friendIds);
+            cells += (unchecked + MAX_FRIENDS_PER_ROW - 1) / MAX_FRIENDS_PER_ROW;
+        }
+        return (cells + CELLS_PER_REQUEST - 1) / CELLS_PER_REQUEST;
+    }
+
+    /**
+     * Остались ли еще необработанные ячейки.
+     */
+    synchronized boolean hasNext() {
+        return !mHotCells.isEmpty() || hasNextRegular();
+    }
+
+    private boolean hasNextRegular() {
+        return mGroupIds.length > 0 && (mNextGroup < mGroupIds.length || mNextFriend < mFriendIds.length);
+    }
+
+    /**
+     * Следующая часть матрицы для запроса. Не более {@link #CELLS_PER_REQUEST} ячеек.
+     * Может оказаться пустой, если все оставшиеся пары уже проверены.
+     * Ячейки для видимых друзей и групп не смешиваются с остальными, чтобы их результат пришел как можно раньше.
+     */
+    synchronized IsMemberChunk next() {
+        IsMemberChunk chunk = new IsMemberChunk();
+        while (chunk.mCells.size() < CELLS_PER_REQUEST && !mHotCells.isEmpty()) {
+            chunk.addCell(mHotCells.poll());
+        }
+        if (!chunk.mCells.isEmpty()) {
+            chunk.mHot = true;
+            return chunk;
+        }
+        while (chunk.mCells.size() < CELLS_PER_REQUEST && hasNextRegular()) {
+            if (mNextGroup == mGroupIds.length) {
+                startNextRow();
+            }
+            int groupId = mGroupIds[mNextGroup];
+            if (!mHotGroups.contains(groupId)) {
+                IsMemberChunk.Row row = getUncheckedRow(mRow, groupId);
+                if (row != null) {
+                    chunk.addCell(new IsMemberChunk.Cell(groupId, row));
+                }
+            }
+            ++mNextGroup;
+        }
+        return chunk;
+    }
+
+    /**
+     * Запланировать в первую очередь видимых друзей: каждого для всех групп.
+     * Друзья, которые уже попали в пачки, пропускаются.
+     */
+    synchronized void setHotFriends(int[] friendIds) {
+        if (mFriendIndexes == null) {
+            mFriendIndexes = new HashMap<>();
+            for (int i = 0; i < mFriendIds.length; ++i) {
+                mFriendIndexes.put(mFriendIds[i], i);
+            }
+        }
+        ArrayList<Integer> hotFriendIds = new ArrayList<>();
+        for (int friendId : friendIds) {
+            Integer friendIndex = mFriendIndexes.get(friendId);
+            if (friendIndex != null && friendIndex >= mNextFriend && mHotFriends.add(friendId)) {
+                hotFriendIds.add(friendId);
+            }
+        }
+        if (hotFriendIds.isEmpty()) {
+            return;
+        }
+        ArrayList<IsMemberChunk.Cell> cells = new ArrayList<>();
+        for (IsMemberChunk.Row row : splitToRows(hotFriendIds)) {
+            for (int groupId : mGroupIds) {
+                // для видимых групп эти друзья уже запланированы.
+                if (!mHotGroups.contains(groupId)) {
+                    addHotCell(cells, groupId, row);
+                }
+            }
+        }
+        addHotCells(cells);
+    }
+
+    /**
+     * Запланировать в первую очередь видимые группы: каждую для всех еще не запланированных друзей.
+     */
+    synchronized void setHotGroups(int[] groupIds) {
+        ArrayList<IsMemberChunk.Cell> cells = new ArrayList<>();
+        for (int groupId : groupIds) {
+            int groupIndex = indexOf(mGroupIds, groupId);
+            if (groupIndex < 0 || !mHotGroups.add(groupId)) {
+                continue;
+            }
+            if (mRow != null && groupIndex >= mNextGroup) {
+                addHotCell(cells, groupId, mRow);
+            }
+            ArrayList<Integer> friendIds = new ArrayList<>();
+            for (int i = mNextFriend; i < mFriendIds.length; ++i) {
+                // видимые друзья для этой группы уже запланированы.
+                if (!mHotFriends.contains(mFriendIds[i])) {
+                    friendIds.add(mFriendIds[i]);
+                }
+            }
+            for (IsMemberChunk.Row row : splitToRows(friendIds)) {
+                addHotCell(cells, groupId, row);
+            }
+        }
+        addHotCells(cells);
+    }
+
+    private void addHotCell(ArrayList<IsMemberChunk.Cell> cells, int groupId, IsMemberChunk.Row row) {
+        IsMemberChunk.Row uncheckedRow = getUncheckedRow(row, groupId);
+        if (uncheckedRow != null) {
+            cells.add(new IsMemberChunk.Cell(groupId, uncheckedRow));
+        }
+    }
+
+    /**
+     * Новые ячейки для видимых элементов отправляются раньше запланированных ранее:
+     * пользователь, скорее всего, уже прокрутил список дальше.
+     */
+    private void addHotCells(ArrayList<IsMemberChunk.Cell> cells) {
+        for (int i = cells.size() - 1; i >= 0; --i) {
+            mHotCells.addFirst(cells.get(i));
+        }
+    }
+
+    private ArrayList<IsMemberChunk.Row> splitToRows(ArrayList<Integer> friendIds) {
+        ArrayList<IsMemberChunk.Row> result = new ArrayList<>();
+        for (int begin = 0; begin < friendIds.size(); begin += mFriendsPerRow) {
+            int end = Math.min(begin + mFriendsPerRow, friendIds.size());
+            int[] rowFriendIds = new int[end - begin];
+            for (int i = begin; i < end; ++i) {
+                rowFriendIds[i - begin] = friendIds.get(i);
+            }
+            result.add(new IsMemberChunk.Row(rowFriendIds));
+        }
+        return result;
+    }
+
+    private static int indexOf(int[] ids, int id) {
+        for (int i = 0; i < ids.length; ++i) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Часть пачки друзей, еще не проверенная для группы.
+     * Если все друзья пачки уже проверены, то null.
+     */
+    @Nullable
+    private IsMemberChunk.Row getUncheckedRow(IsMemberChunk.Row row, int groupId) {
+        if (row.mFriendIds.length == 0) {
+            return null;
+        }
+        if (mCheckpoint == null) {
+            return row;
+        }
+        int[] friendIds = new int[row.mFriendIds.length];
+        int count = 0;
+        for (int friendId : row.mFriendIds) {
+            if (!mCheckpoint.isChecked(friendId, groupId)) {
+                friendIds[count++] = friendId;
+            }
+        }
+        if (count == row.mFriendIds.length) {
+            return row;
+        }
+        if (count == 0) {
+            return null;
+        }
+        int[] uncheckedFriendIds = new int[count];
+        System.arraycopy(friendIds, 0, uncheckedFriendIds, 0, count);
+        IsMemberChunk.Row uncheckedRow = new IsMemberChunk.Row(uncheckedFriendIds);
+        IsMemberChunk.Row existingRow = mUncheckedRows.get(uncheckedRow.mFriendIdsString);
+        if (existingRow != null) {
+            return existingRow;
+        }
+        mUncheckedRows.put(uncheckedRow.mFriendIdsString, uncheckedRow);
+        return uncheckedRow;
+    }
+
+    /**
+     * Начать следующую пачку друзей. Видимые друзья, уже запланированные отдельно, пропускаются.
+     */
+    private void startNextRow() {
+        int[] friendIds = new int[mFriendsPerRow];
+        int count = 0;
+        while (count < mFriendsPerRow && mNextFriend < mFriendIds.length) {
+            int friendId = mFriendIds[mNextFriend++];
+            if (!mHotFriends.contains(friendId)) {
+                friendIds[count++] = friendId;
+            }
+        }
+        int[] rowFriendIds = new int[count];
+        System.arraycopy(friendIds, 0, rowFriendIds, 0, count);
+        mRow = new IsMemberChunk.Row(rowFriendIds);
+        mUncheckedRows.clear();
+        mNextGroup = 0;
+    }
+
+    /**
+     * Учесть успешно выполненный запрос.
+     *
+     * @param responseTime   - сколько времени выполнялся запрос (мс).
+     * @param responseLength - размер ответа (символов).
+     */
+    synchronized void onChunkCompleted(IsMemberChunk chunk, long responseTime, int responseLength) {
+        if (chunk.mCells.size() < CELLS_PER_REQUEST) {
+            // по неполному запросу нельзя судить о времени полного.
+            return;
+        }
+        if (responseTime > TARGET_RESPONSE_TIME || responseLength > TARGET_RESPONSE_LENGTH) {
+            mFriendsPerRow = Math.max(MIN_FRIENDS_PER_ROW, mFriendsPerRow * 2 / 3);
+        } else if (responseTime < TARGET_RESPONSE_TIME / 2 && responseLength < TARGET_RESPONSE_LENGTH / 2) {
+            mFriendsPerRow = Math.min(MAX_FRIENDS_PER_ROW, mFriendsPerRow + FRIENDS_PER_ROW_STEP);
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "onChunkCompleted ## time == " + responseTime + " length == " + responseLength
+                    + " friendsPerRow == " + mFriendsPerRow);
+        }
+    }
+
+    /**
+     * Учесть запрос, завершившийся ошибкой.
+     */
+    synchronized void onChunkFailed(IsMemberChunk chunk) {
+        mFriendsPerRow = Math.max(MIN_FRIENDS_PER_ROW, mFriendsPerRow / 2);
+    }
+
+    /**
+     * Примерное кол-во запросов, которые осталось отправить (при текущем размере пачки друзей).
+     */
+    synchronized int estimateRequestsRemain() {
+        if (mGroupIds.length == 0) {
+            return 0;
+        }
+        int friendsRemain = mFriendIds.length - mNextFriend;
+        int rowsRemain = (friendsRemain + mFriendsPerRow - 1) / mFriendsPerRow;
+        int cellsRemain = mHotCells.size() + (mGroupIds.length - mNextGroup) + rowsRemain * mGroupIds.length;
+        return (cellsRemain + CELLS_PER_REQUEST - 1) / CELLS_PER_REQUEST;
+    }
+
+}
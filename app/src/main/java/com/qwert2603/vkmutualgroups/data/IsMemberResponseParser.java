@@ -0,0 +1,134 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Разбор ответа на запрос vkapi.execute с вызовами groups.isMember.
+ * Ответ: {"response":[{"group_id":..., "members":[{"member":1, "user_id":...}, ...] или false}, ...]}.
+ * i-й элемент ответа соответствует i-й ячейке запроса.
+ */
+class IsMemberResponseParser {
+
+    /**
+     * Получатель результатов разбора.
+     */
+    interface Callback {
+        /**
+         * Друг состоит в группе ячейки.
+         */
+        void onMember(int cellIndex, int friendId);
+
+        /**
+         * groups.isMember для ячейки не выполнился.
+         */
+        void onCellFailed(int cellIndex);
+    }
+
+    /**
+     * Потоковый разбор ответа.
+     * Объекты для друзей и групп не создаются: пары "ячейка-друг" сразу передаются в callback.
+     */
+    static void parse(Reader in, Callback callback) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("response".equals(reader.nextName())) {
+                    parseCells(reader, callback);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            // JsonReader сообщает о неожиданной структуре так, а не через IOException.
+            throw new IOException(e.toString());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void parseCells(JsonReader reader, Callback callback) throws IOException {
+        reader.beginArray();
+        int cellIndex = 0;
+        while (reader.hasNext()) {
+            boolean failed = true;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("members".equals(reader.nextName()) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    parseMembers(reader, cellIndex, callback);
+                    failed = false;
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (failed) {
+                callback.onCellFailed(cellIndex);
+            }
+            ++cellIndex;
+        }
+        reader.endArray();
+    }
+
+    private static void parseMembers(JsonReader reader, int cellIndex, Callback callback) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            int friendId = 0;
+            boolean member = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "user_id":
+                        friendId = reader.nextInt();
+                        break;
+                    case "member":
+                        member = reader.nextInt() == 1;
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            if (member) {
+                callback.onMember(cellIndex, friendId);
+            }
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Разбор уже созданного JSON-объекта ответа.
+     * Используется, если строки ответа нет.
+     */
+    static void parseJSON(JSONObject jsonObject, Callback callback) throws JSONException {
+        JSONArray responseJSONArray = jsonObject.getJSONArray("response");
+        int responseJSONArrayLength = responseJSONArray.length();
+        for (int i = 0; i < responseJSONArrayLength; ++i) {
+            JSONObject groupJSONObject = responseJSONArray.getJSONObject(i);
+            Object members = groupJSONObject.get("members");
+            if (!(members instanceof JSONArray)) {
+                callback.onCellFailed(i);
+                continue;
+            }
+            JSONArray membersJSONArray = ((JSONArray) members);
+            int membersJSONArrayLength = membersJSONArray.length();
+            for (int j = 0; j < membersJSONArrayLength; ++j) {
+                JSONObject memberJSONObject = membersJSONArray.getJSONObject(j);
+                if (memberJSONObject.getInt("member") == 1) {
+                    callback.onMember(i, memberJSONObject.getInt("user_id"));
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Неизменяемая матрица "друзья × группы" для {@link DataSnapshot}.
+ * Друзья и группы задаются номерами в канонических массивах снимка, для каждого друга - битовая строка по номерам групп.
+ *
+ * Строки общие между снимками: изменение копирует массив ссылок на строки, массив кол-в друзей в группах
+ * и только те строки, в которых меняются биты. Вся матрица копируется только из {@link IsMemberMatrix} ({@link #freeze}).
+ */
+final class IsMemberSnapshot {
+
+    private static final int BITS_PER_WORD = 64;
+
+    private static final long[] EMPTY_ROW = new long[0];
+
+    /**
+     * Строки по номерам друзей. Строки не изменяются и могут быть короче, чем нужно для всех групп:
+     * недостающие биты - нули. У отсутствующих друзей - пустые строки.
+     */
+    private final long[][] mRows;
+
+    /**
+     * Кол-во друзей в каждой группе по номерам групп.
+     */
+    private final int[] mColumnCounts;
+
+    private IsMemberSnapshot(long[][] rows, int[] columnCounts) {
+        mRows = rows;
+        mColumnCounts = columnCounts;
+    }
+
+    /**
+     * Копия текущего состояния матрицы.
+     * @param friendIds - id друзей по номерам (0 - друга нет).
+     * @param groupIds - id групп по номерам (0 - группы нет).
+     */
+    static IsMemberSnapshot freeze(IsMemberMatrix isMember, int[] friendIds, int[] groupIds) {
+        HashMap<Integer, Integer> groupIndexes = new HashMap<>();
+        for (int g = 0; g < groupIds.length; ++g) {
+            if (groupIds[g] != 0) {
+                groupIndexes.put(groupIds[g], g);
+            }
+        }
+        long[][] rows = new long[friendIds.length][];
+        int[] columnCounts = new int[groupIds.length];
+        for (int f = 0; f < friendIds.length; ++f) {
+            int[] friendGroupIds = (friendIds[f] != 0) ? isMember.getGroupIds(friendIds[f]) : null;
+            if (friendGroupIds == null || friendGroupIds.length == 0) {
+                rows[f] = EMPTY_ROW;
+                continue;
+            }
+            long[] row = new long[getRowLength(groupIds.length)];
+            for (int groupId : friendGroupIds) {
+                Integer g = groupIndexes.get(groupId);
+                if (g != null) {
+                    row[g / BITS_PER_WORD] |= 1L << (g % BITS_PER_WORD);
+                    ++columnCounts[g];
+                }
+            }
+            rows[f] = row;
+        }
+        return new IsMemberSnapshot(rows, columnCounts);
+    }
+
+    private static int getRowLength(int groupsCount) {
+        return (groupsCount + BITS_PER_WORD - 1) / BITS_PER_WORD;
+    }
+
+    boolean isMember(int friend, int group) {
+        long[] row = mRows[friend];
+        int word = group / BITS_PER_WORD;
+        return word < row.length && (row[word] & (1L << (group % BITS_PER_WORD))) != 0;
+    }
+
+    /**
+     * Кол-во групп друга.
+     */
+    int getGroupsCount(int friend) {
+        int result = 0;
+        for (long word : mRows[friend]) {
+            result += Long.bitCount(word);
+        }
+        return result;
+    }
+
+    /**
+     * Кол-во друзей в группе.
+     */
+    int getFriendsCount(int group) {
+        return (group < mColumnCounts.length) ? mColumnCounts[group] : 0;
+    }
+
+    /**
+     * Номера групп друга по возрастанию.
+     */
+    int[] getGroups(int friend) {
+        long[] row = mRows[friend];
+        int[] result = new int[getGroupsCount(friend)];
+        int i = 0;
+        for (int w = 0; w < row.length; ++w) {
+            long word = row[w];
+            while (word != 0) {
+                result[i++] = w * BITS_PER_WORD + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Номера друзей в группе по возрастанию.
+     */
+    int[] getFriends(int group) {
+        int[] result = new int[getFriendsCount(group)];
+        int i = 0;
+        for (int f = 0; f < mRows.length && i < result.length; ++f) {
+            if (isMember(f, group)) {
+                result[i++] = f;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Матрица без групп друга. Строка друга становится пустой.
+     */
+    IsMemberSnapshot withoutFriend(int friend) {
+        int[] columnCounts = mColumnCounts.clone();
+        for (int group : getGroups(friend)) {
+            --columnCounts[group];
+        }
+        long[][] rows = mRows.clone();
+        rows[friend] = EMPTY_ROW;
+        return new IsMemberSnapshot(rows, columnCounts);
+    }
+
+    /**
+     * Матрица без друзей в группе. Копируются только строки друзей, состоящих в ней.
+     */
+    IsMemberSnapshot withoutGroup(int group) {
+        long[][] rows = mRows.clone();
+        int word = group / BITS_PER_WORD;
+        long mask = 1L << (group % BITS_PER_WORD);
+        for (int friend : getFriends(group)) {
+            long[] row = rows[friend].clone();
+            row[word] &= ~mask;
+            rows[friend] = row;
+        }
+        int[] columnCounts = mColumnCounts.clone();
+        columnCounts[group] = 0;
+        return new IsMemberSnapshot(rows, columnCounts);
+    }
+
+    /**
+     * Матрица с новой строкой друга.
+     * Номер друга может быть за пределами матрицы, тогда она расширяется.
+     * @param groups - номера групп друга.
+     */
+    IsMemberSnapshot withFriend(int friend, int[] groups) {
+        long[][] rows = Arrays.copyOf(mRows, Math.max(mRows.length, friend + 1));
+        for (int f = mRows.length; f < rows.length; ++f) {
+            rows[f] = EMPTY_ROW;
+        }
+        int[] columnCounts = mColumnCounts.clone();
+        long[] row = EMPTY_ROW;
+        for (int group : groups) {
+            int word = group / BITS_PER_WORD;
+            if (word >= row.length) {
+                row = Arrays.copyOf(row, word + 1);
+            }
+            row[word] |= 1L << (group % BITS_PER_WORD);
+            ++columnCounts[group];
+        }
+        rows[friend] = row;
+        return new IsMemberSnapshot(rows, columnCounts);
+    }
+
+    /**
+     * Матрица с новым столбцом группы. Копируются только строки друзей, состоящих в ней.
+     * Номер группы может быть за пределами матрицы, тогда она расширяется.
+     * @param friends - номера друзей в группе.
+     */
+    IsMemberSnapshot withGroup(int group, int[] friends) {
+        long[][] rows = mRows.clone();
+        int word = group / BITS_PER_WORD;
+        long mask = 1L << (group % BITS_PER_WORD);
+        for (int friend : friends) {
+            long[] row = Arrays.copyOf(rows[friend], Math.max(rows[friend].length, word + 1));
+            row[word] |= mask;
+            rows[friend] = row;
+        }
+        int[] columnCounts = Arrays.copyOf(mColumnCounts, Math.max(mColumnCounts.length, group + 1));
+        columnCounts[group] = friends.length;
+        return new IsMemberSnapshot(rows, columnCounts);
+    }
+
+}
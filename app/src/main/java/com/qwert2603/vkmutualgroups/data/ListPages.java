@@ -0,0 +1,109 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashSet;
+
+/**
+ * Постраничная загрузка списка друзей или групп пользователя.
+ * За один запрос vkapi.execute загружается до {@link #PAGES_PER_REQUEST} страниц
+ * (параметры - {@link ExecuteCodeBuilder#getFriendsPagesParams(int)}, {@link ExecuteCodeBuilder#getGroupsPagesParams(int)}).
+ * Каждая страница передается дальше сразу после разбора ответа,
+ * поэтому даже список из 10000 друзей не приходит одним ответом в несколько МБ.
+ *
+ * Если список изменится во время загрузки, элементы могут сдвинуться между страницами.
+ * Повторы при этом отбрасываются, а пропущенные элементы появятся при следующем обновлении.
+ */
+final class ListPages {
+
+    /**
+     * Размер страницы friends.get.
+     */
+    static final int FRIENDS_PAGE_SIZE = 1000;
+
+    /**
+     * Размер страницы groups.get (extended).
+     */
+    static final int GROUPS_PAGE_SIZE = 500;
+
+    /**
+     * Сколько страниц загружается одним запросом vkapi.execute.
+     */
+    static final int PAGES_PER_REQUEST = 3;
+
+    /**
+     * Слушатель разобранных страниц.
+     */
+    interface PageListener {
+        /**
+         * @param items - элементы страницы без повторов с предыдущими страницами.
+         */
+        void onPage(JSONArray items) throws JSONException;
+    }
+
+    private final int mPageSize;
+
+    /**
+     * Смещение первой страницы следующего запроса.
+     */
+    private int mNextOffset = 0;
+
+    /**
+     * id уже полученных элементов.
+     */
+    private final HashSet<Integer> mIds = new HashSet<>();
+
+    ListPages(int pageSize) {
+        mPageSize = pageSize;
+    }
+
+    int getNextOffset() {
+        return mNextOffset;
+    }
+
+    /**
+     * Разобрать ответ на запрос страниц и передать их в listener по порядку.
+     *
+     * @return есть ли еще страницы.
+     */
+    boolean onResponse(JSONObject json, PageListener listener) throws JSONException {
+        JSONArray pages = json.getJSONArray("response");
+        int pagesLength = pages.length();
+        boolean lastPage = pagesLength == 0;
+        int count = 0;
+        for (int i = 0; i < pagesLength; ++i) {
+            JSONObject page = pages.getJSONObject(i);
+            count = page.getInt("count");
+            JSONArray items = page.getJSONArray("items");
+            listener.onPage(removeRepeats(items));
+            mNextOffset += mPageSize;
+            if (items.length() < mPageSize) {
+                lastPage = true;
+            }
+        }
+        return !lastPage && mNextOffset < count;
+    }
+
+    private JSONArray removeRepeats(JSONArray items) throws JSONException {
+        JSONArray result = null;
+        int itemsLength = items.length();
+        for (int i = 0; i < itemsLength; ++i) {
+            JSONObject item = items.getJSONObject(i);
+            boolean repeat = !mIds.add(item.getInt("id"));
+            if (repeat && result == null) {
+                // копируется только страница, в которой есть повторы.
+                result = new JSONArray();
+                for (int j = 0; j < i; ++j) {
+                    result.put(items.get(j));
+                }
+            }
+            if (!repeat && result != null) {
+                result.put(item);
+            }
+        }
+        return result != null ? result : items;
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Порядок элементов по убыванию кол-ва (общих групп у друга или друзей в группе),
+ * а при равном кол-ве - по дополнительному порядку (tieOrder).
+ * Элементы задаются номерами в каноническом массиве и разложены по корзинам с одинаковым кол-вом,
+ * каждая корзина упорядочена по tieOrder.
+ * Когда у k элементов меняется кол-во, перемещаются только они (двоичным поиском в корзинах):
+ * O(k log n) сравнений вместо полной пересортировки.
+ *
+ * Не изменяется после создания. Изменения делаются через {@link Editor}, который заменяет
+ * только затронутые корзины, остальные остаются общими с прежним порядком.
+ */
+final class RankedOrder {
+
+    private static final String TAG = "RankedOrder";
+
+    /**
+     * Кол-во для элемента с номером index.
+     */
+    interface Counter {
+        int getCount(int index);
+    }
+
+    /**
+     * Корзины по убыванию кол-ва: "кол-во" - "номера элементов с этим кол-вом в порядке tieOrder".
+     * Пустых корзин нет.
+     */
+    private final TreeMap<Integer, int[]> mBuckets;
+
+    private final int mSize;
+
+    private RankedOrder(TreeMap<Integer, int[]> buckets, int size) {
+        mBuckets = buckets;
+        mSize = size;
+    }
+
+    /**
+     * Разложить элементы по корзинам без сравнений.
+     * @param order - номера элементов в порядке tieOrder.
+     */
+    static RankedOrder build(int[] order, Counter counter) {
+        int[] counts = new int[order.length];
+        TreeMap<Integer, Integer> sizes = new TreeMap<>();
+        for (int i = 0; i < order.length; ++i) {
+            counts[i] = counter.getCount(order[i]);
+            Integer size = sizes.get(counts[i]);
+            sizes.put(counts[i], (size != null) ? size + 1 : 1);
+        }
+        TreeMap<Integer, int[]> buckets = new TreeMap<>(Collections.reverseOrder());
+        for (Map.Entry<Integer, Integer> entry : sizes.entrySet()) {
+            buckets.put(entry.getKey(), new int[entry.getValue()]);
+        }
+        TreeMap<Integer, Integer> filled = new TreeMap<>();
+        for (int i = 0; i < order.length; ++i) {
+            Integer position = filled.get(counts[i]);
+            int p = (position != null) ? position : 0;
+            buckets.get(counts[i])[p] = order[i];
+            filled.put(counts[i], p + 1);
+        }
+        return new RankedOrder(buckets, order.length);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Номера всех элементов в порядке убывания кол-ва.
+     */
+    int[] toArray() {
+        int[] result = new int[mSize];
+        int i = 0;
+        for (int[] bucket : mBuckets.values()) {
+            System.arraycopy(bucket, 0, result, i, bucket.length);
+            i += bucket.length;
+        }
+        return result;
+    }
+
+    /**
+     * Начать изменение порядка.
+     * @param tieOrder - тот же порядок, в котором упорядочены корзины.
+     */
+    Editor edit(IndexOrder.IndexComparator tieOrder) {
+        return new Editor(this, tieOrder);
+    }
+
+    /**
+     * Изменение порядка. Результат - новый порядок из {@link #build()}, исходный не изменяется.
+     */
+    static final class Editor {
+
+        private final TreeMap<Integer, int[]> mBuckets;
+
+        private final IndexOrder.IndexComparator mTieOrder;
+
+        private int mSize;
+
+        private Editor(RankedOrder order, IndexOrder.IndexComparator tieOrder) {
+            mBuckets = new TreeMap<>(order.mBuckets);
+            mTieOrder = tieOrder;
+            mSize = order.mSize;
+        }
+
+        void add(int index, int count) {
+            int[] bucket = mBuckets.get(count);
+            mBuckets.put(count, IndexOrder.insert(bucket != null ? bucket : new int[0], index, mTieOrder));
+            ++mSize;
+        }
+
+        void remove(int index, int count) {
+            int[] bucket = mBuckets.get(count);
+            int[] result = (bucket != null) ? IndexOrder.remove(bucket, index, mTieOrder) : null;
+            if (result == null) {
+                Log.e(TAG, "ERROR!!! ITEM NOT FOUND!!! index == " + index + " count == " + count);
+                return;
+            }
+            if (result.length > 0) {
+                mBuckets.put(count, result);
+            } else {
+                mBuckets.remove(count);
+            }
+            --mSize;
+        }
+
+        /**
+         * Кол-во у элемента изменилось с oldCount на newCount.
+         */
+        void move(int index, int oldCount, int newCount) {
+            if (oldCount != newCount) {
+                remove(index, oldCount);
+                add(index, newCount);
+            }
+        }
+
+        RankedOrder build() {
+            return new RankedOrder(mBuckets, mSize);
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import com.qwert2603.vkmutualgroups.Listener;
+import com.qwert2603.vkmutualgroups.util.RequestMetrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Кеш ответов на запросы, которые только читают данные.
+ * Ответ хранится не дольше заданного времени, а всего хранится не больше заданного кол-ва ответов
+ * (вытесняются давно не использованные).
+ * Одинаковые запросы, переданные, пока первый из них выполняется, не отправляются, а ждут его ответа.
+ * Ошибки не кешируются.
+ * Попадания, промахи и присоединения к выполняющимся запросам считаются в {@link RequestMetrics}.
+ *
+ * Все ожидающие получают один и тот же объект ответа, поэтому изменять его нельзя.
+ * Должен использоваться в UI-потоке.
+ */
+class ResponseCache<K, V> {
+
+    /**
+     * Загрузчик ответа, если его нет в кеше.
+     */
+    interface Fetcher<K, V> {
+        void fetch(K key, Listener<V> listener);
+    }
+
+    private static class Entry<V> {
+        final V mValue;
+        final long mTime;
+
+        Entry(V value, long time) {
+            mValue = value;
+            mTime = time;
+        }
+    }
+
+    /**
+     * Название кеша в {@link RequestMetrics}.
+     */
+    private final String mName;
+
+    private final LruCache<K, Entry<V>> mEntries;
+
+    private final long mTtl;
+
+    /**
+     * Выполняющиеся запросы.
+     * Карта: "ключ" - "слушатели, ожидающие ответа".
+     */
+    private final HashMap<K, ArrayList<Listener<V>>> mInFlight = new HashMap<>();
+
+    /**
+     * Увеличивается при {@link #clear()}.
+     * Ответы на запросы, отправленные до очистки, не кешируются.
+     */
+    private int mGeneration = 0;
+
+    /**
+     * @param name    - название кеша в {@link RequestMetrics}.
+     * @param maxSize - сколько ответов хранить.
+     * @param ttl     - сколько мс ответ действителен.
+     */
+    ResponseCache(String name, int maxSize, long ttl) {
+        mName = name;
+        mEntries = new LruCache<>(maxSize);
+        mTtl = ttl;
+    }
+
+    /**
+     * Передать в listener ответ из кеша, если он есть и не устарел.
+     * Иначе - дождаться выполняющегося запроса с тем же ключом или загрузить через fetcher.
+     */
+    void get(K key, Fetcher<K, V> fetcher, Listener<V> listener) {
+        Entry<V> entry = mEntries.get(key);
+        if (entry != null && SystemClock.elapsedRealtime() - entry.mTime <= mTtl) {
+            RequestMetrics.onCacheHit(mName);
+            listener.onCompleted(entry.mValue);
+            return;
+        }
+        if (entry != null) {
+            mEntries.remove(key);
+        }
+
+        ArrayList<Listener<V>> waiting = mInFlight.get(key);
+        if (waiting != null) {
+            RequestMetrics.onCacheCoalesced(mName);
+            waiting.add(listener);
+            return;
+        }
+
+        RequestMetrics.onCacheMiss(mName);
+        ArrayList<Listener<V>> fetchWaiting = new ArrayList<>();
+        fetchWaiting.add(listener);
+        mInFlight.put(key, fetchWaiting);
+        int generation = mGeneration;
+        fetcher.fetch(key, new Listener<V>() {
+            @Override
+            public void onCompleted(V value) {
+                if (generation == mGeneration) {
+                    mEntries.put(key, new Entry<>(value, SystemClock.elapsedRealtime()));
+                }
+                removeInFlight(key, fetchWaiting);
+                for (Listener<V> l : fetchWaiting) {
+                    l.onCompleted(value);
+                }
+            }
+
+            @Override
+            public void onError(String e) {
+                removeInFlight(key, fetchWaiting);
+                for (Listener<V> l : fetchWaiting) {
+                    l.onError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Удалить выполнившийся запрос, если после {@link #clear()} с тем же ключом не был отправлен новый.
+     */
+    private void removeInFlight(K key, ArrayList<Listener<V>> waiting) {
+        if (mInFlight.get(key) == waiting) {
+            mInFlight.remove(key);
+        }
+    }
+
+    /**
+     * Удалить все ответы.
+     * Выполняющиеся запросы не отменяются, но их ответы не будут закешированы,
+     * а новые запросы с теми же ключами будут отправлены заново.
+     */
+    void clear() {
+        mEntries.evictAll();
+        mInFlight.clear();
+        ++mGeneration;
+    }
+
+}
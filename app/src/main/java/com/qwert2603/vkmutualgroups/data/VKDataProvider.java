@@ -1,28 +1,36 @@
 package com.qwert2603.vkmutualgroups.data;
 
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.qwert2603.vkmutualgroups.BuildConfig;
 import com.qwert2603.vkmutualgroups.Listener;
 import com.qwert2603.vkmutualgroups.util.VKApiCommunityArray_Fix;
 import com.qwert2603.vkmutualgroups.util.VkRequestsSender;
-import com.vk.sdk.api.VKApi;
-import com.vk.sdk.api.VKApiConst;
 import com.vk.sdk.api.VKError;
 import com.vk.sdk.api.VKParameters;
 import com.vk.sdk.api.VKRequest;
 import com.vk.sdk.api.VKResponse;
 import com.vk.sdk.api.model.VKApiCommunityFull;
-import com.vk.sdk.api.model.VKList;
+import com.vk.sdk.api.model.VKApiUserFull;
 import com.vk.sdk.api.model.VKUsersArray;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Загрузчик данных их VK (через vkapi).
@@ -38,10 +46,171 @@ public class VKDataProvider implements DataProvider {
      */
     private volatile DataSaver mDataSaver;
 
+    /**
+     * Слушатель прогресса загрузки информации о друзьях в группах.
+     * Если == null, прогресс никуда не передается.
+     */
+    private volatile ProgressListener mProgressListener;
+
     public VKDataProvider(@Nullable DataSaver dataSaver) {
         mDataSaver = dataSaver;
     }
 
+    /**
+     * Слушатель прогресса загрузки информации о друзьях в группах.
+     * Вызывается в UI-потоке после выполнения каждого запроса (vkapi.execute).
+     */
+    public interface ProgressListener {
+        void onProgress(int requestsDone, int requestsTotal);
+    }
+
+    public void setProgressListener(@Nullable ProgressListener progressListener) {
+        mProgressListener = progressListener;
+    }
+
+    /**
+     * Слушатель частичных результатов загрузки.
+     * Если == null, результаты передаются только целиком по окончании загрузки.
+     */
+    private volatile PartialResultsListener mPartialResultsListener;
+
+    /**
+     * Слушатель частичных результатов загрузки.
+     * Все методы вызываются в UI-потоке, до {@link Listener#onCompleted(Object)}.
+     */
+    public interface PartialResultsListener {
+        /**
+         * Друзья и группы загружены, загрузка информации о друзьях в группах только начинается.
+         */
+        void onFriendsAndGroupsLoaded(Data data);
+
+        /**
+         * Загружена очередная часть информации о друзьях в группах.
+         * Она уже добавлена в {@link Data#mIsMember} объекта, переданного в {@link #onFriendsAndGroupsLoaded(Data)}.
+         *
+         * @param hot - относится ли часть к видимым пользователю друзьям и группам
+         *            ({@link #setHotFriends(int[])}, {@link #setHotGroups(int[])}).
+         */
+        void onIsMemberLoaded(boolean hot);
+    }
+
+    public void setPartialResultsListener(@Nullable PartialResultsListener partialResultsListener) {
+        mPartialResultsListener = partialResultsListener;
+    }
+
+    /**
+     * Хранилище контрольной точки загрузки информации о друзьях в группах.
+     * Если == null, прерванная загрузка начинается заново.
+     */
+    private volatile IsMemberCheckpointStorage mCheckpointStorage;
+
+    void setCheckpointStorage(@Nullable IsMemberCheckpointStorage checkpointStorage) {
+        mCheckpointStorage = checkpointStorage;
+    }
+
+    /**
+     * Данные предыдущей (полностью завершенной) загрузки для обновления по разнице.
+     * Тогда проверяются только новые друзья со всеми группами и все друзья с новыми группами,
+     * а для остальных пар используются предыдущие данные.
+     * Если == null, проверяются все пары.
+     */
+    private volatile Data mPreviousData;
+
+    void setPreviousData(@Nullable Data previousData) {
+        mPreviousData = previousData;
+    }
+
+    /**
+     * Обработчик для передачи частичных результатов в UI-поток.
+     */
+    private final Handler mResponseHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Поток, в котором запросы загрузки ждут повтора.
+     * Повторы отправляются не из UI-потока, поэтому их ответы тоже обрабатываются не в нем.
+     */
+    private static final HandlerThread sRetryThread;
+
+    /**
+     * Обработчик повторов в {@link #sRetryThread}. Повторы помечаются загрузчиком, которому они принадлежат.
+     */
+    private static final Handler sRetryHandler;
+
+    static {
+        sRetryThread = new HandlerThread("VKDataProvider retries");
+        sRetryThread.start();
+        sRetryHandler = new Handler(sRetryThread.getLooper());
+    }
+
+    /**
+     * Отменена ли загрузка.
+     * После отмены слушатели больше не вызываются.
+     */
+    private volatile boolean mCancelled = false;
+
+    /**
+     * Текущая загрузка информации о друзьях в группах.
+     */
+    private volatile LoadTask mLoadTask;
+
+    /**
+     * Отменить загрузку: неотправленные запросы не отправляются, выполняющиеся прерываются,
+     * фоновая задача завершается, не дожидаясь их. Слушатели больше не вызываются.
+     * Должен вызываться в UI-потоке.
+     */
+    public void cancel() {
+        mCancelled = true;
+        VkRequestsSender.cancelRequests(this);
+        mResponseHandler.removeCallbacksAndMessages(null);
+        sRetryHandler.removeCallbacksAndMessages(this);
+        LoadTask loadTask = mLoadTask;
+        mLoadTask = null;
+        if (loadTask != null) {
+            loadTask.cancelLoading();
+        }
+    }
+
+    /**
+     * id друзей и групп, видимых пользователю.
+     * Информация о них загружается в первую очередь.
+     */
+    private volatile int[] mHotFriendIds = new int[0];
+    private volatile int[] mHotGroupIds = new int[0];
+
+    /**
+     * Загружать в первую очередь информацию о переданных друзьях (видимых пользователю).
+     * Результаты для них передаются в {@link PartialResultsListener#onIsMemberLoaded(boolean)} с hot == true.
+     */
+    public void setHotFriends(int[] friendIds) {
+        mHotFriendIds = friendIds;
+        LoadTask loadTask = mLoadTask;
+        if (loadTask != null) {
+            loadTask.applyHotSet();
+        }
+    }
+
+    /**
+     * Загружать в первую очередь информацию о переданных группах (видимых пользователю).
+     */
+    public void setHotGroups(int[] groupIds) {
+        mHotGroupIds = groupIds;
+        LoadTask loadTask = mLoadTask;
+        if (loadTask != null) {
+            loadTask.applyHotSet();
+        }
+    }
+
+    /**
+     * Передать в UI-поток, если загрузка не будет отменена к тому моменту.
+     */
+    private void postToUi(Runnable runnable) {
+        mResponseHandler.post(() -> {
+            if (!mCancelled) {
+                runnable.run();
+            }
+        });
+    }
+
     /**
      * Загрузить друзей, группы пользователя и инфо о друзьях в группах.
      */
@@ -51,40 +220,142 @@ public class VKDataProvider implements DataProvider {
         loadFriends(data, listener);
     }
 
+    /**
+     * Загрузить друзей по страницам ({@link ListPages}).
+     * Страницы добавляются в data и передаются в {@link #mDataSaver} по мере получения.
+     */
     private void loadFriends(Data data, Listener<Data> listener) {
-        VKParameters friendsParameters = VKParameters.from(VKApiConst.FIELDS, "photo_50, can_write_private_message");
-        VKRequest request = VKApi.friends().get(friendsParameters);
-        VkRequestsSender.sendRequest(request, new VKRequest.VKRequestListener() {
-            @Override
-            public void onComplete(VKResponse response) {
-                data.mFriends = (VKUsersArray) response.parsedModel;
-                data.mFriends.fields = response.json;
-                loadGroups(data, listener);
+        data.mFriends = new VKUsersArray();
+        DataSaver dataSaver = mDataSaver;
+        int lists = (dataSaver != null) ? dataSaver.startLists() : 0;
+        loadFriendsPages(data, listener, new ListPages(ListPages.FRIENDS_PAGE_SIZE), lists);
+    }
+
+    /**
+     * @param lists - номер списков в {@link #mDataSaver} ({@link DataSaver#startLists()}).
+     */
+    private void loadFriendsPages(Data data, Listener<Data> listener, ListPages pages, int lists) {
+        if (mCancelled) {
+            return;
+        }
+        VKParameters params = ExecuteCodeBuilder.getFriendsPagesParams(pages.getNextOffset());
+        sendPagesRequest(params, pages, items -> {
+            int itemsLength = items.length();
+            for (int i = 0; i < itemsLength; ++i) {
+                data.mFriends.add(new VKApiUserFull().parse(items.getJSONObject(i)));
+            }
+            DataSaver dataSaver = mDataSaver;
+            if (dataSaver != null) {
+                dataSaver.appendFriends(lists, items);
             }
+        }, () -> loadFriendsPages(data, listener, pages, lists), () -> loadGroups(data, listener, lists), listener);
+    }
 
-            @Override
-            public void onError(VKError error) {
-                listener.onError(String.valueOf(error));
+    /**
+     * Загрузить группы по страницам, так же как друзей.
+     */
+    private void loadGroups(Data data, Listener<Data> listener, int lists) {
+        data.mGroups = new VKApiCommunityArray_Fix();
+        loadGroupsPages(data, listener, new ListPages(ListPages.GROUPS_PAGE_SIZE), lists);
+    }
+
+    private void loadGroupsPages(Data data, Listener<Data> listener, ListPages pages, int lists) {
+        if (mCancelled) {
+            return;
+        }
+        VKParameters params = ExecuteCodeBuilder.getGroupsPagesParams(pages.getNextOffset());
+        sendPagesRequest(params, pages, items -> {
+            int itemsLength = items.length();
+            for (int i = 0; i < itemsLength; ++i) {
+                data.mGroups.add(new VKApiCommunityFull().parse(items.getJSONObject(i)));
             }
-        });
+            DataSaver dataSaver = mDataSaver;
+            if (dataSaver != null) {
+                dataSaver.appendGroups(lists, items);
+            }
+        }, () -> loadGroupsPages(data, listener, pages, lists), () -> postToUi(() -> loadIsMember(data, listener)), listener);
     }
 
-    private void loadGroups(Data data, Listener<Data> listener) {
-        VKRequest request = VKApi.groups().get(VKParameters.from(VKApiConst.EXTENDED, 1));
+    /**
+     * Отправить запрос страниц.
+     * Ответ разбирается в фоновом потоке (там же вызываются pageListener, loadNext и onLoaded),
+     * ошибка передается в listener в UI-потоке.
+     *
+     * @param loadNext - вызывается, если есть еще страницы.
+     * @param onLoaded - вызывается, если загружена последняя страница.
+     */
+    private void sendPagesRequest(VKParameters params, ListPages pages, ListPages.PageListener pageListener,
+                                  Runnable loadNext, Runnable onLoaded, Listener<Data> listener) {
+        VKRequest request = new VKRequest("execute", params);
+        request.setUseLooperForCallListener(false);
         VkRequestsSender.sendRequest(request, new VKRequest.VKRequestListener() {
             @Override
-            @SuppressWarnings("unchecked")
             public void onComplete(VKResponse response) {
-                data.mGroups = new VKApiCommunityArray_Fix((VKList<VKApiCommunityFull>) response.parsedModel);
-                data.mGroups.fields = response.json;
-                loadIsMember(data, listener);
+                if (mCancelled) {
+                    return;
+                }
+                boolean hasNext;
+                try {
+                    hasNext = pages.onResponse(response.json, pageListener);
+                } catch (JSONException e) {
+                    Log.e(TAG, e.toString(), e);
+                    postToUi(() -> listener.onError(String.valueOf(e)));
+                    return;
+                }
+                if (hasNext) {
+                    loadNext.run();
+                } else {
+                    onLoaded.run();
+                }
             }
 
             @Override
             public void onError(VKError error) {
-                listener.onError(String.valueOf(error));
+                postToUi(() -> listener.onError(String.valueOf(error)));
             }
-        });
+        }, this, VkRequestsSender.Priority.prefetch);
+    }
+
+    /**
+     * Способ загрузки информации о друзьях в группах.
+     */
+    enum IsMemberStrategy {
+        /**
+         * groups.isMember для каждой группы и пачки друзей.
+         */
+        isMember,
+
+        /**
+         * groups.get для каждого друга и пересечение его групп с группами пользователя.
+         * Друзья, чьи группы загрузить не удалось, проверяются через groups.isMember.
+         */
+        friendsGroups
+    }
+
+    /**
+     * Выбрать способ загрузки, для которого потребуется меньше запросов.
+     * Пары, уже проверенные в контрольной точке, не учитываются.
+     */
+    static IsMemberStrategy chooseStrategy(int[] friendIds, int[] groupIds, @Nullable IsMemberCheckpoint checkpoint) {
+        int isMemberCost;
+        int friendsGroupsCost;
+        if (checkpoint == null) {
+            isMemberCost = IsMemberPlanner.estimateRequestCount(friendIds.length, groupIds.length);
+            friendsGroupsCost = FriendsGroupsPlanner.estimateRequestCount(friendIds.length);
+        } else {
+            isMemberCost = IsMemberPlanner.estimateRequestCount(friendIds, groupIds, checkpoint);
+            int uncheckedFriendsCount = 0;
+            for (int friendId : friendIds) {
+                if (!checkpoint.isFriendChecked(friendId)) {
+                    ++uncheckedFriendsCount;
+                }
+            }
+            friendsGroupsCost = FriendsGroupsPlanner.estimateRequestCount(uncheckedFriendsCount);
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "chooseStrategy ## isMember == " + isMemberCost + " friendsGroups == " + friendsGroupsCost);
+        }
+        return friendsGroupsCost < isMemberCost ? IsMemberStrategy.friendsGroups : IsMemberStrategy.isMember;
     }
 
     /**
@@ -92,21 +363,21 @@ public class VKDataProvider implements DataProvider {
      * Тот же объект data с данными о друзьях в группах будет передан в listener.
      */
     public void loadIsMember(Data data, Listener<Data> listener) {
-        new LoadTask(data, listener).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        if (mCancelled) {
+            return;
+        }
+        LoadTask loadTask = new LoadTask(data, listener);
+        mLoadTask = loadTask;
+        loadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
-    private class LoadTask extends AsyncTask<Void, Void, Void> {
-        /**
-         * Кол-во друзей, обрабатываемое в 1 запросе.
-         * Не больше 500.
-         */
-        private static final int friendsPerRequest = 200;
-
+    private class LoadTask extends AsyncTask<Void, Integer, Void> {
         /**
-         * Кол-во групп, обрабатываемое в 1 запросе.
-         * Не больше 25. (ограничение в 25 запросов к api в vkapi.execute).
+         * Сколько запросов (vkapi.execute) может выполняться одновременно.
+         * Следующая часть матрицы планируется только после ответа на один из них,
+         * чтобы планировщик успел учесть время и размер ответа.
          */
-        private static final int groupPerRequest = 25;
+        private static final int maxRequestsInFlight = 4;
 
         /**
          * Данные с друзьями и группами, которые надо обработать.
@@ -125,9 +396,50 @@ public class VKDataProvider implements DataProvider {
         private volatile String mErrorMessage = null;
 
         /**
-         * Сколько запросов осталось выполнить (vkapi.execute).
+         * id групп пользователя.
+         */
+        private volatile int[] mGroupIds;
+
+        /**
+         * Уже проверенные пары: из контрольной точки прерванной загрузки
+         * и из предыдущей загрузки (при обновлении по разнице).
+         * Если == null, проверяются все пары.
+         */
+        private volatile IsMemberCheckpoint mCheckpoint;
+
+        /**
+         * Планировщик загрузки групп друзей (для {@link IsMemberStrategy#friendsGroups}).
+         * Если == null, группы друзей не загружаются.
+         */
+        private volatile FriendsGroupsPlanner mFriendsGroupsPlanner;
+
+        /**
+         * Друзья, чьи группы не удалось загрузить через groups.get.
+         * Они будут проверены через groups.isMember.
+         */
+        private final ArrayList<Integer> mFallbackFriendIds = new ArrayList<>();
+
+        /**
+         * Планировщик частей матрицы "друзья × группы".
+         * При {@link IsMemberStrategy#friendsGroups} создается после загрузки групп всех друзей.
+         */
+        private volatile IsMemberPlanner mPlanner;
+
+        /**
+         * Сколько запросов выполняется в настоящий момент.
+         */
+        private int mRequestsInFlight = 0;
+
+        /**
+         * Сколько запросов уже выполнено (успешно или с ошибкой).
          */
-        private volatile int mRequestsRemain;
+        private final AtomicInteger mRequestsDone = new AtomicInteger();
+
+        /**
+         * Срабатывает, когда выполнится последний запрос.
+         * Тогда {@link #waitRequestsRemain()} завершится.
+         */
+        private final CountDownLatch mRequestsRemain = new CountDownLatch(1);
 
         public LoadTask(Data data, Listener<Data> listener) {
             mData = data;
@@ -136,43 +448,51 @@ public class VKDataProvider implements DataProvider {
 
         @Override
         protected Void doInBackground(Void... params) {
-            mRequestsRemain = calculateRequestCount(mData);
-
-            mData.mIsMember = new HashMap<>();
-            for (int friendNumber = 0; friendNumber < mData.mFriends.size(); friendNumber += friendsPerRequest) {
-                String varFriends = getVarFriends(mData, friendNumber);
-                for (int groupNumber = 0; groupNumber < mData.mGroups.size(); groupNumber += groupPerRequest) {
-                    if (mErrorMessage != null) {
-                        --mRequestsRemain;
-                        continue;
-                    }
-                    String varGroups = getVarGroups(mData, groupNumber);
-                    String code = getCodeToExecute(varFriends, varGroups);
-                    VKRequest request = new VKRequest("execute", VKParameters.from("code", code));
-                    request.setUseLooperForCallListener(false);
-                    VkRequestsSender.sendRequest(request, new VKRequest.VKRequestListener() {
-                        @Override
-                        public void onComplete(VKResponse response) {
-                            try {
-                                parseIsMemberJSON(response.json, mData);
-                            } catch (JSONException e) {
-                                Log.e(TAG, e.toString(), e);
-                                mErrorMessage = String.valueOf(e);
-                            }
-                            --mRequestsRemain;
-                        }
+            if (isCancelled()) {
+                return null;
+            }
+            mData.mIsMember = new IsMemberMatrix(mData.mFriends, mData.mGroups);
+            int[] friendIds = getFriendIds(mData);
+            mGroupIds = getGroupIds(mData);
+            IsMemberCheckpoint checkpoint = new IsMemberCheckpoint(friendIds, mGroupIds);
+            Data previousData = mPreviousData;
+            if (previousData != null) {
+                ArrayList<IsMemberCheckpoint.Block> blocks = new ArrayList<>();
+                blocks.add(new IsMemberCheckpoint.Block(getFriendIds(previousData), getGroupIds(previousData)));
+                checkpoint.add(blocks, previousData.mIsMember);
+                mCheckpoint = checkpoint;
+            }
+            IsMemberCheckpointStorage checkpointStorage = mCheckpointStorage;
+            if (checkpointStorage != null && checkpointStorage.restoreCheckpoint(checkpoint)) {
+                mCheckpoint = checkpoint;
+            }
+            if (BuildConfig.DEBUG && mCheckpoint != null) {
+                Log.d(TAG, "pairs already checked == " + mCheckpoint.getCheckedCount());
+            }
+            switch (chooseStrategy(friendIds, mGroupIds, mCheckpoint)) {
+                case isMember:
+                    mPlanner = new IsMemberPlanner(friendIds, mGroupIds, mCheckpoint);
+                    break;
+                case friendsGroups:
+                    mFriendsGroupsPlanner = new FriendsGroupsPlanner(getUncheckedFriendIds(friendIds));
+                    break;
+            }
+            applyHotSet();
 
-                        @Override
-                        public void onError(VKError error) {
-                            mErrorMessage = String.valueOf(error);
-                            --mRequestsRemain;
-                        }
-                    });
-                }
+            // id уже получены, так что дальше списки друзей и групп можно использовать в UI-потоке.
+            PartialResultsListener partialResultsListener = mPartialResultsListener;
+            if (partialResultsListener != null) {
+                Data data = mData;
+                postToUi(() -> partialResultsListener.onFriendsAndGroupsLoaded(data));
+            }
+            if (mCheckpoint != null) {
+                mData.mIsMember.addAll(mCheckpoint.getIsMember());
+                notifyIsMemberLoaded(false);
             }
 
+            sendNextRequests();
             waitRequestsRemain();
-            if (mErrorMessage != null) {
+            if (isCancelled() || mErrorMessage != null) {
                 return null;
             }
 
@@ -184,104 +504,441 @@ public class VKDataProvider implements DataProvider {
         }
 
         /**
-         * Ждем, пока не выполнятся все выполняемые запросы.
+         * Отправить следующие запросы, чтобы одновременно выполнялось {@link #maxRequestsInFlight} запросов.
+         * Если запросов больше не осталось, завершить ожидание в {@link #waitRequestsRemain()}.
+         * Может вызываться из любого потока.
          */
-        private void waitRequestsRemain() {
-            while (mRequestsRemain > 0) {
+        private synchronized void sendNextRequests() {
+            while (!isCancelled() && mErrorMessage == null && mRequestsInFlight < maxRequestsInFlight) {
+                if (mFriendsGroupsPlanner != null && mFriendsGroupsPlanner.hasNext()) {
+                    sendRequest(mFriendsGroupsPlanner.next());
+                } else if (mPlanner == null) {
+                    if (mRequestsInFlight > 0) {
+                        // надо дождаться групп всех друзей, чтобы узнать, кого проверять через groups.isMember.
+                        break;
+                    }
+                    mPlanner = new IsMemberPlanner(getFallbackFriendIds(), mGroupIds, mCheckpoint);
+                    applyHotSet();
+                    continue;
+                } else if (mPlanner.hasNext()) {
+                    IsMemberChunk chunk = mPlanner.next();
+                    if (chunk.mCells.isEmpty()) {
+                        continue;
+                    }
+                    sendRequest(chunk);
+                } else {
+                    break;
+                }
+                ++mRequestsInFlight;
+            }
+            if (mRequestsInFlight == 0) {
+                mRequestsRemain.countDown();
+            }
+        }
+
+        private void sendRequest(IsMemberChunk chunk) {
+            VKRequest request = new VKRequest("execute", ExecuteCodeBuilder.getIsMemberParams(chunk));
+            request.setUseLooperForCallListener(false);
+            ChunkRequestListener listener = new ChunkRequestListener(chunk);
+            VkRequestsSender.Priority priority = chunk.mHot ? VkRequestsSender.Priority.prefetch : VkRequestsSender.Priority.bulk;
+            VkRequestsSender.sendRawRequest(request, listener, VKDataProvider.this, priority);
+        }
+
+        private void sendRequest(int[] friendIds) {
+            sendRequest(friendIds, new FriendsGroupsRequestListener(friendIds));
+        }
+
+        private void sendRequest(int[] friendIds, FriendsGroupsRequestListener listener) {
+            VKRequest request = new VKRequest("execute", ExecuteCodeBuilder.getFriendsGroupsParams(friendIds));
+            request.setUseLooperForCallListener(false);
+            VkRequestsSender.sendRequest(request, listener, VKDataProvider.this, VkRequestsSender.Priority.bulk);
+        }
+
+        /**
+         * Передать планировщикам видимых друзей и группы.
+         * Уже запланированные ранее они пропускают, так что вызывать можно повторно.
+         */
+        void applyHotSet() {
+            int[] hotFriendIds = mHotFriendIds;
+            int[] hotGroupIds = mHotGroupIds;
+            FriendsGroupsPlanner friendsGroupsPlanner = mFriendsGroupsPlanner;
+            if (friendsGroupsPlanner != null) {
+                friendsGroupsPlanner.setHotFriends(hotFriendIds);
+            }
+            IsMemberPlanner planner = mPlanner;
+            if (planner != null) {
+                planner.setHotFriends(hotFriendIds);
+                planner.setHotGroups(hotGroupIds);
+            }
+        }
+
+        /**
+         * Прервать загрузку: {@link #doInBackground(Void...)} сразу завершается,
+         * новые запросы не отправляются, а ответы на уже отправленные не обрабатываются.
+         */
+        void cancelLoading() {
+            cancel(false);
+            mRequestsRemain.countDown();
+        }
+
+        /**
+         * Повторить запрос через заданное время в {@link #sRetryThread}.
+         * Пока запрос ожидает повтора, он считается выполняющимся.
+         */
+        private void retryLater(Runnable retry, long delay) {
+            sRetryHandler.postAtTime(() -> {
+                if (isCancelled()) {
+                    return;
+                }
+                if (mErrorMessage == null) {
+                    retry.run();
+                } else {
+                    onRequestFinished();
+                }
+            }, VKDataProvider.this, SystemClock.uptimeMillis() + delay);
+        }
+
+        /**
+         * Слушатель запроса групп пачки друзей.
+         */
+        private class FriendsGroupsRequestListener extends VKRequest.VKRequestListener {
+            private final int[] mFriendIds;
+            private final ChunkRetryPolicy mRetryPolicy = new ChunkRetryPolicy();
+
+            FriendsGroupsRequestListener(int[] friendIds) {
+                mFriendIds = friendIds;
+            }
+
+            @Override
+            public void onComplete(VKResponse response) {
+                if (isCancelled()) {
+                    return;
+                }
                 try {
-                    Thread.sleep(15);
-                } catch (InterruptedException ignored) {
+                    IsMemberCheckpoint.Record record = new IsMemberCheckpoint.Record();
+                    int[] checkedFriendIds = parseFriendsGroupsJSON(response.json, mFriendIds, record);
+                    notifyIsMemberLoaded(false);
+                    if (checkedFriendIds.length > 0) {
+                        ArrayList<IsMemberCheckpoint.Block> blocks = new ArrayList<>();
+                        blocks.add(new IsMemberCheckpoint.Block(checkedFriendIds, mGroupIds));
+                        saveCheckpointRecord(blocks, record);
+                    }
+                } catch (JSONException e) {
+                    Log.e(TAG, e.toString(), e);
+                    mErrorMessage = String.valueOf(e);
+                }
+                onRequestFinished();
+            }
+
+            @Override
+            public void onError(VKError error) {
+                if (isCancelled()) {
+                    return;
                 }
+                long delay = mRetryPolicy.onError(error);
+                if (delay >= 0) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "friends groups request will be retried in " + delay + " ms ## " + error);
+                    }
+                    retryLater(() -> sendRequest(mFriendIds, this), delay);
+                    return;
+                }
+                mErrorMessage = String.valueOf(error);
+                onRequestFinished();
             }
         }
 
         /**
-         * @return кол-во запросов, которое надо выполнить.
+         * Слушатель запроса одной части матрицы.
+         * Сообщает планировщику время выполнения (от фактической отправки, без ожидания в очереди) и размер ответа.
          */
-        private int calculateRequestCount(Data data) {
-            int partsOfFriends = data.mFriends.size() / friendsPerRequest;
-            if (data.mFriends.size() % friendsPerRequest > 0) {
-                ++partsOfFriends;
+        private class ChunkRequestListener extends VKRequest.VKRequestListener
+                implements VkRequestsSender.SendingTimeListener {
+            private final IsMemberChunk mChunk;
+
+            /**
+             * Когда запрос был отправлен.
+             */
+            private volatile long mSendingTime = SystemClock.uptimeMillis();
+
+            ChunkRequestListener(IsMemberChunk chunk) {
+                mChunk = chunk;
+            }
+
+            @Override
+            public void onSent(long sendingTime) {
+                mSendingTime = sendingTime;
             }
-            int partsOfGroups = data.mGroups.size() / groupPerRequest;
-            if (data.mGroups.size() % groupPerRequest > 0) {
-                ++partsOfGroups;
+
+            @Override
+            public void onComplete(VKResponse response) {
+                if (isCancelled()) {
+                    return;
+                }
+                long responseTime = SystemClock.uptimeMillis() - mSendingTime;
+                int responseLength = response.responseString != null ? response.responseString.length() : 0;
+                mPlanner.onChunkCompleted(mChunk, responseTime, responseLength);
+                IsMemberChunk failedChunk = new IsMemberChunk(mChunk.mRetryPolicy);
+                failedChunk.mHot = mChunk.mHot;
+                try {
+                    IsMemberCheckpoint.Record record = new IsMemberCheckpoint.Record();
+                    parseIsMember(response, mChunk, record, failedChunk);
+                    notifyIsMemberLoaded(mChunk.mHot);
+                    saveCheckpointRecord(getCheckedBlocks(mChunk, failedChunk), record);
+                } catch (IOException | JSONException e) {
+                    Log.e(TAG, e.toString(), e);
+                    mErrorMessage = String.valueOf(e);
+                }
+                if (mErrorMessage == null && !failedChunk.mCells.isEmpty()) {
+                    // часть вызовов groups.isMember внутри vkapi.execute не выполнилась, повторяем только их.
+                    long delay = failedChunk.mRetryPolicy.onError();
+                    if (delay >= 0) {
+                        if (BuildConfig.DEBUG) {
+                            Log.d(TAG, failedChunk.mCells.size() + " cells will be retried in " + delay + " ms");
+                        }
+                        retryLater(() -> sendRequest(failedChunk), delay);
+                        return;
+                    }
+                    mErrorMessage = "groups.isMember failed for " + failedChunk.mCells.size() + " groups";
+                }
+                onRequestFinished();
+            }
+
+            @Override
+            public void onError(VKError error) {
+                if (isCancelled()) {
+                    return;
+                }
+                if (!ChunkRetryPolicy.isTooManyRequests(error) && !ChunkRetryPolicy.isUnavailable(error)) {
+                    mPlanner.onChunkFailed(mChunk);
+                }
+                long delay = mChunk.mRetryPolicy.onError(error);
+                if (delay >= 0) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "chunk will be retried in " + delay + " ms ## " + error);
+                    }
+                    retryLater(() -> sendRequest(mChunk), delay);
+                    return;
+                }
+                mErrorMessage = String.valueOf(error);
+                onRequestFinished();
             }
-            return partsOfFriends * partsOfGroups;
         }
 
         /**
-         * Получить значение для переменной в запросе - id друзей
-         *
-         * @param friendStart - друг, начиная с которого формируется список id.
+         * Отметить, что очередной запрос выполнен, и отправить следующие.
+         * Может вызываться из любого потока.
          */
-        private String getVarFriends(Data data, int friendStart) {
-            StringBuilder s = new StringBuilder();
-            s.append("\"");
-            int friendEnd = Math.min(friendStart + friendsPerRequest, data.mFriends.size());
-            for (int i = friendStart; i < friendEnd; ++i) {
-                s.append(data.mFriends.get(i).id).append(',');
+        private void onRequestFinished() {
+            int requestsDone = mRequestsDone.incrementAndGet();
+            synchronized (this) {
+                --mRequestsInFlight;
+                publishProgress(requestsDone, requestsDone + mRequestsInFlight + estimateRequestsRemain());
             }
-            s.append("\"");
-            return s.toString();
+            sendNextRequests();
         }
 
         /**
-         * Получить значение для переменной в запросе - id групп
-         *
-         * @param groupStart - группа, начиная с которого формируется список id.
+         * Сообщить слушателю частичных результатов, что в {@link #mData} добавлена очередная часть.
+         * Может вызываться из любого потока.
+         */
+        private void notifyIsMemberLoaded(boolean hot) {
+            PartialResultsListener partialResultsListener = mPartialResultsListener;
+            if (partialResultsListener != null) {
+                postToUi(() -> partialResultsListener.onIsMemberLoaded(hot));
+            }
+        }
+
+        /**
+         * Дописать в контрольную точку запись о выполненном запросе.
+         * Может вызываться из любого потока.
+         */
+        private void saveCheckpointRecord(List<IsMemberCheckpoint.Block> blocks, IsMemberCheckpoint.Record record) {
+            IsMemberCheckpointStorage checkpointStorage = mCheckpointStorage;
+            if (checkpointStorage == null || blocks.isEmpty()) {
+                return;
+            }
+            try {
+                checkpointStorage.appendCheckpoint(record.toJSON(blocks));
+            } catch (JSONException e) {
+                Log.e(TAG, e.toString(), e);
+            }
+        }
+
+        /**
+         * Проверенные запросом прямоугольники "друзья × группы": по одному на каждую пачку друзей.
+         * Ячейки из failedChunk не проверены.
+         */
+        private ArrayList<IsMemberCheckpoint.Block> getCheckedBlocks(IsMemberChunk chunk, IsMemberChunk failedChunk) {
+            ArrayList<IsMemberCheckpoint.Block> result = new ArrayList<>();
+            for (IsMemberChunk.Row row : chunk.mRows) {
+                ArrayList<Integer> groupIds = new ArrayList<>();
+                for (IsMemberChunk.Cell cell : chunk.mCells) {
+                    if (cell.mRow == row && !failedChunk.mCells.contains(cell)) {
+                        groupIds.add(cell.mGroupId);
+                    }
+                }
+                if (!groupIds.isEmpty()) {
+                    result.add(new IsMemberCheckpoint.Block(row.mFriendIds, toIntArray(groupIds)));
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Друзья, которых надо проверить для {@link IsMemberStrategy#friendsGroups}.
+         * Друзья, проверенные в прерванной загрузке для всех групп, пропускаются.
+         * Для остальных все, что известно из контрольной точки, забывается:
+         * их группы будут загружены заново целиком.
+         */
+        private int[] getUncheckedFriendIds(int[] friendIds) {
+            if (mCheckpoint == null) {
+                return friendIds;
+            }
+            ArrayList<Integer> result = new ArrayList<>();
+            for (int friendId : friendIds) {
+                if (!mCheckpoint.isFriendChecked(friendId)) {
+                    mCheckpoint.forgetFriend(friendId);
+                    result.add(friendId);
+                }
+            }
+            return toIntArray(result);
+        }
+
+        /**
+         * Примерное кол-во запросов, которые осталось отправить.
          */
-        private String getVarGroups(Data data, int groupStart) {
-            StringBuilder s = new StringBuilder();
-            int groupEnd = Math.min(groupStart + groupPerRequest, data.mGroups.size());
-            s.append("{count:\"").append(groupEnd - groupStart).append("\",items:[");
-            for (int i = groupStart; i < groupEnd; ++i) {
-                s.append(data.mGroups.get(i).id).append(',');
+        private int estimateRequestsRemain() {
+            int result = 0;
+            if (mFriendsGroupsPlanner != null) {
+                result += mFriendsGroupsPlanner.estimateRequestsRemain();
             }
-            s.append("]}");
-            return s.toString();
+            if (mPlanner != null) {
+                result += mPlanner.estimateRequestsRemain();
+            }
+            return result;
+        }
+
+        private int[] getFallbackFriendIds() {
+            synchronized (mFallbackFriendIds) {
+                return toIntArray(mFallbackFriendIds);
+            }
+        }
+
+        private int[] toIntArray(List<Integer> list) {
+            int[] result = new int[list.size()];
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = list.get(i);
+            }
+            return result;
         }
 
         /**
-         * Получить код для vkapi.execute c заданными переменными - списками id друзей и групп.
+         * Ждем, пока не выполнятся все выполняемые запросы.
+         * Поток просыпается ровно тогда, когда выполнится последний из них.
          */
-        private String getCodeToExecute(String varFriends, String varGroups) {
-            return "var friends = " + varFriends + ";" +
-                    "var groups = " + varGroups + ";" +
-                    "var res = [];" +
-                    "var i = 0;" +
-                    "while(i<groups.count)" +
-                    "{var group_id = groups.items[i];\n" +
-                    "res=res+[{\"group_id\":group_id," +
-                    "\"members\":API.groups.isMember({\"group_id\": group_id,\"user_ids\":friends})}];\n" +
-                    "i=i+1;}" +
-                    "return res;";
+        private void waitRequestsRemain() {
+            try {
+                mRequestsRemain.await();
+            } catch (InterruptedException e) {
+                Log.e(TAG, e.toString(), e);
+                mErrorMessage = String.valueOf(e);
+            }
+        }
+
+        private int[] getFriendIds(Data data) {
+            int[] result = new int[data.mFriends.size()];
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = data.mFriends.get(i).id;
+            }
+            return result;
+        }
+
+        private int[] getGroupIds(Data data) {
+            int[] result = new int[data.mGroups.size()];
+            for (int i = 0; i < result.length; ++i) {
+                result[i] = data.mGroups.get(i).id;
+            }
+            return result;
         }
 
         /**
-         * Разобрать и добавить в переданный объект Data данные об общих группах.
+         * Разобрать группы друзей и добавить те, что общие с пользователем, в {@link #mData} и в запись контрольной точки.
+         * Друзья, чьи группы получить не удалось (или получены не все), запоминаются в {@link #mFallbackFriendIds}.
+         *
+         * @return id друзей, чьи группы получены полностью.
          */
-        private void parseIsMemberJSON(JSONObject jsonObject, Data data) throws JSONException {
+        private int[] parseFriendsGroupsJSON(JSONObject jsonObject, int[] friendIds,
+                                             IsMemberCheckpoint.Record record) throws JSONException {
+            ArrayList<Integer> checkedFriendIds = new ArrayList<>();
+            HashSet<Integer> usersGroups = new HashSet<>();
+            for (int groupId : mGroupIds) {
+                usersGroups.add(groupId);
+            }
             JSONArray responseJSONArray = jsonObject.getJSONArray("response");
-            int responseJSONArrayLength = responseJSONArray.length();
-            for (int i = 0; i < responseJSONArrayLength; ++i) {
-                JSONObject groupJSONObject = responseJSONArray.getJSONObject(i);
-                int groupId = groupJSONObject.getInt("group_id");
-                Object members = groupJSONObject.get("members");
-                if (members instanceof JSONArray) {
-                    JSONArray membersJSONArray = ((JSONArray) members);
-                    int membersJSONArrayLength = membersJSONArray.length();
-                    for (int j = 0; j < membersJSONArrayLength; ++j) {
-                        JSONObject memberJSONObject = membersJSONArray.getJSONObject(j);
-                        if (memberJSONObject.getInt("member") == 1) {
-                            int friendId = memberJSONObject.getInt("user_id");
-                            if (data.mIsMember.get(friendId) == null) {
-                                data.mIsMember.put(friendId, new ArrayList<>());
-                            }
-                            data.mIsMember.get(friendId).add(groupId);
-                        }
+            for (int i = 0; i < friendIds.length; ++i) {
+                Object friendGroups = responseJSONArray.opt(i);
+                if (!(friendGroups instanceof JSONObject)) {
+                    synchronized (mFallbackFriendIds) {
+                        mFallbackFriendIds.add(friendIds[i]);
+                    }
+                    continue;
+                }
+                JSONObject friendGroupsJSONObject = (JSONObject) friendGroups;
+                JSONArray itemsJSONArray = friendGroupsJSONObject.getJSONArray("items");
+                int itemsJSONArrayLength = itemsJSONArray.length();
+                if (friendGroupsJSONObject.getInt("count") > itemsJSONArrayLength) {
+                    synchronized (mFallbackFriendIds) {
+                        mFallbackFriendIds.add(friendIds[i]);
+                    }
+                    continue;
+                }
+                for (int j = 0; j < itemsJSONArrayLength; ++j) {
+                    int groupId = itemsJSONArray.getInt(j);
+                    if (usersGroups.contains(groupId)) {
+                        mData.mIsMember.set(friendIds[i], groupId);
+                        record.addMember(friendIds[i], groupId);
                     }
                 }
+                checkedFriendIds.add(friendIds[i]);
+            }
+            return toIntArray(checkedFriendIds);
+        }
+
+        /**
+         * Разобрать данные об общих группах и добавить их в {@link #mData} и в запись контрольной точки.
+         * Ячейки, для которых groups.isMember не выполнился, добавляются в failedChunk.
+         * Запрос выполняется без разбора ответа в JSON ({@link VkRequestsSender#sendRawRequest}),
+         * и строка ответа разбирается потоково, без создания объекта для каждого друга.
+         */
+        private void parseIsMember(VKResponse response, IsMemberChunk chunk,
+                                   IsMemberCheckpoint.Record record, IsMemberChunk failedChunk)
+                throws IOException, JSONException {
+            IsMemberResponseParser.Callback callback = new IsMemberResponseParser.Callback() {
+                @Override
+                public void onMember(int cellIndex, int friendId) {
+                    int groupId = chunk.mCells.get(cellIndex).mGroupId;
+                    mData.mIsMember.set(friendId, groupId);
+                    record.addMember(friendId, groupId);
+                }
+
+                @Override
+                public void onCellFailed(int cellIndex) {
+                    failedChunk.addCell(chunk.mCells.get(cellIndex));
+                }
+            };
+            if (response.responseString != null) {
+                IsMemberResponseParser.parse(new StringReader(response.responseString), callback);
+            } else {
+                IsMemberResponseParser.parseJSON(response.json, callback);
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            ProgressListener progressListener = mProgressListener;
+            if (progressListener != null) {
+                progressListener.onProgress(values[0], values[1]);
             }
         }
 
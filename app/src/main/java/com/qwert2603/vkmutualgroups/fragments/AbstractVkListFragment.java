@@ -27,6 +27,7 @@ import static android.widget.AbsListView.OnScrollListener.SCROLL_STATE_IDLE;
 /**
  * Фрагмент для отображения списка друзей или групп.
  * Автоматически загружает фото для видимых элементов списка при остановке прокрутки.
+ * Сообщает id видимых элементов в {@link #onVisibleItemsChanged(int[])}, чтобы информация о них загружалась первой.
  * Позволяет запускать диалог отправки сообщения и показывает Snackbar, если сообщение было успешно отправлено.
  * А также удалять друзей и выходить из групп.
  */
@@ -48,12 +49,29 @@ public abstract class AbstractVkListFragment<T extends VKApiModel & Identifiable
 
     protected abstract AbstractAdapter<T> getListAdapter();
 
+    /**
+     * Изменились видимые элементы списка.
+     */
+    protected abstract void onVisibleItemsChanged(int[] ids);
+
     public interface Callbacks {
         void onListViewScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount);
     }
 
+    /**
+     * Установить адаптер списка.
+     * Если адаптер заменяется (например, при появлении новой версии данных), позиция прокрутки сохраняется.
+     */
     protected void setListViewAdapter(AbstractAdapter<T> adapter) {
+        boolean replacing = mListView.getAdapter() != null;
+        int position = mListView.getFirstVisiblePosition();
+        View firstView = mListView.getChildAt(0);
+        int top = (firstView != null) ? firstView.getTop() : 0;
         mListView.setAdapter(adapter);
+        if (replacing) {
+            mListView.setSelectionFromTop(position, top);
+            mListView.post(this::notifyVisibleItemsChanged);
+        }
     }
 
     protected void setListViewOnItemClickListener(AdapterView.OnItemClickListener listener) {
@@ -88,6 +106,7 @@ public abstract class AbstractVkListFragment<T extends VKApiModel & Identifiable
                     // при остановке скроллинга загружаем фото видимых друзей или групп.
                     notifyDataSetChanged();
                     fetchVisibleFriendsPhoto();
+                    notifyVisibleItemsChanged();
                 }
             }
 
@@ -126,6 +145,22 @@ public abstract class AbstractVkListFragment<T extends VKApiModel & Identifiable
                 }
             }
         }
+        // видимые позиции известны только после размещения списка.
+        mListView.post(this::notifyVisibleItemsChanged);
+    }
+
+    private void notifyVisibleItemsChanged() {
+        AbstractAdapter<T> adapter = getListAdapter();
+        if (adapter == null) {
+            return;
+        }
+        int b = Math.max(0, mListView.getFirstVisiblePosition());
+        int e = Math.min(adapter.getCount(), mListView.getLastVisiblePosition() + 1);
+        int[] ids = new int[Math.max(0, e - b)];
+        for (int i = b; i < e; ++i) {
+            ids[i - b] = adapter.getItem(i).getId();
+        }
+        onVisibleItemsChanged(ids);
     }
 
     /**
@@ -173,6 +208,10 @@ public abstract class AbstractVkListFragment<T extends VKApiModel & Identifiable
         if (listAdapter != null) {
             listAdapter.notifyDataSetChanged();
         }
+        if (mListView != null) {
+            // после пересортировки видны уже другие элементы.
+            mListView.post(this::notifyVisibleItemsChanged);
+        }
     }
 
 }
@@ -22,10 +22,14 @@ import com.qwert2603.vkmutualgroups.photo.PhotoManager;
 import com.vk.sdk.api.model.VKApiUserFull;
 import com.vk.sdk.api.model.VKUsersArray;
 
+import java.util.List;
+
 import static com.qwert2603.vkmutualgroups.data.DataManager.FetchingState.finished;
 
 /**
- * Отображает список друзей, переданный в {@link #newInstance(VKUsersArray, String)}.
+ * Отображает список друзей, переданный в {@link #newInstance(List, String)}.
+ * Список хранится во фрагменте (он сохраняется при смене конфигурации) и копируется в аргументы
+ * только при сохранении состояния, см. {@link #onSaveInstanceState(Bundle)}.
  */
 public class FriendsListFragment extends AbstractVkListFragment<VKApiUserFull> {
 
@@ -35,10 +39,10 @@ public class FriendsListFragment extends AbstractVkListFragment<VKApiUserFull> {
     private static final String friendsKey = "friendsKey";
     private static final String emptyListTextKey = "emptyListTextKey";
 
-    public static FriendsListFragment newInstance(VKUsersArray friends, String emptyListText) {
+    public static FriendsListFragment newInstance(List<VKApiUserFull> friends, String emptyListText) {
         FriendsListFragment result = new FriendsListFragment();
+        result.mFriends = friends;
         Bundle args = new Bundle();
-        args.putParcelable(friendsKey, friends);
         args.putString(emptyListTextKey, emptyListText);
         result.setArguments(args);
         return result;
@@ -47,7 +51,7 @@ public class FriendsListFragment extends AbstractVkListFragment<VKApiUserFull> {
     private DataManager mDataManager;
     private PhotoManager mPhotoManager;
 
-    private VKUsersArray mFriends;
+    private List<VKApiUserFull> mFriends;
 
     private FriendAdapter mFriendAdapter;
 
@@ -71,6 +75,22 @@ public class FriendsListFragment extends AbstractVkListFragment<VKApiUserFull> {
         return mFriendAdapter;
     }
 
+    @Override
+    protected void onVisibleItemsChanged(int[] ids) {
+        mDataManager.setHotFriends(ids);
+    }
+
+    /**
+     * Заменить отображаемый список друзей, сохранив позицию прокрутки.
+     */
+    public void setFriends(List<VKApiUserFull> friends) {
+        mFriends = friends;
+        if (mFriendAdapter != null) {
+            mFriendAdapter = new FriendAdapter(getActivity(), mFriends);
+            setListViewAdapter(mFriendAdapter);
+        }
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -79,7 +99,19 @@ public class FriendsListFragment extends AbstractVkListFragment<VKApiUserFull> {
         mDataManager = DataManager.get(getActivity());
         mPhotoManager = PhotoManager.get(getActivity());
 
-        mFriends = getArguments().getParcelable(friendsKey);
+        if (mFriends == null) {
+            // фрагмент восстановлен системой.
+            mFriends = getArguments().getParcelable(friendsKey);
+        }
+    }
+
+    @Override
+    public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        // списки из DataManager не Parcelable, поэтому VKUsersArray создается только здесь.
+        VKUsersArray friends = new VKUsersArray();
+        friends.addAll(mFriends);
+        getArguments().putParcelable(friendsKey, friends);
     }
 
     @Nullable
@@ -21,10 +21,13 @@ import com.qwert2603.vkmutualgroups.photo.PhotoManager;
 import com.qwert2603.vkmutualgroups.util.VKApiCommunityArray_Fix;
 import com.vk.sdk.api.model.VKApiCommunityFull;
 
+import java.util.List;
+
 import static com.qwert2603.vkmutualgroups.data.DataManager.FetchingState.finished;
 
 /**
- * Отображает список групп, переданный в {@link #newInstance(VKApiCommunityArray_Fix, String)}
+ * Отображает список групп, переданный в {@link #newInstance(List, String)}.
+ * Список хранится так же, как в {@link FriendsListFragment}.
  */
 public class GroupsListFragment extends AbstractVkListFragment<VKApiCommunityFull> {
 
@@ -34,10 +37,10 @@ public class GroupsListFragment extends AbstractVkListFragment<VKApiCommunityFul
     private static final String groupsKey = "groupsKey";
     private static final String emptyListTextKey = "emptyListTextKey";
 
-    public static GroupsListFragment newInstance(VKApiCommunityArray_Fix groups, String emptyListText) {
+    public static GroupsListFragment newInstance(List<VKApiCommunityFull> groups, String emptyListText) {
         GroupsListFragment result = new GroupsListFragment();
+        result.mGroups = groups;
         Bundle args = new Bundle();
-        args.putParcelable(groupsKey, groups);
         args.putString(emptyListTextKey, emptyListText);
         result.setArguments(args);
         return result;
@@ -46,7 +49,7 @@ public class GroupsListFragment extends AbstractVkListFragment<VKApiCommunityFul
     private DataManager mDataManager;
     private PhotoManager mPhotoManager;
 
-    private VKApiCommunityArray_Fix mGroups;
+    private List<VKApiCommunityFull> mGroups;
 
     private GroupAdapter mGroupsAdapter;
 
@@ -70,6 +73,22 @@ public class GroupsListFragment extends AbstractVkListFragment<VKApiCommunityFul
         return mGroupsAdapter;
     }
 
+    @Override
+    protected void onVisibleItemsChanged(int[] ids) {
+        mDataManager.setHotGroups(ids);
+    }
+
+    /**
+     * Заменить отображаемый список групп, сохранив позицию прокрутки.
+     */
+    public void setGroups(List<VKApiCommunityFull> groups) {
+        mGroups = groups;
+        if (mGroupsAdapter != null) {
+            mGroupsAdapter = new GroupAdapter(getActivity(), mGroups);
+            setListViewAdapter(mGroupsAdapter);
+        }
+    }
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -86,7 +105,18 @@ public class GroupsListFragment extends AbstractVkListFragment<VKApiCommunityFul
 //            }
 //        }
 
-        mGroups = getArguments().getParcelable(groupsKey);
+        if (mGroups == null) {
+            // фрагмент восстановлен системой.
+            mGroups = getArguments().getParcelable(groupsKey);
+        }
+    }
+
+    @Override
+    public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        VKApiCommunityArray_Fix groups = new VKApiCommunityArray_Fix();
+        groups.addAll(mGroups);
+        getArguments().putParcelable(groupsKey, groups);
     }
 
     @Nullable
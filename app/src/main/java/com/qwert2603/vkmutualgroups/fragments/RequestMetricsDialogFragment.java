@@ -0,0 +1,49 @@
+package com.qwert2603.vkmutualgroups.fragments;
+
+import android.annotation.SuppressLint;
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.app.DialogFragment;
+import android.content.Intent;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.TextView;
+
+import com.qwert2603.vkmutualgroups.R;
+import com.qwert2603.vkmutualgroups.util.RequestMetrics;
+
+/**
+ * Отладочный диалог с метриками запросов ({@link RequestMetrics}).
+ * Метрики можно отправить текстом через любое приложение или сбросить.
+ */
+public class RequestMetricsDialogFragment extends DialogFragment {
+
+    public static final String TAG = "RequestMetricsDialogFra";
+
+    public static RequestMetricsDialogFragment newInstance() {
+        return new RequestMetricsDialogFragment();
+    }
+
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        @SuppressLint("InflateParams")
+        View view = getActivity().getLayoutInflater().inflate(R.layout.dialog_request_metrics, null);
+
+        String metrics = RequestMetrics.dump();
+        ((TextView) view.findViewById(R.id.metrics_text_view)).setText(metrics);
+
+        return new AlertDialog.Builder(getActivity())
+                .setTitle(R.string.request_metrics)
+                .setView(view)
+                .setPositiveButton(R.string.ok, null)
+                .setNeutralButton(R.string.export, (dialog, which) -> {
+                    Intent intent = new Intent(Intent.ACTION_SEND);
+                    intent.setType("text/plain");
+                    intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.request_metrics));
+                    intent.putExtra(Intent.EXTRA_TEXT, metrics);
+                    startActivity(Intent.createChooser(intent, getString(R.string.export)));
+                })
+                .setNegativeButton(R.string.reset, (dialog, which) -> RequestMetrics.reset())
+                .create();
+    }
+}
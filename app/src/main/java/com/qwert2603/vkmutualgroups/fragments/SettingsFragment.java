@@ -8,6 +8,7 @@ import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
 import android.widget.Toast;
 
+import com.qwert2603.vkmutualgroups.BuildConfig;
 import com.qwert2603.vkmutualgroups.R;
 import com.qwert2603.vkmutualgroups.photo.PhotoManager;
 import com.qwert2603.vkmutualgroups.util.VkLogOutUtil;
@@ -18,6 +19,7 @@ public class SettingsFragment extends PreferenceFragment {
     public static final String TAG = "SettingsFragment";
 
     public static final String PREF_IS_CACHE_IMAGES_ON_DEVICE = "is_cache_images_on_device";
+    public static final String PREF_IS_DELTA_REFRESH = "is_delta_refresh";
 
     private static final int REQUEST_CLEAR_IMAGE_CACHE = 1;
     private static final int REQUEST_LOG_OUT = 2;
@@ -62,6 +64,15 @@ public class SettingsFragment extends PreferenceFragment {
             confirmationDialogFragment.show(getFragmentManager(), ConfirmationDialogFragment.TAG);
             return true;
         });
+
+        if (BuildConfig.DEBUG) {
+            findPreference("request_metrics").setOnPreferenceClickListener(preference -> {
+                RequestMetricsDialogFragment.newInstance().show(getFragmentManager(), RequestMetricsDialogFragment.TAG);
+                return true;
+            });
+        } else {
+            getPreferenceScreen().removePreference(findPreference("debug"));
+        }
     }
 
     @Override
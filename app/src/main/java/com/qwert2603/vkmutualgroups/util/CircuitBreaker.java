@@ -0,0 +1,121 @@
+package com.qwert2603.vkmutualgroups.util;
+
+/**
+ * Предохранитель для запросов к vkapi.
+ * После {@link #FAILURES_TO_OPEN} сбоев подряд (нет соединения, внутренняя ошибка сервера)
+ * он размыкается: ожидающие и новые запросы сразу завершаются ошибкой, а не отправляются.
+ * По истечении времени размыкания отправляется один пробный запрос, остальные ждут его результата.
+ * Если пробный запрос успешен, предохранитель замыкается, иначе размыкается снова на вдвое большее время.
+ * Не потокобезопасен.
+ */
+final class CircuitBreaker {
+
+    /**
+     * После скольких сбоев подряд предохранитель размыкается.
+     */
+    static final int FAILURES_TO_OPEN = 5;
+
+    /**
+     * Время размыкания (мс) после первых сбоев.
+     */
+    static final long MIN_OPEN_TIME = 10 * 1000;
+
+    /**
+     * Максимальное время размыкания (мс).
+     */
+    static final long MAX_OPEN_TIME = 2 * 60 * 1000;
+
+    /**
+     * Сколько мс ждать результата пробного запроса.
+     * Если его отменят до отправки, результата не будет совсем.
+     */
+    static final long TRIAL_TIMEOUT = 30 * 1000;
+
+    /**
+     * Сколько сбоев было подряд.
+     */
+    private int mFailures = 0;
+
+    /**
+     * До какого времени ({@link android.os.SystemClock#uptimeMillis()}) предохранитель разомкнут.
+     */
+    private long mOpenUntil = 0;
+
+    private long mOpenTime = MIN_OPEN_TIME;
+
+    /**
+     * Выполняется ли пробный запрос.
+     */
+    private boolean mTrialInFlight = false;
+
+    private long mTrialSendingTime;
+
+    boolean isOpen(long now) {
+        return now < mOpenUntil;
+    }
+
+    long getOpenUntil() {
+        return mOpenUntil;
+    }
+
+    /**
+     * Надо ли дождаться результата пробного запроса, прежде чем отправлять следующие.
+     */
+    boolean isWaitingForTrial(long now) {
+        return mTrialInFlight && now < getTrialTimeout();
+    }
+
+    /**
+     * До какого времени ждать результата пробного запроса.
+     */
+    long getTrialTimeout() {
+        return mTrialSendingTime + TRIAL_TIMEOUT;
+    }
+
+    /**
+     * Запомнить, что запрос отправлен.
+     * Первый запрос после размыкания - пробный.
+     */
+    void onSent(long now) {
+        if (mFailures >= FAILURES_TO_OPEN && !isOpen(now)) {
+            mTrialInFlight = true;
+            mTrialSendingTime = now;
+        }
+    }
+
+    /**
+     * vkapi ответил (успешно или ошибкой, не связанной со сбоем).
+     */
+    void onSuccess() {
+        mFailures = 0;
+        mOpenTime = MIN_OPEN_TIME;
+        mTrialInFlight = false;
+    }
+
+    /**
+     * Запрос не удался из-за сбоя.
+     *
+     * @return разомкнулся ли предохранитель.
+     */
+    boolean onFailure(long now) {
+        ++mFailures;
+        boolean trial = mTrialInFlight;
+        mTrialInFlight = false;
+        if (trial) {
+            mOpenTime = Math.min(MAX_OPEN_TIME, mOpenTime * 2);
+        }
+        if (trial || mFailures == FAILURES_TO_OPEN) {
+            mOpenUntil = now + mOpenTime;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Запрос отменен, его результата не будет.
+     */
+    void onCancelled() {
+        mTrialInFlight = false;
+    }
+
+}
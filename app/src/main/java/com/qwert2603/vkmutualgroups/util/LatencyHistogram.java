@@ -0,0 +1,106 @@
+package com.qwert2603.vkmutualgroups.util;
+
+/**
+ * Гистограмма неотрицательных значений (например, времени в мс) с логарифмическими корзинами, как в HdrHistogram.
+ * Значения меньше {@link #LINEAR_BUCKETS} хранятся точно, а каждый следующий диапазон [2^e, 2^(e+1))
+ * делится на {@link #SUB_BUCKETS} равных корзин, так что относительная погрешность - не больше 1/8.
+ * Память постоянная, добавление значения - O(1).
+ * Не потокобезопасна.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS_BITS = 3;
+
+    /**
+     * Кол-во корзин в каждом диапазоне [2^e, 2^(e+1)).
+     */
+    static final int SUB_BUCKETS = 1 << SUB_BUCKETS_BITS;
+
+    /**
+     * Значения меньше этого хранятся точно.
+     */
+    static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+
+    private static final int FIRST_EXPONENT = SUB_BUCKETS_BITS + 1;
+
+    private final long[] mCounts = new long[LINEAR_BUCKETS + (63 - FIRST_EXPONENT) * SUB_BUCKETS];
+
+    private long mCount = 0;
+    private long mSum = 0;
+    private long mMax = 0;
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        ++mCounts[getBucket(value)];
+        ++mCount;
+        mSum += value;
+        mMax = Math.max(mMax, value);
+    }
+
+    long getCount() {
+        return mCount;
+    }
+
+    long getMax() {
+        return mMax;
+    }
+
+    long getMean() {
+        return mCount > 0 ? mSum / mCount : 0;
+    }
+
+    /**
+     * Значение, не больше которого percentile% значений (с точностью до корзины).
+     */
+    long getPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(mCount * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < mCounts.length; ++i) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(mMax, getBucketMax(i));
+            }
+        }
+        return mMax;
+    }
+
+    private static int getBucket(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKETS_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Наибольшее значение, попадающее в корзину.
+     */
+    private static long getBucketMax(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = FIRST_EXPONENT + (bucket - LINEAR_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKETS_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+
+    /**
+     * Краткое описание: p50, p90, p99 и максимум.
+     */
+    @Override
+    public String toString() {
+        return "p50 == " + getPercentile(50) +
+                " p90 == " + getPercentile(90) +
+                " p99 == " + getPercentile(99) +
+                " max == " + mMax +
+                " mean == " + getMean();
+    }
+
+}
@@ -0,0 +1,257 @@
+package com.qwert2603.vkmutualgroups.util;
+
+import android.os.Handler;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.vk.sdk.api.VKError;
+import com.vk.sdk.api.VKParameters;
+import com.vk.sdk.api.VKRequest;
+import com.vk.sdk.api.VKResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Независимые запросы на чтение, объединяемые в один vkapi.execute.
+ * i-й элемент ответа execute - ответ на i-й запрос. Неудавшийся вызов возвращает false,
+ * а его ошибка - очередной элемент execute_errors.
+ *
+ * Слушатели получают ответ с json в том же виде, что и при отдельном запросе ({"response": ...}),
+ * но без parsedModel.
+ */
+final class RequestBatch {
+
+    public static final String TAG = "RequestBatch";
+
+    /**
+     * Сколько вызовов API можно сделать в одном execute.
+     */
+    static final int MAX_CALLS = 25;
+
+    /**
+     * Методы, которые можно отправлять в пачке: только идемпотентные методы чтения.
+     * Запросы с изменениями (вступление в группу, messages.send и т.п.) отправляются отдельно:
+     * повтор пачки не должен их повторять, и им может понадобиться обработка капчи.
+     */
+    private static final Set<String> BATCHABLE_METHODS = new HashSet<>(Arrays.asList(
+            "friends.get",
+            "groups.get",
+            "groups.getById",
+            "groups.isMember",
+            "users.get"
+    ));
+
+    /**
+     * Запрос в пачке.
+     */
+    private static class Call {
+        final VKRequest mRequest;
+        final VKRequest.VKRequestListener mListener;
+
+        /**
+         * Передан ли запрос из UI-потока. Тогда и слушатель вызывается в UI-потоке.
+         */
+        final boolean mFromMainThread;
+
+        Call(VKRequest request, VKRequest.VKRequestListener listener, boolean fromMainThread) {
+            mRequest = request;
+            mListener = listener;
+            mFromMainThread = fromMainThread;
+        }
+    }
+
+    private final ArrayList<Call> mCalls = new ArrayList<>();
+
+    /**
+     * Поставлена ли пачка в очередь на отправку.
+     */
+    boolean mQueued = false;
+
+    /**
+     * Можно ли отправить запрос в составе пачки.
+     */
+    static boolean isBatchable(VKRequest request) {
+        return BATCHABLE_METHODS.contains(request.methodName);
+    }
+
+    boolean isFull() {
+        return mCalls.size() >= MAX_CALLS;
+    }
+
+    void add(VKRequest request, VKRequest.VKRequestListener listener, boolean fromMainThread) {
+        mCalls.add(new Call(request, listener, fromMainThread));
+    }
+
+    /**
+     * Один запрос в пачке отправляется как есть.
+     */
+    boolean isSingle() {
+        return mCalls.size() == 1;
+    }
+
+    VKRequest getSingleRequest() {
+        return mCalls.get(0).mRequest;
+    }
+
+    VKRequest.VKRequestListener getSingleListener() {
+        return mCalls.get(0).mListener;
+    }
+
+    boolean isSingleFromMainThread() {
+        return mCalls.get(0).mFromMainThread;
+    }
+
+    /**
+     * Запрос vkapi.execute со всеми запросами пачки.
+     * Его слушатель ({@link #createExecuteListener(Handler)}) вызывается не в UI-потоке.
+     */
+    VKRequest createExecuteRequest() {
+        StringBuilder code = new StringBuilder("return [");
+        for (int i = 0; i < mCalls.size(); ++i) {
+            if (i > 0) {
+                code.append(',');
+            }
+            VKRequest request = mCalls.get(i).mRequest;
+            code.append("API.").append(request.methodName).append('(').append(toJson(request.getMethodParameters())).append(')');
+        }
+        code.append("];");
+        VKRequest request = new VKRequest("execute", VKParameters.from("code", code.toString()));
+        request.setUseLooperForCallListener(false);
+        return request;
+    }
+
+    /**
+     * Слушатель запроса {@link #createExecuteRequest()}.
+     * Слушатели запросов, переданных из UI-потока, вызываются через mainHandler.
+     */
+    VKRequest.VKRequestListener createExecuteListener(Handler mainHandler) {
+        return new FanOutListener(mainHandler);
+    }
+
+    private static String toJson(VKParameters parameters) {
+        StringBuilder result = new StringBuilder("{");
+        if (parameters != null) {
+            for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+                if (result.length() > 1) {
+                    result.append(',');
+                }
+                result.append(JSONObject.quote(entry.getKey())).append(':');
+                Object value = entry.getValue();
+                if (value instanceof Number || value instanceof Boolean) {
+                    result.append(value);
+                } else {
+                    result.append(JSONObject.quote(String.valueOf(value)));
+                }
+            }
+        }
+        return result.append('}').toString();
+    }
+
+    /**
+     * Слушатель execute, передающий ответы и ошибки слушателям отдельных запросов.
+     */
+    private class FanOutListener extends VKRequest.VKRequestListener {
+        private final Handler mMainHandler;
+
+        FanOutListener(Handler mainHandler) {
+            mMainHandler = mainHandler;
+        }
+
+        @Override
+        public void onComplete(VKResponse response) {
+            JSONArray results;
+            JSONArray errors;
+            try {
+                results = response.json.getJSONArray("response");
+                errors = response.json.optJSONArray("execute_errors");
+            } catch (JSONException e) {
+                Log.e(TAG, e.toString(), e);
+                onError(new VKError(VKError.VK_JSON_FAILED));
+                return;
+            }
+            VKError floodError = findFloodError(errors);
+            if (floodError != null) {
+                // сам execute выполнился, но вызовы внутри него упираются в ограничение частоты:
+                // ограничитель должен это учесть до того, как слушатели повторят запросы.
+                VkRequestsSender.onRequestResult(floodError);
+            }
+            int nextError = 0;
+            for (int i = 0; i < mCalls.size(); ++i) {
+                Call call = mCalls.get(i);
+                Object result = results.opt(i);
+                if (result == null || Boolean.FALSE.equals(result)) {
+                    JSONObject errorJson = errors != null ? errors.optJSONObject(nextError++) : null;
+                    notifyError(call, createError(call.mRequest, errorJson));
+                    continue;
+                }
+                VKResponse callResponse = new VKResponse();
+                callResponse.request = call.mRequest;
+                try {
+                    callResponse.json = new JSONObject().put("response", result);
+                } catch (JSONException e) {
+                    Log.e(TAG, e.toString(), e);
+                    notifyError(call, new VKError(VKError.VK_JSON_FAILED));
+                    continue;
+                }
+                callResponse.responseString = callResponse.json.toString();
+                run(call, () -> call.mListener.onComplete(callResponse));
+            }
+        }
+
+        @Override
+        public void onError(VKError error) {
+            for (Call call : mCalls) {
+                notifyError(call, error);
+            }
+        }
+
+        /**
+         * Первая ошибка flood control среди ошибок вызовов или null, если таких нет.
+         */
+        @Nullable
+        private VKError findFloodError(@Nullable JSONArray errors) {
+            if (errors == null) {
+                return null;
+            }
+            for (int i = 0; i < errors.length(); ++i) {
+                VKError error = createError(null, errors.optJSONObject(i));
+                if (VkRequestsSender.isFloodError(error)) {
+                    return error;
+                }
+            }
+            return null;
+        }
+
+        private VKError createError(@Nullable VKRequest request, @Nullable JSONObject errorJson) {
+            VKError apiError = new VKError(errorJson != null ? errorJson.optInt("error_code") : 0);
+            if (errorJson != null) {
+                apiError.errorMessage = errorJson.optString("error_msg");
+            }
+            VKError error = new VKError(VKError.VK_API_ERROR);
+            error.apiError = apiError;
+            error.request = request;
+            return error;
+        }
+
+        private void notifyError(Call call, VKError error) {
+            run(call, () -> call.mListener.onError(error));
+        }
+
+        private void run(Call call, Runnable runnable) {
+            if (call.mFromMainThread) {
+                mMainHandler.post(runnable);
+            } else {
+                runnable.run();
+            }
+        }
+    }
+
+}
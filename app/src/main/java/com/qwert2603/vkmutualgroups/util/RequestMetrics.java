@@ -0,0 +1,275 @@
+package com.qwert2603.vkmutualgroups.util;
+
+import android.os.SystemClock;
+
+import com.vk.sdk.api.VKRequest;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Метрики запросов, отправленных через {@link VkRequestsSender}, по методам:
+ * кол-во запросов и ошибок, объем ответов (в символах) и гистограммы времени ожидания в очереди,
+ * выполнения запроса и обработки ответа слушателем.
+ * Кроме того - глубина очередей, время в каждом состоянии отправки ({@link VkRequestsSender.State})
+ * и попадания в кеши ответов.
+ *
+ * По ним видно, отчего загрузка медленная: долгое ожидание в очереди - из-за ограничения частоты,
+ * долгое выполнение - из-за сети или vk, долгая обработка - из-за разбора ответов.
+ */
+public final class RequestMetrics {
+
+    /**
+     * Первый вызов API в коде vkapi.execute.
+     */
+    private static final Pattern EXECUTE_METHOD_PATTERN = Pattern.compile("API\\.([\\w.]+)\\(");
+
+    /**
+     * Метрики одного метода.
+     */
+    private static class MethodMetrics {
+        int mRequests = 0;
+        int mErrors = 0;
+        int mFloodErrors = 0;
+
+        /**
+         * Запросы, не отправленные из-за разомкнутого предохранителя.
+         */
+        int mRejected = 0;
+
+        /**
+         * Длина ответов в символах (не в байтах: строку ответа vk sdk уже декодировал).
+         */
+        long mResponseChars = 0;
+
+        /**
+         * Ожидание в очереди (мс).
+         */
+        final LatencyHistogram mQueueWait = new LatencyHistogram();
+
+        /**
+         * Выполнение запроса (мс).
+         */
+        final LatencyHistogram mLatency = new LatencyHistogram();
+
+        /**
+         * Обработка ответа слушателем в потоке, где он получен (мкс).
+         */
+        final LatencyHistogram mHandling = new LatencyHistogram();
+    }
+
+    private static final TreeMap<String, MethodMetrics> sMethods = new TreeMap<>();
+
+    /**
+     * Метрики одного кеша ответов.
+     */
+    private static class CacheMetrics {
+        /**
+         * Ответ взят из кеша.
+         */
+        int mHits = 0;
+
+        /**
+         * Запрос пришлось отправить.
+         */
+        int mMisses = 0;
+
+        /**
+         * Запрос дождался выполняющегося запроса с тем же ключом.
+         */
+        int mCoalesced = 0;
+    }
+
+    private static final TreeMap<String, CacheMetrics> sCaches = new TreeMap<>();
+
+    /**
+     * Максимальная глубина очереди каждого приоритета.
+     */
+    private static final EnumMap<VkRequestsSender.Priority, Integer> sMaxQueueDepth =
+            new EnumMap<>(VkRequestsSender.Priority.class);
+
+    /**
+     * Сколько мс отправка провела в каждом состоянии (кроме текущего).
+     */
+    private static final EnumMap<VkRequestsSender.State, Long> sStateMillis = new EnumMap<>(VkRequestsSender.State.class);
+
+    private static VkRequestsSender.State sState = VkRequestsSender.State.normal;
+
+    private static long sStateSince = SystemClock.uptimeMillis();
+
+    private static long sSince = SystemClock.uptimeMillis();
+
+    private RequestMetrics() {
+    }
+
+    /**
+     * Название метода запроса для метрик.
+     * Для vkapi.execute - первый вызываемый в коде метод, для пачки запросов - "execute(batch)".
+     */
+    static String getMethod(VKRequest request) {
+        if (!"execute".equals(request.methodName) || request.getMethodParameters() == null) {
+            return request.methodName;
+        }
+        Object code = request.getMethodParameters().get("code");
+        if (code == null) {
+            return request.methodName;
+        }
+        String codeString = code.toString();
+        if (codeString.startsWith("return [API.")) {
+            return "execute(batch)";
+        }
+        Matcher matcher = EXECUTE_METHOD_PATTERN.matcher(codeString);
+        return matcher.find() ? "execute(" + matcher.group(1) + ")" : request.methodName;
+    }
+
+    private static MethodMetrics getMethodMetrics(String method) {
+        MethodMetrics methodMetrics = sMethods.get(method);
+        if (methodMetrics == null) {
+            methodMetrics = new MethodMetrics();
+            sMethods.put(method, methodMetrics);
+        }
+        return methodMetrics;
+    }
+
+    private static CacheMetrics getCacheMetrics(String cache) {
+        CacheMetrics cacheMetrics = sCaches.get(cache);
+        if (cacheMetrics == null) {
+            cacheMetrics = new CacheMetrics();
+            sCaches.put(cache, cacheMetrics);
+        }
+        return cacheMetrics;
+    }
+
+    public static synchronized void onCacheHit(String cache) {
+        ++getCacheMetrics(cache).mHits;
+    }
+
+    public static synchronized void onCacheMiss(String cache) {
+        ++getCacheMetrics(cache).mMisses;
+    }
+
+    public static synchronized void onCacheCoalesced(String cache) {
+        ++getCacheMetrics(cache).mCoalesced;
+    }
+
+    static synchronized void onQueueDepth(VkRequestsSender.Priority priority, int depth) {
+        Integer max = sMaxQueueDepth.get(priority);
+        if (max == null || depth > max) {
+            sMaxQueueDepth.put(priority, depth);
+        }
+    }
+
+    static synchronized void onRequestSent(String method, long queueWait) {
+        MethodMetrics methodMetrics = getMethodMetrics(method);
+        ++methodMetrics.mRequests;
+        methodMetrics.mQueueWait.record(queueWait);
+    }
+
+    static synchronized void onRequestRejected(String method) {
+        ++getMethodMetrics(method).mRejected;
+    }
+
+    static synchronized void onResponse(String method, long latency, int responseChars) {
+        MethodMetrics methodMetrics = getMethodMetrics(method);
+        methodMetrics.mLatency.record(latency);
+        methodMetrics.mResponseChars += responseChars;
+    }
+
+    static synchronized void onError(String method, long latency, boolean flood) {
+        MethodMetrics methodMetrics = getMethodMetrics(method);
+        methodMetrics.mLatency.record(latency);
+        ++methodMetrics.mErrors;
+        if (flood) {
+            ++methodMetrics.mFloodErrors;
+        }
+    }
+
+    static synchronized void onHandled(String method, long handlingNanos) {
+        getMethodMetrics(method).mHandling.record(handlingNanos / 1000);
+    }
+
+    static synchronized void onStateChanged(VkRequestsSender.State state, long now) {
+        addStateTime(now);
+        sState = state;
+    }
+
+    private static void addStateTime(long now) {
+        Long millis = sStateMillis.get(sState);
+        sStateMillis.put(sState, (millis != null ? millis : 0) + now - sStateSince);
+        sStateSince = now;
+    }
+
+    /**
+     * Сбросить все метрики.
+     */
+    public static synchronized void reset() {
+        long now = SystemClock.uptimeMillis();
+        sMethods.clear();
+        sCaches.clear();
+        sMaxQueueDepth.clear();
+        sStateMillis.clear();
+        sStateSince = now;
+        sSince = now;
+    }
+
+    /**
+     * Все метрики в виде текста.
+     */
+    public static String dump() {
+        // глубина очередей берется до блокировки метрик, так как VkRequestsSender обновляет их под своей блокировкой.
+        EnumMap<VkRequestsSender.Priority, Integer> queueDepth = new EnumMap<>(VkRequestsSender.Priority.class);
+        for (VkRequestsSender.Priority priority : VkRequestsSender.Priority.values()) {
+            queueDepth.put(priority, VkRequestsSender.getQueueDepth(priority));
+        }
+        return dump(queueDepth);
+    }
+
+    private static synchronized String dump(EnumMap<VkRequestsSender.Priority, Integer> queueDepth) {
+        long now = SystemClock.uptimeMillis();
+        addStateTime(now);
+
+        StringBuilder s = new StringBuilder();
+        s.append("period == ").append((now - sSince) / 1000).append(" s\n");
+
+        s.append("state:");
+        for (VkRequestsSender.State state : VkRequestsSender.State.values()) {
+            Long millis = sStateMillis.get(state);
+            s.append(' ').append(state).append(" == ").append((millis != null ? millis : 0) / 1000).append(" s");
+        }
+        s.append('\n');
+
+        s.append("queue depth:");
+        for (VkRequestsSender.Priority priority : VkRequestsSender.Priority.values()) {
+            Integer max = sMaxQueueDepth.get(priority);
+            s.append(' ').append(priority).append(" == ").append(queueDepth.get(priority))
+                    .append(" (max ").append(max != null ? max : 0).append(')');
+        }
+        s.append('\n');
+
+        for (Map.Entry<String, CacheMetrics> entry : sCaches.entrySet()) {
+            CacheMetrics c = entry.getValue();
+            s.append("cache ").append(entry.getKey()).append(':')
+                    .append(" hits == ").append(c.mHits)
+                    .append(" misses == ").append(c.mMisses)
+                    .append(" coalesced == ").append(c.mCoalesced).append('\n');
+        }
+
+        for (Map.Entry<String, MethodMetrics> entry : sMethods.entrySet()) {
+            MethodMetrics m = entry.getValue();
+            s.append('\n').append(entry.getKey()).append('\n')
+                    .append("  requests == ").append(m.mRequests)
+                    .append(" errors == ").append(m.mErrors)
+                    .append(" flood == ").append(m.mFloodErrors)
+                    .append(" rejected == ").append(m.mRejected)
+                    .append(" response == ").append(m.mResponseChars / 1000).append(" K chars\n")
+                    .append("  queue wait ms: ").append(m.mQueueWait).append('\n')
+                    .append("  latency ms: ").append(m.mLatency).append('\n')
+                    .append("  handling us: ").append(m.mHandling).append('\n');
+        }
+        return s.toString();
+    }
+
+}
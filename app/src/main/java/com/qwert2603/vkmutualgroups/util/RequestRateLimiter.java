@@ -0,0 +1,108 @@
+package com.qwert2603.vkmutualgroups.util;
+
+/**
+ * Ограничитель частоты запросов "не более maxRequests в любом окне из windowMillis мс" (скользящее окно).
+ * Хранит время отправки последних maxRequests запросов.
+ * Пока окно не заполнено, запросы отправляются сразу, без интервалов между ними.
+ *
+ * После ошибки flood control допустимая частота уменьшается вдвое (окно растягивается),
+ * а после каждого успешного запроса понемногу восстанавливается (AIMD).
+ * Не потокобезопасен.
+ */
+final class RequestRateLimiter {
+
+    /**
+     * Минимальная доля допустимой частоты.
+     */
+    static final double MIN_RATE_FRACTION = 1.0 / 16;
+
+    /**
+     * На сколько увеличивается доля допустимой частоты после успешного запроса.
+     */
+    static final double RATE_FRACTION_INCREASE = 1.0 / 16;
+
+    private final long mWindowMillis;
+
+    /**
+     * Какая доля допустимой частоты используется сейчас.
+     */
+    private double mRateFraction = 1;
+
+    /**
+     * Время отправки последних запросов (кольцевой буфер).
+     * mSendingTimes[mOldest] - самый ранний из них.
+     */
+    private final long[] mSendingTimes;
+
+    private int mOldest = 0;
+
+    RequestRateLimiter(int maxRequests, long windowMillis) {
+        mWindowMillis = windowMillis;
+        mSendingTimes = new long[maxRequests];
+        for (int i = 0; i < maxRequests; ++i) {
+            mSendingTimes[i] = Long.MIN_VALUE / 2;
+        }
+    }
+
+    /**
+     * Уменьшить частоту запросов вдвое.
+     */
+    void onFloodError() {
+        mRateFraction = Math.max(MIN_RATE_FRACTION, mRateFraction / 2);
+    }
+
+    /**
+     * Немного увеличить частоту запросов, если она была уменьшена.
+     */
+    void onSuccess() {
+        mRateFraction = Math.min(1, mRateFraction + RATE_FRACTION_INCREASE);
+    }
+
+    /**
+     * Уменьшена ли сейчас частота запросов.
+     */
+    boolean isThrottled() {
+        return mRateFraction < 1;
+    }
+
+    private long getWindow() {
+        return (long) (mWindowMillis / mRateFraction);
+    }
+
+    /**
+     * Через сколько мс можно будет отправить следующий запрос.
+     * 0 - если можно прямо сейчас.
+     */
+    long getDelay(long now) {
+        return Math.max(0, mSendingTimes[mOldest] + getWindow() - now);
+    }
+
+    /**
+     * Запомнить, что запрос отправлен.
+     */
+    void onSent(long now) {
+        mSendingTimes[mOldest] = now;
+        mOldest = (mOldest + 1) % mSendingTimes.length;
+    }
+
+    /**
+     * Когда будет отправлен запрос, перед которым в очереди position запросов,
+     * если все они будут отправлены, как только позволит ограничение.
+     */
+    long getSendingTime(long now, int position) {
+        int n = mSendingTimes.length;
+        // время отправки запроса j - не раньше, чем через окно после запроса j - n.
+        long[] times = new long[n];
+        for (int i = 0; i < n; ++i) {
+            times[i] = mSendingTimes[(mOldest + i) % n];
+        }
+        long window = getWindow();
+        long result = now;
+        for (int j = 0; j <= position; ++j) {
+            result = Math.max(now, times[j % n] + window);
+            times[j % n] = result;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.qwert2603.vkmutualgroups.util;
+
+import android.util.Log;
+
+import com.vk.sdk.api.VKError;
+import com.vk.sdk.api.VKRequest;
+import com.vk.sdk.api.VKResponse;
+import com.vk.sdk.api.httpClient.VKHttpClient;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Выполнение запросов через vk sdk.
+ * Запросы без разбора ответа ({@link #executeRaw}) выполняются http-клиентом vk sdk напрямую в {@link #sExecutor}:
+ * VKRequest всегда создает из ответа JSONObject, а большие ответы загрузки разбираются потоково.
+ */
+final class SdkTransport implements VkTransport {
+
+    private static final String TAG = "SdkTransport";
+
+    /**
+     * Начало ответа с ошибкой vkapi: {"error":{...}}.
+     */
+    private static final String ERROR_PREFIX = "{\"error\"";
+
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool();
+
+    /**
+     * Выполняющийся запрос без разбора ответа.
+     */
+    private static class RawRequest {
+        final VKHttpClient.VKHTTPRequest mHttpRequest;
+        final VKRequest.VKRequestListener mListener;
+
+        RawRequest(VKHttpClient.VKHTTPRequest httpRequest, VKRequest.VKRequestListener listener) {
+            mHttpRequest = httpRequest;
+            mListener = listener;
+        }
+    }
+
+    /**
+     * Выполняющиеся запросы без разбора ответа.
+     */
+    private final HashMap<VKRequest, RawRequest> mRawRequests = new HashMap<>();
+
+    @Override
+    public void execute(VKRequest request, VKRequest.VKRequestListener listener) {
+        request.executeWithListener(listener);
+    }
+
+    @Override
+    public void executeRaw(VKRequest request, VKRequest.VKRequestListener listener) {
+        VKHttpClient.VKHTTPRequest httpRequest = VKHttpClient.requestWithVkRequest(request);
+        synchronized (mRawRequests) {
+            mRawRequests.put(request, new RawRequest(httpRequest, listener));
+        }
+        sExecutor.execute(() -> {
+            String responseString = null;
+            VKError error = null;
+            try {
+                VKHttpClient.VKHttpResponse httpResponse = VKHttpClient.execute(httpRequest);
+                responseString = new String(httpResponse.responseBytes, "UTF-8");
+                if (responseString.startsWith(ERROR_PREFIX)) {
+                    error = createApiError(request, new JSONObject(responseString));
+                }
+            } catch (IOException e) {
+                error = new VKError(VKError.VK_REQUEST_HTTP_FAILED);
+                error.httpError = e;
+                error.errorMessage = e.getMessage();
+            } catch (JSONException e) {
+                Log.e(TAG, e.toString(), e);
+                error = new VKError(VKError.VK_JSON_FAILED);
+            }
+            synchronized (mRawRequests) {
+                if (mRawRequests.remove(request) == null) {
+                    // запрос отменен, слушатель уже вызван.
+                    return;
+                }
+            }
+            if (error != null) {
+                error.request = request;
+                listener.onError(error);
+            } else {
+                VKResponse response = new VKResponse();
+                response.request = request;
+                response.responseString = responseString;
+                listener.onComplete(response);
+            }
+        });
+    }
+
+    @Override
+    public void cancel(VKRequest request) {
+        RawRequest rawRequest;
+        synchronized (mRawRequests) {
+            rawRequest = mRawRequests.remove(request);
+        }
+        if (rawRequest == null) {
+            request.cancel();
+            return;
+        }
+        // как и VKRequest#cancel(), сообщаем слушателю об отмене.
+        rawRequest.mHttpRequest.abort();
+        VKError error = new VKError(VKError.VK_CANCELED);
+        error.request = request;
+        rawRequest.mListener.onError(error);
+    }
+
+    private static VKError createApiError(VKRequest request, JSONObject json) throws JSONException {
+        VKError error = new VKError(VKError.VK_API_ERROR);
+        error.apiError = new VKError(json.getJSONObject("error"));
+        error.apiError.request = request;
+        return error;
+    }
+
+}
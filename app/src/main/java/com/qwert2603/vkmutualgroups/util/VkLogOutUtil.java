@@ -23,6 +23,7 @@ public class VkLogOutUtil {
             DataManager dataManager = DataManager.get(activity);
             dataManager.clear();
             dataManager.clearDataOnDevice();
+            dataManager.clearLoadingCheckpoint();
             PhotoManager.get(activity).clearPhotosOnDevice();
             Intent intent = new Intent(activity, LoginActivity.class);
             activity.startActivity(intent);
@@ -1,53 +1,785 @@
 package com.qwert2603.vkmutualgroups.util;
 
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
 
+import com.qwert2603.vkmutualgroups.BuildConfig;
+import com.vk.sdk.api.VKError;
 import com.vk.sdk.api.VKRequest;
+import com.vk.sdk.api.VKResponse;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 
 /**
  * Класс для отправки запросов к vkapi (не более 3 в секунду).
+ * Запросы, которые нельзя отправить сразу, ждут в очереди и отправляются по приоритету ({@link Priority}),
+ * внутри одного приоритета - по порядку.
  */
 public class VkRequestsSender {
 
+    public static final String TAG = "VkRequestsSender";
+
+    /**
+     * Коды ошибок vkapi.
+     */
+    private static final int API_ERROR_UNKNOWN = 1;
+    private static final int API_ERROR_TOO_MANY_REQUESTS = 6;
+    private static final int API_ERROR_FLOOD_CONTROL = 9;
+    private static final int API_ERROR_INTERNAL = 10;
+    private static final int API_ERROR_RATE_LIMIT = 29;
+
+    /**
+     * Код ошибки запроса, не отправленного из-за разомкнутого предохранителя.
+     * Не совпадает с кодами {@link VKError}: такой запрос не выполнялся, и повторять его надо после
+     * {@link #getUnavailableUntil()}, а не как после обычной ошибки.
+     */
+    public static final int ERROR_UNAVAILABLE = -1001;
+
+    /**
+     * Наибольшее время размыкания предохранителя (мс).
+     * Если vkapi недоступен дольше, повторять запрос дальше бессмысленно.
+     */
+    public static final long MAX_UNAVAILABLE_TIME = CircuitBreaker.MAX_OPEN_TIME;
+
+    /**
+     * Состояние отправки запросов.
+     */
+    public enum State {
+        /**
+         * Запросы отправляются с допустимой частотой.
+         */
+        normal,
+
+        /**
+         * Из-за ошибок flood control запросы отправляются реже.
+         */
+        throttled,
+
+        /**
+         * vkapi недоступен (предохранитель разомкнут), запросы не отправляются.
+         */
+        unavailable
+    }
+
+    /**
+     * Слушатель изменения состояния отправки.
+     * Вызывается в UI-потоке.
+     */
+    public interface StateListener {
+        void onStateChanged(State state);
+    }
+
+    private static final HashSet<StateListener> sStateListeners = new HashSet<>();
+
     /**
-     * Задержка перед следующим запросом.
-     * Чтобы запросы не посылались слишком часто. (Не больше 3 в секунду).
+     * Слушатель запроса, которому нужно время его фактической отправки (например, чтобы измерить время ответа).
+     * Время, возвращаемое sendRequest, - лишь оценка: запрос может дольше ждать в очереди или из-за ограничения частоты.
      */
-    public static final long nextRequestDelay = 350;
+    public interface SendingTimeListener {
+        /**
+         * Запрос отправлен в момент sendingTime ({@link SystemClock#uptimeMillis()}).
+         * Вызывается перед отправкой, в потоке отправки или в UI-потоке.
+         */
+        void onSent(long sendingTime);
+    }
+
+    private static State sState = State.normal;
+
+    public static synchronized void addStateListener(StateListener listener) {
+        sStateListeners.add(listener);
+    }
+
+    public static synchronized void removeStateListener(StateListener listener) {
+        sStateListeners.remove(listener);
+    }
+
+    public static synchronized State getState() {
+        return sState;
+    }
 
     /**
-     * Время, когда можно посылать следующий запрос.
+     * Чем выполняются запросы.
      */
-    private static long nextRequestTime;
+    private static volatile VkTransport sTransport = new SdkTransport();
+
+    /**
+     * Выполнять запросы через transport вместо vk sdk.
+     * Уже выполняющиеся запросы не затрагиваются.
+     */
+    public static void setTransport(VkTransport transport) {
+        sTransport = transport;
+    }
+
+    public static VkTransport getTransport() {
+        return sTransport;
+    }
+
+    /**
+     * Предохранитель от отправки запросов, когда vkapi недоступен.
+     */
+    private static final CircuitBreaker sCircuitBreaker = new CircuitBreaker();
+
+    /**
+     * Сколько запросов допускается за {@link #RATE_LIMIT_WINDOW} мс.
+     * Приложение входит только с ключом доступа пользователя (LoginActivity), а для него vk допускает 3 запроса в секунду.
+     */
+    private static final int RATE_LIMIT_MAX_REQUESTS = 3;
+
+    private static final long RATE_LIMIT_WINDOW = 1000;
+
+    /**
+     * Ограничитель частоты запросов.
+     */
+    private static final RequestRateLimiter sRateLimiter = new RequestRateLimiter(RATE_LIMIT_MAX_REQUESTS,
+            RATE_LIMIT_WINDOW);
+
+    /**
+     * Поток, в котором запросы ждут своей очереди и отправляются.
+     * Так ожидание и отправка запросов загрузки не добавляют работы UI-потоку.
+     */
+    private static final HandlerThread sDispatcherThread;
+
+    /**
+     * Обработчик отправки запросов в {@link #sDispatcherThread}.
+     */
+    private static final Handler sDispatcher;
 
     static {
-        nextRequestTime = SystemClock.uptimeMillis();
+        sDispatcherThread = new HandlerThread("VkRequestsSender");
+        sDispatcherThread.start();
+        sDispatcher = new Handler(sDispatcherThread.getLooper());
+    }
+
+    /**
+     * Обработчик для отправки запросов, переданных из UI-потока.
+     * Их слушатели ожидают вызова в UI-потоке, а vk sdk вызывает слушатель в потоке, где запрос был отправлен.
+     */
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Метка отложенной отправки очереди в {@link #sDispatcher}.
+     */
+    private static final Object DISPATCH_TOKEN = new Object();
+
+    /**
+     * Сколько времени (нс) UI-поток и {@link #sDispatcherThread} провели в отправке запросов
+     * (постановка в очередь и {@link VkTransport#execute(VKRequest, VKRequest.VKRequestListener)}).
+     */
+    private static long sMainThreadNanos = 0;
+    private static long sDispatcherThreadNanos = 0;
+
+    /**
+     * Запрос в очереди на отправку.
+     */
+    private static class QueuedRequest {
+        final VKRequest mRequest;
+        final VKRequest.VKRequestListener mListener;
+        final Object mTag;
+
+        /**
+         * Передан ли запрос из UI-потока.
+         */
+        final boolean mFromMainThread;
+
+        /**
+         * Выполнять ли запрос без разбора ответа ({@link VkTransport#executeRaw}).
+         */
+        final boolean mRaw;
+
+        /**
+         * Когда запрос поставлен в очередь.
+         */
+        long mEnqueueTime;
+
+        /**
+         * Пачка запросов, если это она.
+         * Тогда остальные поля не используются, а запрос создается при отправке.
+         */
+        final RequestBatch mBatch;
+
+        QueuedRequest(VKRequest request, VKRequest.VKRequestListener listener, @Nullable Object tag,
+                      boolean fromMainThread, boolean raw) {
+            mRequest = request;
+            mListener = listener;
+            mTag = tag;
+            mFromMainThread = fromMainThread;
+            mRaw = raw;
+            mBatch = null;
+        }
+
+        QueuedRequest(RequestBatch batch) {
+            mRequest = null;
+            mListener = null;
+            mTag = null;
+            mFromMainThread = false;
+            mRaw = false;
+            mBatch = batch;
+        }
+    }
+
+    /**
+     * Сколько мс собирается пачка запросов ({@link RequestBatch}), прежде чем встать в очередь.
+     * Пока пачка в очереди, в нее тоже добавляются запросы.
+     */
+    private static final long BATCH_WINDOW = 50;
+
+    /**
+     * Пачка, в которую добавляются запросы.
+     * Если == null, для следующего запроса создается новая.
+     */
+    private static RequestBatch sOpenBatch;
+
+    /**
+     * Приоритет запроса.
+     * Запрос отправляется, только когда не осталось ожидающих запросов с более высоким приоритетом,
+     * внутри одного приоритета - по порядку.
+     */
+    public enum Priority {
+        /**
+         * Действия пользователя: выход из группы, удаление друга, отправка сообщения и т.п.
+         */
+        interactive,
+
+        /**
+         * То, что пользователь увидит в ближайшее время: списки друзей и групп,
+         * информация о видимых друзьях и группах.
+         */
+        prefetch,
+
+        /**
+         * Фоновая загрузка информации о друзьях в группах.
+         */
+        bulk
     }
 
     /**
-     * Обрботчик отправки запросов
+     * Запросы, ожидающие отправки, по приоритетам.
      */
-    private final static Handler mHandler;
+    private static final EnumMap<Priority, ArrayDeque<QueuedRequest>> sQueues = new EnumMap<>(Priority.class);
 
     static {
-        mHandler = new Handler(Looper.getMainLooper());
+        for (Priority priority : Priority.values()) {
+            sQueues.put(priority, new ArrayDeque<>());
+        }
     }
 
     /**
-     * Отправить запрос.
-     * Запросы выполняются последовательно.
-     * Переданный запрос будет отправлен когда придет его время.
+     * Выполняющиеся запросы с меткой.
+     * Карта: "метка" - "запросы".
+     */
+    private static final HashMap<Object, HashSet<VKRequest>> sExecutingRequests = new HashMap<>();
+
+    /**
+     * Кол-во запросов, ожидающих отправки.
      */
-    public static synchronized void sendRequest(VKRequest request, VKRequest.VKRequestListener listener) {
-        if (nextRequestTime <= SystemClock.uptimeMillis()) {
-            request.executeWithListener(listener);
-            nextRequestTime = SystemClock.uptimeMillis();
+    public static synchronized int getQueueDepth() {
+        int result = 0;
+        for (ArrayDeque<QueuedRequest> queue : sQueues.values()) {
+            result += queue.size();
+        }
+        return result;
+    }
+
+    /**
+     * Кол-во запросов с переданным приоритетом, ожидающих отправки.
+     */
+    public static synchronized int getQueueDepth(Priority priority) {
+        return sQueues.get(priority).size();
+    }
+
+    /**
+     * Сколько времени UI-поток и поток отправки провели в отправке запросов.
+     * До переноса отправки в отдельный поток все это время приходилось на UI-поток.
+     */
+    public static synchronized String getDispatchStats() {
+        return "main thread == " + sMainThreadNanos / 1000 + " us" +
+                " dispatcher thread == " + sDispatcherThreadNanos / 1000 + " us";
+    }
+
+    public static synchronized void resetDispatchStats() {
+        sMainThreadNanos = 0;
+        sDispatcherThreadNanos = 0;
+    }
+
+    /**
+     * Отправить запрос, выполняемый по действию пользователя ({@link Priority#interactive}).
+     * Запросы на чтение ({@link RequestBatch#isBatchable}), переданные в течение {@link #BATCH_WINDOW} мс
+     * или пока их пачка ожидает в очереди, объединяются в один vkapi.execute (до {@link RequestBatch#MAX_CALLS}).
+     * Поэтому слушатель такого запроса должен использовать из ответа только json, parsedModel может быть == null.
+     * Остальные запросы отправляются отдельно.
+     * Если других запросов действий пользователя в очереди нет, пачка сразу ставится в очередь и не ждет
+     * {@link #BATCH_WINDOW}: к ней присоединяются только запросы, переданные до ее отправки.
+     *
+     * @return примерное время ({@link SystemClock#uptimeMillis()}), когда запрос будет отправлен.
+     */
+    public static synchronized long sendRequest(VKRequest request, VKRequest.VKRequestListener listener) {
+        if (!RequestBatch.isBatchable(request)) {
+            return sendRequest(request, listener, null, Priority.interactive);
+        }
+        long startNanos = System.nanoTime();
+        long now = SystemClock.uptimeMillis();
+        boolean fromMainThread = Looper.myLooper() == Looper.getMainLooper();
+        ArrayDeque<QueuedRequest> interactiveQueue = sQueues.get(Priority.interactive);
+        if (sOpenBatch == null || sOpenBatch.isFull()) {
+            RequestBatch batch = new RequestBatch();
+            sOpenBatch = batch;
+            if (!interactiveQueue.isEmpty()) {
+                // пачка все равно будет ждать очереди, а пока - собирать запросы.
+                sDispatcher.postAtTime(() -> enqueueBatch(batch), now + BATCH_WINDOW);
+            }
+        }
+        RequestBatch batch = sOpenBatch;
+        batch.add(request, listener, fromMainThread);
+        if (batch.isFull() || interactiveQueue.isEmpty()) {
+            enqueueBatch(batch);
+        }
+        long sendingTime;
+        if (batch.mQueued) {
+            // пачка уже в очереди, и перед ней - не больше остальных запросов.
+            sendingTime = sRateLimiter.getSendingTime(now, interactiveQueue.size() - 1);
         } else {
-            mHandler.postAtTime(() -> request.executeWithListener(listener), nextRequestTime);
+            sendingTime = Math.max(now + BATCH_WINDOW, sRateLimiter.getSendingTime(now, interactiveQueue.size()));
+        }
+        addDispatchTime(fromMainThread, System.nanoTime() - startNanos);
+        return sendingTime;
+    }
+
+    /**
+     * Поставить пачку в очередь, если она еще не там.
+     */
+    private static synchronized void enqueueBatch(RequestBatch batch) {
+        if (batch.mQueued) {
+            return;
+        }
+        batch.mQueued = true;
+        enqueue(new QueuedRequest(batch), Priority.interactive, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Отправить запрос с меткой и приоритетом.
+     * Все запросы с одной меткой можно отменить через {@link #cancelRequests(Object)}.
+     *
+     * @return время ({@link SystemClock#uptimeMillis()}), когда запрос будет отправлен.
+     * Если до этого будут отменены запросы перед ним в очереди, он будет отправлен раньше,
+     * а если будут переданы запросы с более высоким приоритетом - позже.
+     *
+     * Если запрос передан из UI-потока, он будет отправлен (и слушатель будет вызван) в UI-потоке.
+     * Иначе - в потоке отправки.
+     */
+    public static synchronized long sendRequest(VKRequest request, VKRequest.VKRequestListener listener,
+                                                @Nullable Object tag, Priority priority) {
+        return sendRequest(request, listener, tag, priority, false);
+    }
+
+    /**
+     * То же, что {@link #sendRequest(VKRequest, VKRequest.VKRequestListener, Object, Priority)},
+     * но ответ не разбирается в JSON ({@link VkTransport#executeRaw}): слушателю передается только responseString.
+     * Для больших ответов, которые слушатель разбирает сам. Должен вызываться не в UI-потоке.
+     */
+    public static synchronized long sendRawRequest(VKRequest request, VKRequest.VKRequestListener listener,
+                                                   @Nullable Object tag, Priority priority) {
+        return sendRequest(request, listener, tag, priority, true);
+    }
+
+    private static long sendRequest(VKRequest request, VKRequest.VKRequestListener listener,
+                                    @Nullable Object tag, Priority priority, boolean raw) {
+        long startNanos = System.nanoTime();
+        long now = SystemClock.uptimeMillis();
+        int position = 0;
+        for (Priority p : Priority.values()) {
+            if (p.compareTo(priority) <= 0) {
+                position += sQueues.get(p).size();
+            }
+        }
+        long sendingTime = sRateLimiter.getSendingTime(now, position);
+        boolean fromMainThread = Looper.myLooper() == Looper.getMainLooper();
+        enqueue(new QueuedRequest(request, listener, tag, fromMainThread, raw), priority, now);
+        addDispatchTime(fromMainThread, System.nanoTime() - startNanos);
+        return sendingTime;
+    }
+
+    private static void enqueue(QueuedRequest queuedRequest, Priority priority, long now) {
+        boolean wasEmpty = getQueueDepth() == 0;
+        queuedRequest.mEnqueueTime = now;
+        ArrayDeque<QueuedRequest> queue = sQueues.get(priority);
+        queue.addLast(queuedRequest);
+        RequestMetrics.onQueueDepth(priority, queue.size());
+        if (wasEmpty) {
+            // иначе отправка уже запланирована.
+            postDispatch(now);
+        }
+    }
+
+    private static void postDispatch(long time) {
+        sDispatcher.removeCallbacksAndMessages(DISPATCH_TOKEN);
+        sDispatcher.postAtTime(VkRequestsSender::dispatch, DISPATCH_TOKEN, time);
+    }
+
+    /**
+     * Отправить запросы из очереди, сколько позволяет ограничение.
+     * Если запросы остались, повторить, когда ограничение позволит отправить следующий.
+     * Вызывается в {@link #sDispatcherThread}.
+     *
+     * Запросы выбираются из очереди под блокировкой, а выполняются и отклоняются - после нее:
+     * слушатели берут свои блокировки и сами отправляют запросы, поэтому под блокировкой отправки их вызывать нельзя.
+     */
+    private static void dispatch() {
+        ArrayList<QueuedRequest> toExecute = new ArrayList<>();
+        ArrayList<QueuedRequest> toReject = new ArrayList<>();
+        synchronized (VkRequestsSender.class) {
+            long now = SystemClock.uptimeMillis();
+            if (sCircuitBreaker.isOpen(now)) {
+                QueuedRequest queuedRequest;
+                while ((queuedRequest = pollRequestToSend()) != null) {
+                    toReject.add(queuedRequest);
+                }
+                // чтобы сообщить об окончании размыкания.
+                postDispatch(sCircuitBreaker.getOpenUntil());
+            } else if (sCircuitBreaker.isWaitingForTrial(now)) {
+                // отправка продолжится по результату пробного запроса.
+                postDispatch(sCircuitBreaker.getTrialTimeout());
+            } else {
+                while (sRateLimiter.getDelay(now) == 0 && !sCircuitBreaker.isWaitingForTrial(now)) {
+                    QueuedRequest queuedRequest = pollRequestToSend();
+                    if (queuedRequest == null) {
+                        break;
+                    }
+                    sRateLimiter.onSent(now);
+                    sCircuitBreaker.onSent(now);
+                    if (queuedRequest.mFromMainThread) {
+                        sMainHandler.postAtTime(() -> execute(queuedRequest), queuedRequest.mTag, now);
+                    } else {
+                        toExecute.add(queuedRequest);
+                    }
+                }
+                if (getQueueDepth() > 0 && !sCircuitBreaker.isWaitingForTrial(now)) {
+                    postDispatch(now + sRateLimiter.getDelay(now));
+                }
+            }
+            updateState(now);
+        }
+        for (QueuedRequest queuedRequest : toExecute) {
+            execute(queuedRequest);
+        }
+        for (QueuedRequest queuedRequest : toReject) {
+            reject(queuedRequest);
+        }
+    }
+
+    /**
+     * Завершить ошибкой запрос, не отправленный из-за разомкнутого предохранителя.
+     * Слушатель вызывается через обработчик: в UI-потоке или в потоке отправки.
+     * Должен вызываться без блокировки {@link VkRequestsSender}.
+     */
+    private static void reject(QueuedRequest queuedRequest) {
+        RequestMetrics.onRequestRejected(RequestMetrics.getMethod(queuedRequest.mRequest));
+        VKError error = new VKError(ERROR_UNAVAILABLE);
+        error.request = queuedRequest.mRequest;
+        error.errorMessage = "vk api is unavailable, request is not sent";
+        VKRequest.VKRequestListener listener = queuedRequest.mListener;
+        Handler handler = queuedRequest.mFromMainThread ? sMainHandler : sDispatcher;
+        handler.postAtTime(() -> listener.onError(error), queuedRequest.mTag, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Учесть результат выполненного запроса.
+     * Для пачки запросов ({@link RequestBatch}) вызывается еще раз с ошибкой flood control, если ее получил вызов внутри execute.
+     */
+    static synchronized void onRequestResult(@Nullable VKError error) {
+        long now = SystemClock.uptimeMillis();
+        boolean wasWaitingForTrial = sCircuitBreaker.isWaitingForTrial(now);
+        if (error == null) {
+            sRateLimiter.onSuccess();
+            sCircuitBreaker.onSuccess();
+        } else if (error.errorCode == VKError.VK_CANCELED) {
+            sCircuitBreaker.onCancelled();
+        } else if (isFloodError(error)) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "flood control ## " + error);
+            }
+            sRateLimiter.onFloodError();
+            sCircuitBreaker.onSuccess();
+        } else if (isFailure(error)) {
+            if (sCircuitBreaker.onFailure(now)) {
+                Log.d(TAG, "circuit breaker is open until " + sCircuitBreaker.getOpenUntil() + " ## " + error);
+            }
+        } else {
+            sRateLimiter.onSuccess();
+            sCircuitBreaker.onSuccess();
+        }
+        if ((wasWaitingForTrial && !sCircuitBreaker.isWaitingForTrial(now)) || sCircuitBreaker.isOpen(now)) {
+            postDispatch(now);
+        }
+        updateState(now);
+    }
+
+    /**
+     * Ошибка "слишком много запросов" (в секунду, однотипных или за сутки).
+     * После нее запросы надо отправлять реже.
+     */
+    public static boolean isFloodError(VKError error) {
+        if (error.errorCode != VKError.VK_API_ERROR || error.apiError == null) {
+            return false;
+        }
+        int errorCode = error.apiError.errorCode;
+        return errorCode == API_ERROR_TOO_MANY_REQUESTS || errorCode == API_ERROR_FLOOD_CONTROL
+                || errorCode == API_ERROR_RATE_LIMIT;
+    }
+
+    /**
+     * Запрос не отправлен, так как vkapi недоступен (предохранитель разомкнут).
+     */
+    public static boolean isUnavailableError(VKError error) {
+        return error.errorCode == ERROR_UNAVAILABLE;
+    }
+
+    /**
+     * До какого времени ({@link SystemClock#uptimeMillis()}) vkapi считается недоступным.
+     * После этого отправляется пробный запрос, а остальные ждут его результата.
+     */
+    public static synchronized long getUnavailableUntil() {
+        return sCircuitBreaker.getOpenUntil();
+    }
+
+    /**
+     * Сбой: vkapi недоступен или не смог обработать запрос.
+     * Остальные ошибки относятся к самому запросу (например, нет доступа), и vkapi при этом работает.
+     */
+    private static boolean isFailure(VKError error) {
+        if (error.errorCode == VKError.VK_API_ERROR) {
+            return error.apiError != null && (error.apiError.errorCode == API_ERROR_UNKNOWN
+                    || error.apiError.errorCode == API_ERROR_INTERNAL);
+        }
+        return true;
+    }
+
+    private static void updateState(long now) {
+        State state;
+        if (sCircuitBreaker.isOpen(now)) {
+            state = State.unavailable;
+        } else if (sRateLimiter.isThrottled()) {
+            state = State.throttled;
+        } else {
+            state = State.normal;
+        }
+        if (state == sState) {
+            return;
+        }
+        sState = state;
+        RequestMetrics.onStateChanged(state, now);
+        for (StateListener listener : new ArrayList<>(sStateListeners)) {
+            sMainHandler.post(() -> listener.onStateChanged(state));
+        }
+    }
+
+    /**
+     * Закрыть пачку для новых запросов и создать запрос для отправки.
+     * Единственный запрос в пачке отправляется как есть.
+     */
+    private static QueuedRequest closeBatch(RequestBatch batch) {
+        if (sOpenBatch == batch) {
+            sOpenBatch = null;
+        }
+        if (batch.isSingle()) {
+            return new QueuedRequest(batch.getSingleRequest(), batch.getSingleListener(), null,
+                    batch.isSingleFromMainThread(), false);
+        }
+        return new QueuedRequest(batch.createExecuteRequest(), batch.createExecuteListener(sMainHandler), null,
+                false, false);
+    }
+
+    /**
+     * Достать из очереди следующий запрос для отправки.
+     * Пачка при этом закрывается и превращается в запрос.
+     */
+    @Nullable
+    private static QueuedRequest pollRequestToSend() {
+        QueuedRequest polled = pollQueuedRequest();
+        if (polled == null || polled.mBatch == null) {
+            return polled;
+        }
+        QueuedRequest queuedRequest = closeBatch(polled.mBatch);
+        queuedRequest.mEnqueueTime = polled.mEnqueueTime;
+        return queuedRequest;
+    }
+
+    /**
+     * Достать из очереди следующий запрос с наивысшим приоритетом.
+     */
+    @Nullable
+    private static QueuedRequest pollQueuedRequest() {
+        for (ArrayDeque<QueuedRequest> queue : sQueues.values()) {
+            if (!queue.isEmpty()) {
+                return queue.removeFirst();
+            }
+        }
+        return null;
+    }
+
+    private static synchronized void addDispatchTime(boolean mainThread, long nanos) {
+        if (mainThread) {
+            sMainThreadNanos += nanos;
+        } else {
+            sDispatcherThreadNanos += nanos;
+        }
+    }
+
+    /**
+     * Отменить все запросы с меткой: еще не отправленные не будут отправлены,
+     * а выполняющиеся будут прерваны. Их слушатели больше не вызываются.
+     * Должен вызываться в UI-потоке.
+     */
+    public static synchronized void cancelRequests(Object tag) {
+        sMainHandler.removeCallbacksAndMessages(tag);
+        sDispatcher.removeCallbacksAndMessages(tag);
+        for (ArrayDeque<QueuedRequest> queue : sQueues.values()) {
+            Iterator<QueuedRequest> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                if (tag.equals(iterator.next().mTag)) {
+                    iterator.remove();
+                }
+            }
+        }
+        HashSet<VKRequest> requests = sExecutingRequests.remove(tag);
+        if (requests != null) {
+            for (VKRequest request : requests) {
+                sTransport.cancel(request);
+            }
+        }
+    }
+
+    private static void execute(QueuedRequest queuedRequest) {
+        long startNanos = System.nanoTime();
+        VKRequest request = queuedRequest.mRequest;
+        Object tag = queuedRequest.mTag;
+        String method = RequestMetrics.getMethod(request);
+        long now = SystemClock.uptimeMillis();
+        RequestMetrics.onRequestSent(method, now - queuedRequest.mEnqueueTime);
+        if (queuedRequest.mListener instanceof SendingTimeListener) {
+            ((SendingTimeListener) queuedRequest.mListener).onSent(now);
+        }
+        if (tag == null) {
+            execute(queuedRequest, new ResultListener(queuedRequest.mListener, method, now));
+        } else {
+            synchronized (VkRequestsSender.class) {
+                HashSet<VKRequest> requests = sExecutingRequests.get(tag);
+                if (requests == null) {
+                    requests = new HashSet<>();
+                    sExecutingRequests.put(tag, requests);
+                }
+                requests.add(request);
+            }
+            execute(queuedRequest, new ResultListener(new TaggedRequestListener(request, queuedRequest.mListener, tag),
+                    method, now));
+        }
+        addDispatchTime(queuedRequest.mFromMainThread, System.nanoTime() - startNanos);
+    }
+
+    private static void execute(QueuedRequest queuedRequest, VKRequest.VKRequestListener listener) {
+        if (queuedRequest.mRaw) {
+            sTransport.executeRaw(queuedRequest.mRequest, listener);
+        } else {
+            sTransport.execute(queuedRequest.mRequest, listener);
+        }
+    }
+
+    /**
+     * Удалить выполнившийся запрос из {@link #sExecutingRequests}.
+     *
+     * @return был ли запрос там, то есть не был ли он отменен.
+     */
+    private static synchronized boolean onRequestFinished(VKRequest request, Object tag) {
+        HashSet<VKRequest> requests = sExecutingRequests.get(tag);
+        if (requests == null || !requests.remove(request)) {
+            return false;
+        }
+        if (requests.isEmpty()) {
+            sExecutingRequests.remove(tag);
+        }
+        return true;
+    }
+
+    /**
+     * Слушатель, учитывающий результат запроса в ограничителе частоты, предохранителе и метриках.
+     */
+    private static class ResultListener extends VKRequest.VKRequestListener {
+        private final VKRequest.VKRequestListener mListener;
+        private final String mMethod;
+        private final long mSendingTime;
+
+        ResultListener(VKRequest.VKRequestListener listener, String method, long sendingTime) {
+            mListener = listener;
+            mMethod = method;
+            mSendingTime = sendingTime;
+        }
+
+        @Override
+        public void onComplete(VKResponse response) {
+            int responseChars = response.responseString != null ? response.responseString.length() : 0;
+            RequestMetrics.onResponse(mMethod, SystemClock.uptimeMillis() - mSendingTime, responseChars);
+            onRequestResult(null);
+            long startNanos = System.nanoTime();
+            mListener.onComplete(response);
+            RequestMetrics.onHandled(mMethod, System.nanoTime() - startNanos);
+        }
+
+        @Override
+        public void onError(VKError error) {
+            if (error.errorCode != VKError.VK_CANCELED) {
+                RequestMetrics.onError(mMethod, SystemClock.uptimeMillis() - mSendingTime, isFloodError(error));
+            }
+            onRequestResult(error);
+            mListener.onError(error);
+        }
+
+        @Override
+        public void attemptFailed(VKRequest request, int attemptNumber, int totalAttempts) {
+            mListener.attemptFailed(request, attemptNumber, totalAttempts);
+        }
+    }
+
+    /**
+     * Слушатель запроса с меткой.
+     * Передает результат исходному слушателю, только если запрос не был отменен.
+     */
+    private static class TaggedRequestListener extends VKRequest.VKRequestListener {
+        private final VKRequest mRequest;
+        private final VKRequest.VKRequestListener mListener;
+        private final Object mTag;
+
+        TaggedRequestListener(VKRequest request, VKRequest.VKRequestListener listener, Object tag) {
+            mRequest = request;
+            mListener = listener;
+            mTag = tag;
+        }
+
+        @Override
+        public void onComplete(VKResponse response) {
+            if (onRequestFinished(mRequest, mTag)) {
+                mListener.onComplete(response);
+            }
+        }
+
+        @Override
+        public void onError(VKError error) {
+            if (onRequestFinished(mRequest, mTag)) {
+                mListener.onError(error);
+            }
+        }
+
+        @Override
+        public void attemptFailed(VKRequest request, int attemptNumber, int totalAttempts) {
+            mListener.attemptFailed(request, attemptNumber, totalAttempts);
         }
-        nextRequestTime += nextRequestDelay;
     }
 
 }
@@ -0,0 +1,29 @@
+package com.qwert2603.vkmutualgroups.util;
+
+import com.vk.sdk.api.VKRequest;
+
+/**
+ * Способ выполнения запросов, отправляемых {@link VkRequestsSender}.
+ * По умолчанию запросы выполняет vk sdk, но их можно перенаправить, например, на локальный сервер для нагрузочных тестов.
+ */
+public interface VkTransport {
+
+    /**
+     * Выполнить запрос и передать результат в listener.
+     * Если запрос начат в UI-потоке, listener вызывается в UI-потоке, иначе - в любом.
+     */
+    void execute(VKRequest request, VKRequest.VKRequestListener listener);
+
+    /**
+     * Выполнить запрос, не разбирая ответ в JSON: в VKResponse передается только строка ответа (responseString),
+     * json == null. Ошибка vkapi в ответе передается в listener.onError, как и в {@link #execute}.
+     * Запрос начинается не в UI-потоке, listener вызывается в любом потоке.
+     */
+    void executeRaw(VKRequest request, VKRequest.VKRequestListener listener);
+
+    /**
+     * Прервать выполняющийся запрос.
+     */
+    void cancel(VKRequest request);
+
+}
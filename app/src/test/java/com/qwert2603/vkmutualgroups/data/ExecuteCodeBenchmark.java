@@ -0,0 +1,109 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import com.vk.sdk.api.VKParameters;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Сравнение размера запросов vkapi.execute для groups.isMember:
+ * прежнего кода (id в литералах массивов через запятую) и {@link ExecuteCodeBuilder}.
+ * Размер считается так же, как его отправляет vk sdk: параметры в URL-кодировке в теле POST-запроса.
+ */
+public class ExecuteCodeBenchmark {
+
+    private static final int FRIENDS_COUNT = 2000;
+    private static final int GROUPS_COUNT = 300;
+
+    /**
+     * Размер всех запросов одной загрузки для 2000 друзей и 300 групп.
+     */
+    @Test
+    public void isMemberCode_isSmallerThanOld() throws UnsupportedEncodingException {
+        int[] friendIds = new int[FRIENDS_COUNT];
+        for (int i = 0; i < FRIENDS_COUNT; ++i) {
+            // id друзей в vk сейчас в основном 8-9-значные.
+            friendIds[i] = 100000000 + i * 7919;
+        }
+        int[] groupIds = new int[GROUPS_COUNT];
+        for (int i = 0; i < GROUPS_COUNT; ++i) {
+            groupIds[i] = 30000000 + i * 104729;
+        }
+
+        IsMemberPlanner planner = new IsMemberPlanner(friendIds, groupIds);
+        int requests = 0;
+        long oldBytes = 0;
+        long newBytes = 0;
+        while (planner.hasNext()) {
+            IsMemberChunk chunk = planner.next();
+            if (chunk.mCells.isEmpty()) {
+                continue;
+            }
+            ++requests;
+            oldBytes += getPostBodyLength(VKParameters.from("code", getOldCode(chunk)));
+            newBytes += getPostBodyLength(ExecuteCodeBuilder.getIsMemberParams(chunk));
+        }
+
+        System.out.println("ExecuteCodeBenchmark: requests == " + requests
+                + " old == " + oldBytes / 1024 + " KB"
+                + " new == " + newBytes / 1024 + " KB"
+                + " saved == " + (oldBytes - newBytes) * 100 / Math.max(oldBytes, 1) + "%");
+        assertTrue("no requests planned", requests > 0);
+        assertTrue("new code is not smaller: " + newBytes + " >= " + oldBytes, newBytes < oldBytes);
+    }
+
+    private static int getPostBodyLength(VKParameters params) throws UnsupportedEncodingException {
+        int result = 0;
+        for (Map.Entry<String, Object> entry : params.entrySet()) {
+            if (result > 0) {
+                // '&' между параметрами.
+                ++result;
+            }
+            result += (entry.getKey() + "=" + URLEncoder.encode(entry.getValue().toString(), "UTF-8")).length();
+        }
+        return result;
+    }
+
+    /**
+     * Код, который отправлялся до {@link ExecuteCodeBuilder}.
+     */
+    private static String getOldCode(IsMemberChunk chunk) {
+        StringBuilder varFriends = new StringBuilder("[");
+        for (IsMemberChunk.Row row : chunk.mRows) {
+            varFriends.append("\"");
+            for (int friendId : row.mFriendIds) {
+                varFriends.append(friendId).append(',');
+            }
+            varFriends.append("\",");
+        }
+        varFriends.append("]");
+
+        StringBuilder varGroups = new StringBuilder();
+        varGroups.append("{count:\"").append(chunk.mCells.size()).append("\",items:[");
+        for (IsMemberChunk.Cell cell : chunk.mCells) {
+            varGroups.append(cell.mGroupId).append(',');
+        }
+        varGroups.append("],rows:[");
+        for (IsMemberChunk.Cell cell : chunk.mCells) {
+            varGroups.append(chunk.mRows.indexOf(cell.mRow)).append(',');
+        }
+        varGroups.append("]}");
+
+        return "var friends = " + varFriends + ";" +
+                "var groups = " + varGroups + ";" +
+                "var res = [];" +
+                "var i = 0;" +
+                "while(i<groups.count)" +
+                "{var group_id = groups.items[i];\n" +
+                "res=res+[{\"group_id\":group_id," +
+                "\"members\":API.groups.isMember({\"group_id\": group_id,\"user_ids\":friends[groups.rows[i]]})}];\n" +
+                "i=i+1;}" +
+                "return res;";
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.qwert2603.vkmutualgroups.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Проверка одновременной записи в {@link IsMemberMatrix}.
+ * Сотни частей ответа (как от {@link IsMemberChunk}) одновременно добавляются в матрицу из нескольких потоков,
+ * часть из них - повторно (как при повторе запроса), а еще один поток в это время читает кол-ва, как UI при сортировке.
+ * После этого матрица сравнивается с ожидаемой.
+ */
+public class IsMemberMatrixStressTest {
+
+    private static final int FRIENDS_COUNT = 2000;
+    private static final int GROUPS_COUNT = 1000;
+    private static final int THREADS_COUNT = 8;
+
+    private static final long TIMEOUT_SECONDS = 60;
+
+    @Test
+    public void concurrentAddAll_matchesExpected() throws Exception {
+        Random random = new Random(42);
+        int[] friendIds = new int[FRIENDS_COUNT];
+        for (int i = 0; i < FRIENDS_COUNT; ++i) {
+            friendIds[i] = 1000 + i;
+        }
+        int[] groupIds = new int[GROUPS_COUNT];
+        for (int i = 0; i < GROUPS_COUNT; ++i) {
+            groupIds[i] = 1000000 + i;
+        }
+
+        // ожидаемая матрица: примерно 5% друзей в каждой группе.
+        boolean[][] expected = new boolean[FRIENDS_COUNT][GROUPS_COUNT];
+        for (int f = 0; f < FRIENDS_COUNT; ++f) {
+            for (int g = 0; g < GROUPS_COUNT; ++g) {
+                expected[f][g] = random.nextInt(20) == 0;
+            }
+        }
+
+        // части: ячейки по IsMemberPlanner.CELLS_PER_REQUEST групп и START_FRIENDS_PER_ROW друзей.
+        ArrayList<HashMap<Integer, ArrayList<Integer>>> chunks = new ArrayList<>();
+        for (int f0 = 0; f0 < FRIENDS_COUNT; f0 += IsMemberPlanner.START_FRIENDS_PER_ROW) {
+            int f1 = Math.min(FRIENDS_COUNT, f0 + IsMemberPlanner.START_FRIENDS_PER_ROW);
+            for (int g0 = 0; g0 < GROUPS_COUNT; g0 += IsMemberPlanner.CELLS_PER_REQUEST) {
+                int g1 = Math.min(GROUPS_COUNT, g0 + IsMemberPlanner.CELLS_PER_REQUEST);
+                HashMap<Integer, ArrayList<Integer>> chunk = new HashMap<>();
+                for (int f = f0; f < f1; ++f) {
+                    for (int g = g0; g < g1; ++g) {
+                        if (expected[f][g]) {
+                            ArrayList<Integer> groups = chunk.get(friendIds[f]);
+                            if (groups == null) {
+                                groups = new ArrayList<>();
+                                chunk.put(friendIds[f], groups);
+                            }
+                            groups.add(groupIds[g]);
+                        }
+                    }
+                }
+                chunks.add(chunk);
+            }
+        }
+        // каждая пятая часть приходит дважды.
+        int originalChunksCount = chunks.size();
+        for (int i = 0; i < originalChunksCount; i += 5) {
+            chunks.add(chunks.get(i));
+        }
+        Collections.shuffle(chunks, random);
+
+        IsMemberMatrix matrix = new IsMemberMatrix(friendIds, groupIds);
+
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(THREADS_COUNT);
+        AtomicInteger nextChunk = new AtomicInteger();
+        AtomicReference<Throwable> writerError = new AtomicReference<>();
+        for (int t = 0; t < THREADS_COUNT; ++t) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    int i;
+                    while ((i = nextChunk.getAndIncrement()) < chunks.size()) {
+                        matrix.addAll(chunks.get(i));
+                    }
+                } catch (Throwable e) {
+                    writerError.compareAndSet(null, e);
+                } finally {
+                    finish.countDown();
+                }
+            }, "IsMemberMatrixStress-" + t).start();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        start.countDown();
+        while (finish.getCount() > 0) {
+            for (int friendId : friendIds) {
+                assertTrue("friend lost during write: " + friendId, matrix.getGroupsCount(friendId) >= 0);
+            }
+            assertTrue("writers did not finish in " + TIMEOUT_SECONDS + " s", System.nanoTime() < deadline);
+        }
+        assertNull("writer failed: " + writerError.get(), writerError.get());
+
+        for (int g = 0; g < GROUPS_COUNT; ++g) {
+            int count = 0;
+            for (int f = 0; f < FRIENDS_COUNT; ++f) {
+                if (expected[f][g]) {
+                    ++count;
+                }
+            }
+            assertEquals("friends count of group " + groupIds[g], count, matrix.getFriendsCount(groupIds[g]));
+        }
+        for (int f = 0; f < FRIENDS_COUNT; ++f) {
+            int[] groups = new int[GROUPS_COUNT];
+            int count = 0;
+            for (int g = 0; g < GROUPS_COUNT; ++g) {
+                if (expected[f][g]) {
+                    groups[count++] = groupIds[g];
+                }
+            }
+            assertArrayEquals("groups of friend " + friendIds[f],
+                    Arrays.copyOf(groups, count), matrix.getGroupIds(friendIds[f]));
+        }
+    }
+
+}